@@ -7,17 +7,19 @@ package jawnae.pyronet;
 import org.telegram.mtproto.transport.BuffersStorage;
 import org.telegram.mtproto.transport.ByteBufferDesc;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
 
 public class ByteStream {
-   private final List<ByteBufferDesc> queue;
+   private final ArrayDeque<ByteBufferDesc> queue;
+   private ByteBuffer[] gather;
+   private volatile long size;
 
    public ByteStream() {
-      // the queue is expected to be relatively small, and iterated often.
-      // hence removing the first element will be fast, even when using an ArrayList
-      this.queue = new ArrayList<>();
+      this.queue = new ArrayDeque<>();
+      this.gather = new ByteBuffer[16];
    }
 
    /**
@@ -31,6 +33,7 @@ public class ByteStream {
          throw new NullPointerException();
       }
       this.queue.add(buf);
+      this.size += buf.buffer.remaining();
    }
 
    /**
@@ -38,7 +41,6 @@ public class ByteStream {
     */
 
    public boolean hasData() {
-      final int size = this.queue.size();
       for (ByteBufferDesc aQueue : this.queue) {
          if (aQueue.hasRemaining()) {
             return true;
@@ -48,59 +50,48 @@ public class ByteStream {
    }
 
    /**
-    * Fills the specified buffer with as much bytes as
-    * possible. When N bytes are read, the buffer position
-    * will be increased by N
+    * Returns the number of bytes pending in this stream. Only the
+    * network-thread modifies the stream, but any thread may read it.
     */
 
-   public void get(ByteBuffer dst) {
-      if (dst == null) {
-         throw new NullPointerException();
-      }
-
-      for (ByteBufferDesc bufferDesc : this.queue) {
-         ByteBuffer data = bufferDesc.buffer.slice();
-
-         if (data.remaining() > dst.remaining()) {
-            data.limit(dst.remaining());
-            dst.put(data);
-            break;
-         }
-
-         dst.put(data);
-
-         if (!dst.hasRemaining()) {
-            break;
-         }
-      }
+   public long size() {
+      return this.size;
    }
 
    /**
-    * Discards the specified amount of bytes from the stream.
+    * Writes as many queued bytes as the channel accepts with a single
+    * gathering write. Buffers that are completely written are removed
+    * from the stream and given back to the pool.
     *
-    * @throws PyroException if it failed to discard the
-    *                       specified number of bytes
+    * @return the number of bytes written
     */
 
-   public void discard(int count) {
-      int original = count;
-
-      while (count > 0) {
-         ByteBufferDesc data = this.queue.get(0);
+   public long writeTo(GatheringByteChannel channel) throws IOException {
+      if (this.gather.length < this.queue.size()) {
+         this.gather = new ByteBuffer[Math.max(this.queue.size(), this.gather.length * 2)];
+      }
 
-         if (count < data.buffer.remaining()) {
-            data.position(data.position() + count);
-            count = 0;
-            break;
+      int count = 0;
+      for (ByteBufferDesc bufferDesc : this.queue) {
+         if (bufferDesc.hasRemaining()) {
+            this.gather[count++] = bufferDesc.buffer;
          }
-
-         this.queue.remove(0);
-         BuffersStorage.getInstance().reuseFreeBuffer(data);
-         count -= data.buffer.remaining();
       }
 
-      if (count != 0) {
-         throw new PyroException("discarded " + (original - count) + "/" + original + " bytes");
+      long written = 0;
+      try {
+         if (count > 0) {
+            written = channel.write(this.gather, 0, count);
+            this.size -= written;
+         }
+      } finally {
+         for (int i = 0; i < count; i++) {
+            this.gather[i] = null;
+         }
+         while (!this.queue.isEmpty() && !this.queue.peekFirst().hasRemaining()) {
+            BuffersStorage.getInstance().reuseFreeBuffer(this.queue.pollFirst());
+         }
       }
+      return written;
    }
-}
\ No newline at end of file
+}
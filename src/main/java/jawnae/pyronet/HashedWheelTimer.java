@@ -0,0 +1,198 @@
+package jawnae.pyronet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximate timer backed by a single thread and a wheel of buckets, so
+ * scheduling and cancelling are O(1) however many timeouts are pending.
+ * Timeouts fire with a precision of one tick.
+ *
+ * Tasks run on the timer thread and must be short: anything touching a
+ * selector has to be handed over with {@link PyroSelector#scheduleTask(Runnable, long)}.
+ */
+public class HashedWheelTimer {
+    private static final long DEFAULT_TICK_DURATION = 10;
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private static volatile HashedWheelTimer instance = null;
+
+    private final long tickDuration;
+    private final ArrayList<Timeout>[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+    private final Thread workerThread;
+    private volatile boolean isClosed;
+    private long tick;
+
+    /**
+     * @param name          name of the timer thread
+     * @param tickDuration  duration of a tick in milliseconds
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String name, long tickDuration, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("invalid ticksPerWheel: " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.wheel = new ArrayList[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.workerThread = new Thread(new Worker(), name);
+        this.workerThread.setDaemon(true);
+        this.workerThread.start();
+    }
+
+    /**
+     * Default timer shared by all the selectors of the JVM
+     */
+    public static HashedWheelTimer getInstance() {
+        HashedWheelTimer localInstance = instance;
+        if (localInstance == null) {
+            synchronized (HashedWheelTimer.class) {
+                localInstance = instance;
+                if (localInstance == null) {
+                    instance = localInstance = new HashedWheelTimer("Wheel Timer", DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL);
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    /**
+     * Runs the task on the timer thread after delay milliseconds
+     */
+    public Timeout newTimeout(Runnable task, long delay) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        if (this.isClosed) {
+            throw new PyroException("timer is closed");
+        }
+        final long deadline = System.nanoTime() - this.startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+        final Timeout timeout = new Timeout(task, deadline);
+        this.pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public void close() {
+        this.isClosed = true;
+        this.workerThread.interrupt();
+    }
+
+    private void transferPendingTimeouts() {
+        while (true) {
+            final Timeout timeout = this.pendingTimeouts.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            final long calculated = timeout.deadline / this.tickDuration;
+            timeout.remainingRounds = (calculated - this.tick) / this.wheel.length;
+            final long ticks = Math.max(calculated, this.tick);
+            this.wheel[(int) (ticks & this.mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(ArrayList<Timeout> bucket) {
+        final Iterator<Timeout> timeouts = bucket.iterator();
+        while (timeouts.hasNext()) {
+            final Timeout timeout = timeouts.next();
+            if (timeout.isCancelled()) {
+                timeouts.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                timeouts.remove();
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (!HashedWheelTimer.this.isClosed) {
+                final long deadline = HashedWheelTimer.this.tickDuration * (HashedWheelTimer.this.tick + 1);
+                final long sleep = deadline - (System.nanoTime() - HashedWheelTimer.this.startTime);
+                if (sleep > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        if (HashedWheelTimer.this.isClosed) {
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                transferPendingTimeouts();
+                expireTimeouts(HashedWheelTimer.this.wheel[(int) (HashedWheelTimer.this.tick & HashedWheelTimer.this.mask)]);
+                HashedWheelTimer.this.tick++;
+            }
+        }
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public static final class Timeout {
+        private static final int STATE_INIT = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it has not run yet
+         *
+         * @return true if the task will not run because of this call
+         */
+        public boolean cancel() {
+            return this.state.compareAndSet(STATE_INIT, STATE_CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return this.state.get() == STATE_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return this.state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (!this.state.compareAndSet(STATE_INIT, STATE_EXPIRED)) {
+                return;
+            }
+            try {
+                this.task.run();
+            } catch (Throwable cause) {
+                cause.printStackTrace();
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@
 package jawnae.pyronet;
 
 import org.telegram.mtproto.transport.ByteBufferDesc;
+import org.telegram.mtproto.transport.PooledBuffer;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -12,6 +13,7 @@ import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
@@ -136,6 +138,7 @@ public class PyroClient
       // prevent a call to setTimeout from immediately causing a timeout
       this.lastEventTime = System.currentTimeMillis();
       this.timeout = ms;
+      this.scheduleTimeoutCheck(ms);
    }
 
    public void setLinger(boolean enabled, int seconds) throws IOException
@@ -152,6 +155,13 @@ public class PyroClient
       ((SocketChannel) key.channel()).socket().setKeepAlive(enabled);
    }
 
+   public void setTcpNoDelay(boolean enabled) throws IOException
+   {
+      this.selector.checkThread();
+
+      ((SocketChannel) key.channel()).socket().setTcpNoDelay(enabled);
+   }
+
    //
 
    //
@@ -170,6 +180,20 @@ public class PyroClient
       this.doEagerWrite = enabled;
    }
 
+   private int corkDelay = 0;
+   private long corkDeadline = 0;
+
+   /**
+    * If greater than zero, bytes passed to write() are held for up to the given
+    * amount of milliseconds so that bursts of small writes leave in a single
+    * gathering write. Ignored when eagerWrite is enabled.
+    */
+
+   public void setCorkDelay(int ms)
+   {
+      this.corkDelay = ms;
+   }
+
    //
 
    /**
@@ -211,6 +235,14 @@ public class PyroClient
             key.cancel();
          }
       }
+      else if (this.corkDelay > 0)
+      {
+         if (this.corkDeadline == 0)
+         {
+            this.corkDeadline = System.currentTimeMillis() + this.corkDelay;
+            this.selector.cork(this);
+         }
+      }
       else
       {
          this.adjustWriteOp();
@@ -296,6 +328,21 @@ public class PyroClient
       return this.outbound.hasData();
    }
 
+   /**
+    * Returns the number of bytes left in the outbound queue,
+    * zero once the connection is closed. Safe to call from
+    * any thread.
+    */
+
+   public long getOutboundSize()
+   {
+      if (!this.key.channel().isOpen())
+      {
+         return 0;
+      }
+      return this.outbound.size();
+   }
+
    private boolean doShutdown = false;
 
    /**
@@ -397,11 +444,55 @@ public class PyroClient
 
    private long timeout = 0L;
    private long lastEventTime;
+   private HashedWheelTimer.Timeout timeoutCheck;
 
    boolean didTimeout(long now) {
        return this.timeout != 0 && (now - this.lastEventTime) > this.timeout;
    }
 
+   // the check is not moved on every event, it just re-arms itself
+   // for the remaining time when it finds some activity
+   private final Runnable timeoutCheckTask = new Runnable()
+   {
+      @Override
+      public void run()
+      {
+         if (!PyroClient.this.key.channel().isOpen() || PyroClient.this.timeout == 0)
+         {
+            return;
+         }
+
+         long now = System.currentTimeMillis();
+         if (PyroClient.this.didTimeout(now))
+         {
+            PyroClient.this.timeoutCheck = null;
+            PyroClient.this.onConnectionError(new SocketTimeoutException("PyroNet detected NIO timeout"));
+         }
+         else
+         {
+            PyroClient.this.scheduleTimeoutCheck(PyroClient.this.lastEventTime + PyroClient.this.timeout - now + 1);
+         }
+      }
+   };
+
+   private void scheduleTimeoutCheck(long delay)
+   {
+      this.cancelTimeoutCheck();
+      if (this.timeout != 0)
+      {
+         this.timeoutCheck = this.selector.scheduleTask(this.timeoutCheckTask, delay);
+      }
+   }
+
+   private void cancelTimeoutCheck()
+   {
+      if (this.timeoutCheck != null)
+      {
+         this.timeoutCheck.cancel();
+         this.timeoutCheck = null;
+      }
+   }
+
    private void onReadyToConnect(long now) throws IOException
    {
       this.selector.checkThread();
@@ -421,17 +512,26 @@ public class PyroClient
 
       SocketChannel channel = (SocketChannel) key.channel();
 
-      ByteBuffer buffer = this.selector.networkBuffer;
+      // every read gets its own buffer, so listeners can keep slices of it
+      PooledBuffer data = PooledBuffer.allocate(PyroSelector.BUFFER_SIZE);
+      try
+      {
+         ByteBuffer buffer = data.buffer();
 
-      // read from channel
-      buffer.clear();
-      int bytes = channel.read(buffer);
-      if (bytes == -1)
-         throw new EOFException();
-      buffer.flip();
+         // read from channel
+         buffer.clear();
+         int bytes = channel.read(buffer);
+         if (bytes == -1)
+            throw new EOFException();
+         buffer.flip();
 
-      for (PyroClientListener listener : this.listeners)
-         listener.receivedData(this, buffer);
+         for (PyroClientListener listener : this.listeners)
+            listener.receivedData(this, data);
+      }
+      finally
+      {
+         data.release();
+      }
    }
 
    private int onReadyToWrite(long now) throws IOException
@@ -439,25 +539,9 @@ public class PyroClient
       this.selector.checkThread();
       //this.lastEventTime = now;
 
-      int sent = 0;
-
-      // copy outbound bytes into network buffer
-      ByteBuffer buffer = this.selector.networkBuffer;
-      buffer.clear();
-      this.outbound.get(buffer);
-      buffer.flip();
-
-      // write to channel
-      if (buffer.hasRemaining())
-      {
-         SocketChannel channel = (SocketChannel) key.channel();
-         sent = channel.write(buffer);
-      }
-
-      if (sent > 0)
-      {
-         this.outbound.discard(sent);
-      }
+      // write all the queued buffers with a single call
+      SocketChannel channel = (SocketChannel) key.channel();
+      int sent = (int) this.outbound.writeTo(channel);
 
       for (PyroClientListener listener : this.listeners)
          listener.sentData(this, sent);
@@ -472,6 +556,17 @@ public class PyroClient
       return sent;
    }
 
+   long corkDeadline()
+   {
+      return this.corkDeadline;
+   }
+
+   void uncork()
+   {
+      this.corkDeadline = 0;
+      this.adjustWriteOp();
+   }
+
    void onConnectionError(final Object cause)
    {
       this.selector.checkThread();
@@ -499,6 +594,8 @@ public class PyroClient
          return;
       }
 
+      this.cancelTimeoutCheck();
+
       if (cause instanceof ConnectException)
       {
          for (PyroClientListener listener : this.listeners)
@@ -5,9 +5,9 @@
 package jawnae.pyronet;
 
 import org.telegram.bot.services.BotLogger;
+import org.telegram.mtproto.transport.PooledBuffer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 public class PyroClientAdapter implements PyroClientListener {
    private static final String LOGTAG = "PYROCLIENTADAPTER";
@@ -42,7 +42,7 @@ public class PyroClientAdapter implements PyroClientListener {
 
    //
 
-   public void receivedData(PyroClient client, ByteBuffer data)
+   public void receivedData(PyroClient client, PooledBuffer data)
    {
       //
    }
@@ -4,8 +4,9 @@
 
 package jawnae.pyronet;
 
+import org.telegram.mtproto.transport.PooledBuffer;
+
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 public interface PyroClientListener
 {
@@ -17,7 +18,10 @@ public interface PyroClientListener
 
    void disconnectedClient(PyroClient client);
 
-   void receivedData(PyroClient client, ByteBuffer data);
+   /**
+    * The data is only valid during the call, unless it is retained
+    */
+   void receivedData(PyroClient client, PooledBuffer data);
 
    void sentData(PyroClient client, int bytes);
 }
\ No newline at end of file
@@ -6,9 +6,8 @@ package jawnae.pyronet;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
@@ -19,10 +18,14 @@ public class PyroSelector {
     static final int BUFFER_SIZE = 64 * 1024;
     private Thread networkThread;
     private final Selector nioSelector;
-    final ByteBuffer networkBuffer;
+    private final HashedWheelTimer timer;
 
     public PyroSelector() {
-        this.networkBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this(HashedWheelTimer.getInstance());
+    }
+
+    public PyroSelector(HashedWheelTimer timer) {
+        this.timer = timer;
 
         try {
             this.nioSelector = Selector.open();
@@ -72,11 +75,34 @@ public class PyroSelector {
         //
 
         this.executePendingTasks();
-        this.performNioSelect(eventTimeout);
+        this.performNioSelect(this.selectTimeout(eventTimeout));
 
         final long now = System.currentTimeMillis();
         this.handleSelectedKeys(now);
-        this.handleSocketTimeouts(now);
+        this.handleCorkedClients(now);
+    }
+
+    private long selectTimeout(long eventTimeout) {
+        if (this.corkedClients.isEmpty()) {
+            return eventTimeout;
+        }
+        long deadline = Long.MAX_VALUE;
+        for (PyroClient client : this.corkedClients) {
+            deadline = Math.min(deadline, client.corkDeadline());
+        }
+        final long wait = Math.max(deadline - System.currentTimeMillis(), 1);
+        return eventTimeout == 0 ? wait : Math.min(eventTimeout, wait);
+    }
+
+    private void handleCorkedClients(long now) {
+        Iterator<PyroClient> clients = this.corkedClients.iterator();
+        while (clients.hasNext()) {
+            PyroClient client = clients.next();
+            if (client.corkDeadline() <= now) {
+                clients.remove();
+                client.uncork();
+            }
+        }
     }
 
     private void executePendingTasks() {
@@ -116,22 +142,6 @@ public class PyroSelector {
         }
     }
 
-    private final void handleSocketTimeouts(long now) {
-        for (SelectionKey key : nioSelector.keys()) {
-            if (key.channel() instanceof SocketChannel) {
-                PyroClient client = (PyroClient) key.attachment();
-
-                if (client.didTimeout(now)) {
-                    try {
-                        throw new SocketTimeoutException("PyroNet detected NIO timeout");
-                    } catch (SocketTimeoutException exc) {
-                        client.onConnectionError(exc);
-                    }
-                }
-            }
-        }
-    }
-
     public void spawnNetworkThread(final String name) {
         // now no thread can access this selector
         //
@@ -171,6 +181,7 @@ public class PyroSelector {
     //
 
     private BlockingQueue<Runnable> tasks = new LinkedBlockingDeque<>();
+    private final ArrayList<PyroClient> corkedClients = new ArrayList<>();
 
     public void scheduleTask(Runnable task) {
         if (task == null) {
@@ -185,6 +196,23 @@ public class PyroSelector {
         wakeup();
     }
 
+    /**
+     * Runs the task on the network-thread after delay milliseconds,
+     * the returned handle allows to cancel it before
+     */
+    public HashedWheelTimer.Timeout scheduleTask(final Runnable task, long delay) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
+        return this.timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                scheduleTask(task);
+            }
+        }, delay);
+    }
+
     public void wakeup() {
         this.nioSelector.wakeup();
     }
@@ -192,11 +220,16 @@ public class PyroSelector {
     public void close() throws IOException {
         this.networkThread.interrupt();
         this.nioSelector.close();
-        this.networkBuffer.clear();
     }
 
     //
 
+    final void cork(PyroClient client) {
+        this.checkThread();
+
+        this.corkedClients.add(client);
+    }
+
     final SelectionKey register(SelectableChannel channel, int ops) throws IOException {
         return channel.register(this.nioSelector, ops);
     }
@@ -0,0 +1,96 @@
+package jawnae.pyronet;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of {@link PyroSelector}s, each one running its own network-thread,
+ * shared by any number of clients. Clients are bound to the least loaded
+ * selector when they are acquired and stay on it until they are released, so
+ * tasks scheduled by a client keep running sequentially on the same thread.
+ */
+public class PyroSelectorGroup {
+    private static volatile PyroSelectorGroup instance = null;
+
+    private final PyroSelector[] selectors;
+    private final AtomicInteger[] loads;
+    private volatile boolean isClosed;
+
+    public PyroSelectorGroup(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PyroSelectorGroup(String name, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        this.selectors = new PyroSelector[size];
+        this.loads = new AtomicInteger[size];
+        for (int i = 0; i < size; i++) {
+            this.selectors[i] = new PyroSelector();
+            this.selectors[i].spawnNetworkThread(name + "#" + i);
+            this.loads[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Default group shared by all connections of the JVM, sized to the number of cores
+     */
+    public static PyroSelectorGroup getInstance() {
+        PyroSelectorGroup localInstance = instance;
+        if (localInstance == null) {
+            synchronized (PyroSelectorGroup.class) {
+                localInstance = instance;
+                if (localInstance == null) {
+                    instance = localInstance = new PyroSelectorGroup("Selector Thread");
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    /**
+     * Binds a new client to the selector with the lowest load. Every call must be
+     * balanced with a call to {@link #release(PyroSelector)}.
+     */
+    public PyroSelector acquire() {
+        if (this.isClosed) {
+            throw new PyroException("selector group is closed");
+        }
+        int index = 0;
+        int minLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < this.loads.length; i++) {
+            final int load = this.loads[i].get();
+            if (load < minLoad) {
+                minLoad = load;
+                index = i;
+            }
+        }
+        this.loads[index].incrementAndGet();
+        return this.selectors[index];
+    }
+
+    public void release(PyroSelector selector) {
+        for (int i = 0; i < this.selectors.length; i++) {
+            if (this.selectors[i] == selector) {
+                this.loads[i].decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return this.selectors.length;
+    }
+
+    public int getLoad(int index) {
+        return this.loads[index].get();
+    }
+
+    public void close() throws IOException {
+        this.isClosed = true;
+        for (PyroSelector selector : this.selectors) {
+            selector.close();
+        }
+    }
+}
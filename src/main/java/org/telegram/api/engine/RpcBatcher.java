@@ -0,0 +1,396 @@
+package org.telegram.api.engine;
+
+import org.telegram.api.chat.TLAbsChat;
+import org.telegram.api.functions.channels.TLRequestChannelsDeleteMessages;
+import org.telegram.api.functions.channels.TLRequestChannelsGetChannels;
+import org.telegram.api.functions.channels.TLRequestChannelsGetMessages;
+import org.telegram.api.functions.messages.TLRequestMessagesGetMessages;
+import org.telegram.api.functions.messages.TLRequestMessagesGetMessagesViews;
+import org.telegram.api.functions.users.TLRequestUsersGetUsers;
+import org.telegram.api.input.chat.TLAbsInputChannel;
+import org.telegram.api.input.peer.TLAbsInputPeer;
+import org.telegram.api.input.user.TLAbsInputUser;
+import org.telegram.api.input.user.TLInputUser;
+import org.telegram.api.message.TLAbsMessage;
+import org.telegram.api.messages.TLAbsMessages;
+import org.telegram.api.messages.TLAffectedMessages;
+import org.telegram.api.messages.chats.TLMessagesChats;
+import org.telegram.api.user.TLAbsUser;
+import org.telegram.api.user.TLUser;
+import org.telegram.tl.TLIntVector;
+import org.telegram.tl.TLMethod;
+import org.telegram.tl.TLObject;
+import org.telegram.tl.TLVector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batches single-id calls to the methods taking vectors of ids: calls to the same method and
+ * peer are collected during a short window, or until the batch is full, and sent as one rpc call
+ * whose result, or error, is split back to every caller.
+ *
+ * Items missing from the answer complete with null. The deletion of channel messages completes
+ * every caller with the affected messages of the whole batch.
+ *
+ * @author Ruben Bermudez
+ */
+public class RpcBatcher {
+    /**
+     * The default window in milliseconds.
+     */
+    public static final int DEFAULT_WINDOW = 10;
+    /**
+     * The default maximum number of ids per call.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    private static final String TAG = "RpcBatcher";
+
+    private final Sender sender;
+    private final int window;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService timer;
+    private final HashMap<Object, Batch<?, ?, ?>> batches = new HashMap<>();
+    private final LongAdder batchedCalls = new LongAdder();
+    private final LongAdder sentCalls = new LongAdder();
+
+    /**
+     * Instantiates a new Rpc batcher with the default window and batch size, on the timer of the
+     * runtime of the api.
+     *
+     * @param api the api
+     */
+    public RpcBatcher(TelegramApi api) {
+        this(api, DEFAULT_WINDOW, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Instantiates a new Rpc batcher.
+     *
+     * @param api          the api
+     * @param window       the milliseconds a batch waits for more ids
+     * @param maxBatchSize the number of ids that sends a batch at once
+     */
+    public RpcBatcher(TelegramApi api, int window, int maxBatchSize) {
+        this(api::doRpcCallAsync, api.getRuntime().getTimer(), window, maxBatchSize);
+    }
+
+    /**
+     * Instantiates a new Rpc batcher sending the batches through a sender.
+     *
+     * @param sender       sends the rpc call of a batch
+     * @param timer        the timer of the windows
+     * @param window       the milliseconds a batch waits for more ids
+     * @param maxBatchSize the number of ids that sends a batch at once
+     */
+    RpcBatcher(Sender sender, ScheduledExecutorService timer, int window, int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.sender = sender;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+        this.timer = timer;
+    }
+
+    /**
+     * Gets user, batched in users.getUsers.
+     *
+     * @param user the user
+     * @return the future user
+     */
+    public CompletableFuture<TLAbsUser> getUser(TLAbsInputUser user) {
+        return add("users", () -> new Batch<TLAbsInputUser, TLVector<TLAbsUser>, TLAbsUser>() {
+            @Override
+            protected TLMethod<TLVector<TLAbsUser>> request(List<TLAbsInputUser> items) {
+                final TLRequestUsersGetUsers request = new TLRequestUsersGetUsers();
+                final TLVector<TLAbsInputUser> ids = new TLVector<>();
+                ids.addAll(items);
+                request.setId(ids);
+                return request;
+            }
+
+            @Override
+            protected TLAbsUser result(TLVector<TLAbsUser> response, int index, TLAbsInputUser item) {
+                for (TLAbsUser user : response) {
+                    if (item instanceof TLInputUser ? user.getId() == ((TLInputUser) item).getUserId() :
+                            user instanceof TLUser && ((TLUser) user).isSelf()) {
+                        return user;
+                    }
+                }
+                return null;
+            }
+        }, user);
+    }
+
+    /**
+     * Gets channel, batched in channels.getChannels.
+     *
+     * @param channelId the channel id
+     * @return the future channel
+     */
+    public CompletableFuture<TLAbsChat> getChannel(int channelId) {
+        return add("channels", () -> new Batch<Integer, TLMessagesChats, TLAbsChat>() {
+            @Override
+            protected TLMethod<TLMessagesChats> request(List<Integer> items) {
+                final TLRequestChannelsGetChannels request = new TLRequestChannelsGetChannels();
+                request.setId(toIntVector(items));
+                return request;
+            }
+
+            @Override
+            protected TLAbsChat result(TLMessagesChats response, int index, Integer item) {
+                for (TLAbsChat chat : response.getChats()) {
+                    if (chat.getId() == item) {
+                        return chat;
+                    }
+                }
+                return null;
+            }
+        }, channelId);
+    }
+
+    /**
+     * Gets message, batched in messages.getMessages.
+     *
+     * @param messageId the message id
+     * @return the future message
+     */
+    public CompletableFuture<TLAbsMessage> getMessage(int messageId) {
+        return add("messages", () -> new MessagesBatch() {
+            @Override
+            protected TLMethod<TLAbsMessages> request(List<Integer> items) {
+                final TLRequestMessagesGetMessages request = new TLRequestMessagesGetMessages();
+                request.setId(toIntVector(items));
+                return request;
+            }
+        }, messageId);
+    }
+
+    /**
+     * Gets channel message, batched in channels.getMessages per channel.
+     *
+     * @param channel   the channel
+     * @param messageId the message id
+     * @return the future message
+     */
+    public CompletableFuture<TLAbsMessage> getChannelMessage(TLAbsInputChannel channel, int messageId) {
+        return add(key("channelMessages", channel), () -> new MessagesBatch() {
+            @Override
+            protected TLMethod<TLAbsMessages> request(List<Integer> items) {
+                final TLRequestChannelsGetMessages request = new TLRequestChannelsGetMessages();
+                request.setChannel(channel);
+                request.setId(toIntVector(items));
+                return request;
+            }
+        }, messageId);
+    }
+
+    /**
+     * Gets message views, batched in messages.getMessagesViews per peer.
+     *
+     * @param peer      the peer
+     * @param messageId the message id
+     * @param increment true to increment the views
+     * @return the future views
+     */
+    public CompletableFuture<Integer> getMessageViews(TLAbsInputPeer peer, int messageId, boolean increment) {
+        return add(key(increment ? "views+" : "views", peer), () -> new Batch<Integer, TLIntVector, Integer>() {
+            @Override
+            protected TLMethod<TLIntVector> request(List<Integer> items) {
+                final TLRequestMessagesGetMessagesViews request = new TLRequestMessagesGetMessagesViews();
+                request.setPeer(peer);
+                request.setIncrement(increment);
+                request.setId(toIntVector(items));
+                return request;
+            }
+
+            @Override
+            protected Integer result(TLIntVector response, int index, Integer item) {
+                return index < response.size() ? response.get(index) : null;
+            }
+        }, messageId);
+    }
+
+    /**
+     * Deletes channel message, batched in channels.deleteMessages per channel.
+     *
+     * @param channel   the channel
+     * @param messageId the message id
+     * @return the future affected messages of the whole batch
+     */
+    public CompletableFuture<TLAffectedMessages> deleteChannelMessage(TLAbsInputChannel channel, int messageId) {
+        return add(key("deleteChannelMessages", channel), () -> new Batch<Integer, TLAffectedMessages, TLAffectedMessages>() {
+            @Override
+            protected TLMethod<TLAffectedMessages> request(List<Integer> items) {
+                final TLRequestChannelsDeleteMessages request = new TLRequestChannelsDeleteMessages();
+                request.setChannel(channel);
+                request.setId(toIntVector(items));
+                return request;
+            }
+
+            @Override
+            protected TLAffectedMessages result(TLAffectedMessages response, int index, Integer item) {
+                return response;
+            }
+        }, messageId);
+    }
+
+    /**
+     * Sends every pending batch now.
+     */
+    public void flush() {
+        final ArrayList<Batch<?, ?, ?>> pending;
+        synchronized (this.batches) {
+            pending = new ArrayList<>(this.batches.values());
+            this.batches.clear();
+        }
+        for (Batch<?, ?, ?> batch : pending) {
+            batch.timeout.cancel(false);
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends the pending batches.
+     */
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Gets batched calls.
+     *
+     * @return the number of single-id calls received
+     */
+    public long getBatchedCalls() {
+        return this.batchedCalls.sum();
+    }
+
+    /**
+     * Gets sent calls.
+     *
+     * @return the number of rpc calls sent for them
+     */
+    public long getSentCalls() {
+        return this.sentCalls.sum();
+    }
+
+    private <I, R> CompletableFuture<R> add(Object key, BatchFactory<I, R> factory, I item) {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        Batch<I, ?, R> full = null;
+        synchronized (this.batches) {
+            @SuppressWarnings("unchecked")
+            Batch<I, ?, R> batch = (Batch<I, ?, R>) this.batches.get(key);
+            if (batch == null) {
+                batch = factory.create();
+                batch.key = key;
+                this.batches.put(key, batch);
+                final Batch<I, ?, R> scheduled = batch;
+                batch.timeout = this.timer.schedule(() -> expire(scheduled), this.window, TimeUnit.MILLISECONDS);
+            }
+            batch.items.add(item);
+            batch.futures.add(future);
+            if (batch.items.size() >= this.maxBatchSize) {
+                this.batches.remove(key);
+                full = batch;
+            }
+        }
+        this.batchedCalls.increment();
+        if (full != null) {
+            full.timeout.cancel(false);
+            send(full);
+        }
+        return future;
+    }
+
+    private void expire(Batch<?, ?, ?> batch) {
+        synchronized (this.batches) {
+            if (!this.batches.remove(batch.key, batch)) {
+                return;
+            }
+        }
+        send(batch);
+    }
+
+    private <I, X extends TLObject, R> void send(Batch<I, X, R> batch) {
+        this.sentCalls.increment();
+        Logger.d(TAG, "Sending " + batch.items.size() + " ids of " + batch.key);
+        this.sender.send(batch.request(batch.items)).whenComplete((response, throwable) -> {
+            for (int i = 0; i < batch.futures.size(); i++) {
+                final CompletableFuture<R> future = batch.futures.get(i);
+                if (throwable != null) {
+                    future.completeExceptionally(throwable);
+                } else {
+                    try {
+                        future.complete(batch.result(response, i, batch.items.get(i)));
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Key of the batch of a method and peer, built from the serialized peer so calls for
+     * different peers never share a batch
+     */
+    private static Object key(String method, TLObject peer) {
+        try {
+            return method + ":" + Base64.getEncoder().encodeToString(peer.serialize());
+        } catch (IOException e) {
+            // Not batched with anything else
+            return new Object();
+        }
+    }
+
+    private static TLIntVector toIntVector(List<Integer> items) {
+        final TLIntVector vector = new TLIntVector();
+        vector.addAll(items);
+        return vector;
+    }
+
+    /**
+     * Sends an rpc call
+     */
+    interface Sender {
+        <T extends TLObject> CompletableFuture<T> send(TLMethod<T> method);
+    }
+
+    private interface BatchFactory<I, R> {
+        Batch<I, ?, R> create();
+    }
+
+    private abstract static class Batch<I, X extends TLObject, R> {
+        private final ArrayList<I> items = new ArrayList<>();
+        private final ArrayList<CompletableFuture<R>> futures = new ArrayList<>();
+        private Object key;
+        private ScheduledFuture<?> timeout;
+
+        protected abstract TLMethod<X> request(List<I> items);
+
+        protected abstract R result(X response, int index, I item);
+    }
+
+    private abstract static class MessagesBatch extends Batch<Integer, TLAbsMessages, TLAbsMessage> {
+        @Override
+        protected TLAbsMessage result(TLAbsMessages response, int index, Integer item) {
+            for (TLAbsMessage message : response.getMessages()) {
+                if (message.getId() == item) {
+                    return message;
+                }
+            }
+            return null;
+        }
+    }
+}
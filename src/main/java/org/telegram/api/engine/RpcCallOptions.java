@@ -0,0 +1,144 @@
+package org.telegram.api.engine;
+
+import org.telegram.mtproto.schedule.RpcPriority;
+
+/**
+ * Options of an rpc call made with {@link TelegramApi#doRpcCallAsync(org.telegram.tl.TLMethod, RpcCallOptions)}.
+ * Instances are immutable, every setter returns a modified copy.
+ *
+ * @author Ruben Bermudez
+ */
+public class RpcCallOptions {
+    /**
+     * The default timeout in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 30000;
+
+    private static final RpcCallOptions DEFAULT = new RpcCallOptions(DEFAULT_TIMEOUT, 0, true, false, null);
+
+    private final int timeout;
+    private final int dcId;
+    private final boolean authRequired;
+    private final boolean gzip;
+    private final RpcPriority priority;
+
+    private RpcCallOptions(int timeout, int dcId, boolean authRequired, boolean gzip, RpcPriority priority) {
+        this.timeout = timeout;
+        this.dcId = dcId;
+        this.authRequired = authRequired;
+        this.gzip = gzip;
+        this.priority = priority;
+    }
+
+    /**
+     * Default options: main dc, authorized, not compressed, {@link #DEFAULT_TIMEOUT} and the
+     * default priority of the method.
+     *
+     * @return the rpc call options
+     */
+    public static RpcCallOptions defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets timeout.
+     *
+     * @return the timeout in milliseconds
+     */
+    public int getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Sets timeout.
+     *
+     * @param timeout the timeout in milliseconds
+     * @return the rpc call options
+     */
+    public RpcCallOptions setTimeout(int timeout) {
+        return new RpcCallOptions(timeout, this.dcId, this.authRequired, this.gzip, this.priority);
+    }
+
+    /**
+     * Gets dc id.
+     *
+     * @return the dc id, 0 for the main connection
+     */
+    public int getDcId() {
+        return this.dcId;
+    }
+
+    /**
+     * Sets dc id.
+     *
+     * @param dcId the dc id, 0 for the main connection
+     * @return the rpc call options
+     */
+    public RpcCallOptions setDcId(int dcId) {
+        return new RpcCallOptions(this.timeout, dcId, this.authRequired, this.gzip, this.priority);
+    }
+
+    /**
+     * Is auth required.
+     *
+     * @return true if the dc must be authorized before sending the call
+     */
+    public boolean isAuthRequired() {
+        return this.authRequired;
+    }
+
+    /**
+     * Sets auth required.
+     *
+     * @param authRequired true if the dc must be authorized before sending the call
+     * @return the rpc call options
+     */
+    public RpcCallOptions setAuthRequired(boolean authRequired) {
+        return new RpcCallOptions(this.timeout, this.dcId, authRequired, this.gzip, this.priority);
+    }
+
+    /**
+     * Is gzip.
+     *
+     * @return true if the request is sent compressed
+     */
+    public boolean isGzip() {
+        return this.gzip;
+    }
+
+    /**
+     * Sets gzip.
+     *
+     * @param gzip true if the request is sent compressed
+     * @return the rpc call options
+     */
+    public RpcCallOptions setGzip(boolean gzip) {
+        return new RpcCallOptions(this.timeout, this.dcId, this.authRequired, gzip, this.priority);
+    }
+
+    /**
+     * Gets priority.
+     *
+     * @return the traffic class, null to use the default one of the method
+     */
+    public RpcPriority getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Sets priority.
+     *
+     * @param priority the traffic class, null to use the default one of the method
+     * @return the rpc call options
+     * @see TelegramApi#setDefaultPriority(Class, RpcPriority)
+     */
+    public RpcCallOptions setPriority(RpcPriority priority) {
+        return new RpcCallOptions(this.timeout, this.dcId, this.authRequired, this.gzip, priority);
+    }
+
+    @Override
+    public String toString() {
+        return "timeout=" + this.timeout + " dc=" + this.dcId + " auth=" + this.authRequired + " gzip=" + this.gzip +
+                " priority=" + this.priority;
+    }
+}
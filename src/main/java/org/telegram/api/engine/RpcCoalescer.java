@@ -0,0 +1,256 @@
+package org.telegram.api.engine;
+
+import org.telegram.api.functions.channels.TLRequestChannelsGetChannels;
+import org.telegram.api.functions.channels.TLRequestChannelsGetFullChannel;
+import org.telegram.api.functions.channels.TLRequestChannelsGetParticipant;
+import org.telegram.api.functions.contacts.TLRequestContactsResolveUsername;
+import org.telegram.api.functions.help.TLRequestHelpGetConfig;
+import org.telegram.api.functions.help.TLRequestHelpGetNearestDc;
+import org.telegram.api.functions.messages.TLRequestMessagesGetChats;
+import org.telegram.api.functions.messages.TLRequestMessagesGetFullChat;
+import org.telegram.api.functions.users.TLRequestUsersGetFullUser;
+import org.telegram.api.functions.users.TLRequestUsersGetUsers;
+import org.telegram.tl.TLMethod;
+import org.telegram.tl.TLObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Single-flight layer of {@link TelegramApi#doRpcCallAsync(TLMethod, RpcCallOptions)}: concurrent
+ * calls to the same read-only method, with the same serialized arguments and options, share one
+ * rpc call and its result. It is disabled by default.
+ *
+ * Only the methods in the allowlist are coalesced, which by default holds lookups without side
+ * effects (users, chats, channels, usernames and config). All the callers get the same result
+ * instance, so they must not modify it, and share the timeout of the first caller. Cancelling
+ * the future of a caller only cancels the rpc call when no other caller is waiting for it.
+ *
+ * @author Ruben Bermudez
+ */
+public class RpcCoalescer {
+    private static final String TAG = "RpcCoalescer";
+
+    private final HashMap<Key, Flight> flights = new HashMap<>();
+    private final Set<Class<?>> allowlist = new CopyOnWriteArraySet<>(Arrays.<Class<?>>asList(
+            TLRequestUsersGetFullUser.class,
+            TLRequestUsersGetUsers.class,
+            TLRequestChannelsGetFullChannel.class,
+            TLRequestChannelsGetChannels.class,
+            TLRequestChannelsGetParticipant.class,
+            TLRequestContactsResolveUsername.class,
+            TLRequestMessagesGetFullChat.class,
+            TLRequestMessagesGetChats.class,
+            TLRequestHelpGetConfig.class,
+            TLRequestHelpGetNearestDc.class));
+    private final LongAdder coalesced = new LongAdder();
+    private volatile boolean enabled;
+
+    /**
+     * Is enabled.
+     *
+     * @return the boolean
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Sets enabled.
+     *
+     * @param enabled true to coalesce the calls in the allowlist
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Adds a method to the allowlist. It must not have side effects on the server.
+     *
+     * @param method the class of the method
+     */
+    public void allow(Class<? extends TLMethod> method) {
+        this.allowlist.add(method);
+    }
+
+    /**
+     * Removes a method from the allowlist.
+     *
+     * @param method the class of the method
+     */
+    public void disallow(Class<? extends TLMethod> method) {
+        this.allowlist.remove(method);
+    }
+
+    /**
+     * Is coalescable.
+     *
+     * @param method the method
+     * @return true if the calls to the method are coalesced
+     */
+    public boolean isCoalescable(TLMethod<?> method) {
+        return this.enabled && this.allowlist.contains(method.getClass());
+    }
+
+    /**
+     * Gets coalesced count.
+     *
+     * @return the number of calls that joined a call already in flight
+     */
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * Gets in flight count.
+     *
+     * @return the number of distinct calls in flight
+     */
+    public int getInFlightCount() {
+        synchronized (this.flights) {
+            return this.flights.size();
+        }
+    }
+
+    /**
+     * Joins the call in flight with the same method, arguments and options, or starts it
+     *
+     * @param method  the method
+     * @param options the options
+     * @param sender  starts the rpc call
+     * @return the future result of this caller
+     */
+    @SuppressWarnings("unchecked")
+    <T extends TLObject> CompletableFuture<T> call(TLMethod<T> method, RpcCallOptions options,
+                                                   Function<TLMethod<T>, CompletableFuture<T>> sender) {
+        final Key key;
+        try {
+            key = new Key(method.serialize(), options);
+        } catch (IOException e) {
+            Logger.e(TAG, e);
+            return sender.apply(method);
+        }
+
+        final Flight flight;
+        final boolean isLeader;
+        synchronized (this.flights) {
+            Flight current = this.flights.get(key);
+            isLeader = current == null;
+            if (isLeader) {
+                current = new Flight();
+                this.flights.put(key, current);
+            }
+            current.waiters++;
+            flight = current;
+        }
+
+        final Waiter<T> waiter = new Waiter<>(flight);
+        flight.result.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                waiter.completeExceptionally(throwable);
+            } else {
+                waiter.complete((T) result);
+            }
+        });
+
+        if (isLeader) {
+            final CompletableFuture<T> source = sender.apply(method);
+            flight.source = source;
+            source.whenComplete((result, throwable) -> {
+                synchronized (this.flights) {
+                    this.flights.remove(key, flight);
+                }
+                if (throwable != null) {
+                    flight.result.completeExceptionally(throwable);
+                } else {
+                    flight.result.complete(result);
+                }
+            });
+        } else {
+            this.coalesced.increment();
+            Logger.d(TAG, "Joined in-flight " + method);
+        }
+        return waiter;
+    }
+
+    /**
+     * Leaves a call when a caller cancels, and cancels it if it was the last one waiting
+     */
+    private void release(Flight flight) {
+        final CompletableFuture<?> source;
+        synchronized (this.flights) {
+            flight.waiters--;
+            if (flight.waiters > 0) {
+                return;
+            }
+            this.flights.values().remove(flight);
+            source = flight.source;
+        }
+        if (source != null) {
+            source.cancel(false);
+        }
+    }
+
+    private static final class Key {
+        private final byte[] request;
+        private final int dcId;
+        private final boolean authRequired;
+        private final boolean gzip;
+        private final int hash;
+
+        private Key(byte[] request, RpcCallOptions options) {
+            this.request = request;
+            this.dcId = options.getDcId();
+            this.authRequired = options.isAuthRequired();
+            this.gzip = options.isGzip();
+            this.hash = 31 * (31 * (31 * Arrays.hashCode(request) + this.dcId) + (this.authRequired ? 1 : 0)) + (this.gzip ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return this.dcId == key.dcId && this.authRequired == key.authRequired && this.gzip == key.gzip &&
+                    Arrays.equals(this.request, key.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    private static final class Flight {
+        private final CompletableFuture<TLObject> result = new CompletableFuture<>();
+        private volatile CompletableFuture<?> source;
+        private int waiters;
+    }
+
+    private class Waiter<T extends TLObject> extends CompletableFuture<T> {
+        private final Flight flight;
+
+        private Waiter(Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                release(this.flight);
+            }
+            return cancelled;
+        }
+    }
+}
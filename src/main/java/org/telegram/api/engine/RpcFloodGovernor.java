@@ -0,0 +1,634 @@
+package org.telegram.api.engine;
+
+import org.telegram.mtproto.util.EngineThreads;
+import org.telegram.tl.TLMethod;
+import org.telegram.tl.TLObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Flood-wait governor of the rpc calls of an account. Every call goes through a token bucket of
+ * its method and, when it has one, of its peer (or channel). Buckets don't limit anything until a
+ * FLOOD_WAIT_X error comes back: then the bucket of the peer, or of the method, is banned for X
+ * seconds and its rate drops to half of the rate that caused the error. Each success raises it
+ * again, quickly up to the last known ceiling and slowly above it.
+ *
+ * Calls waiting for a bucket are queued instead of failing, and calls failing with a flood wait
+ * are sent again after it, unless the wait is longer than {@link #getMaxWait()} or than the
+ * timeout of the call: then they fail at once with the FLOOD_WAIT error without reaching the
+ * server, as they did before, instead of timing out. The bans can be persisted across restarts
+ * with {@link #setStorage(Storage)}.
+ *
+ * Waits up to 10 seconds are absorbed by {@link org.telegram.mtproto.MTProto} and never reach it.
+ *
+ * @author Ruben Bermudez
+ */
+public class RpcFloodGovernor {
+    /**
+     * The default maximum wait in milliseconds.
+     */
+    public static final long DEFAULT_MAX_WAIT = 5 * 60 * 1000;
+
+    private static final String TAG = "RpcFloodGovernor";
+    private static final String FLOOD_WAIT = "FLOOD_WAIT_";
+    private static final int FLOOD_WAIT_CODE = 420;
+    private static final int MAX_RETRIES = 3;
+    private static final double MIN_RATE = 1.0 / 60;
+    private static final long RATE_WINDOW = 10000;
+    private static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+    private static final Method NO_PEER;
+
+    static {
+        try {
+            NO_PEER = Object.class.getMethod("hashCode");
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final HashMap<String, Limit> limits = new HashMap<>();
+    private final ConcurrentHashMap<Class<?>, Method> peerGetters = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final boolean ownsTimer;
+    private final ScheduledFuture<?> idleCleanup;
+    private final Set<Governed<?>> queued = ConcurrentHashMap.newKeySet();
+    private final LongAdder delayedCalls = new LongAdder();
+    private final LongAdder totalWait = new LongAdder();
+    private final AtomicLong maxObservedWait = new AtomicLong();
+    private final LongAdder floodWaits = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean enabled = true;
+    private volatile long maxWait = DEFAULT_MAX_WAIT;
+    private volatile Storage storage;
+    private volatile boolean isClosed;
+
+    /**
+     * Instantiates a new Rpc flood governor with a timer thread of its own.
+     */
+    public RpcFloodGovernor() {
+        this(createTimer(), true);
+    }
+
+    /**
+     * Instantiates a new Rpc flood governor on a shared timer, which is not stopped on close.
+     *
+     * @param timer the timer of the queued calls
+     */
+    public RpcFloodGovernor(ScheduledExecutorService timer) {
+        this(timer, false);
+    }
+
+    private RpcFloodGovernor(ScheduledExecutorService timer, boolean ownsTimer) {
+        this.timer = timer;
+        this.ownsTimer = ownsTimer;
+        this.idleCleanup = timer.scheduleWithFixedDelay(this::removeIdleLimits, IDLE_TIMEOUT, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledExecutorService createTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> EngineThreads.newThread(runnable, "FloodGovernor", true));
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Is enabled.
+     *
+     * @return the boolean
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Sets enabled.
+     *
+     * @param enabled false to send the calls as they come, flood waits are returned to the callers
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Gets max wait.
+     *
+     * @return the longest wait in milliseconds a call is queued for
+     */
+    public long getMaxWait() {
+        return this.maxWait;
+    }
+
+    /**
+     * Sets max wait.
+     *
+     * @param maxWait the longest wait in milliseconds a call is queued for
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Sets storage of the bans, and loads the bans still running from it.
+     *
+     * @param storage the storage, null to keep them in memory
+     */
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+        if (storage == null) {
+            return;
+        }
+        final Map<String, Long> bans;
+        try {
+            bans = storage.load();
+        } catch (IOException e) {
+            Logger.e(TAG, e);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (this.limits) {
+            for (Map.Entry<String, Long> ban : bans.entrySet()) {
+                if (ban.getValue() > now) {
+                    final Limit limit = getLimit(ban.getKey(), now);
+                    limit.bannedUntil = Math.max(limit.bannedUntil, ban.getValue());
+                }
+            }
+        }
+        Logger.d(TAG, "Loaded " + bans.size() + " flood bans");
+    }
+
+    /**
+     * Gets queue depth.
+     *
+     * @return the number of calls waiting for a bucket
+     */
+    public int getQueueDepth() {
+        return this.queued.size();
+    }
+
+    /**
+     * Gets delayed calls.
+     *
+     * @return the number of calls that had to wait
+     */
+    public long getDelayedCalls() {
+        return this.delayedCalls.sum();
+    }
+
+    /**
+     * Gets total wait.
+     *
+     * @return the sum of the waits of the calls in milliseconds
+     */
+    public long getTotalWait() {
+        return this.totalWait.sum();
+    }
+
+    /**
+     * Gets max observed wait.
+     *
+     * @return the longest wait of a call in milliseconds
+     */
+    public long getMaxObservedWait() {
+        return this.maxObservedWait.get();
+    }
+
+    /**
+     * Gets flood waits.
+     *
+     * @return the number of flood wait errors received
+     */
+    public long getFloodWaits() {
+        return this.floodWaits.sum();
+    }
+
+    /**
+     * Gets rejected calls.
+     *
+     * @return the number of calls failed because the wait was longer than the max wait
+     */
+    public long getRejectedCalls() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * Gets ban.
+     *
+     * @param method the method
+     * @return the milliseconds until the method, or its peer, can be called again
+     */
+    public long getBan(TLMethod<?> method) {
+        final String[] keys = keys(method);
+        final long now = System.currentTimeMillis();
+        long bannedUntil = now;
+        synchronized (this.limits) {
+            for (String key : keys) {
+                final Limit limit = this.limits.get(key);
+                if (limit != null) {
+                    bannedUntil = Math.max(bannedUntil, limit.bannedUntil);
+                }
+            }
+        }
+        return bannedUntil - now;
+    }
+
+    /**
+     * Stops the timer, the queued calls fail.
+     */
+    public void close() {
+        this.isClosed = true;
+        if (this.ownsTimer) {
+            this.timer.shutdownNow();
+        } else {
+            this.idleCleanup.cancel(false);
+        }
+        for (Governed<?> governed : this.queued) {
+            final ScheduledFuture<?> pending = governed.pending;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            governed.completeExceptionally(new RpcException(0, "Connection is closed"));
+        }
+        this.queued.clear();
+    }
+
+    /**
+     * Sends the call when its buckets allow it, and again after a flood wait. A call that would
+     * wait longer than its timeout fails at once with FLOOD_WAIT_X instead of timing out.
+     *
+     * @param method  the method
+     * @param timeout the timeout of the call in milliseconds, 0 or less for none
+     * @param sender  starts the rpc call
+     * @return the future result
+     */
+    <T extends TLObject> CompletableFuture<T> call(TLMethod<T> method, long timeout, Function<TLMethod<T>, CompletableFuture<T>> sender) {
+        if (!this.enabled) {
+            return sender.apply(method);
+        }
+        final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        final Governed<T> governed = new Governed<>(method, keys(method), deadline, sender);
+        schedule(governed);
+        return governed;
+    }
+
+    private <T extends TLObject> void schedule(Governed<T> governed) {
+        final long now = System.currentTimeMillis();
+        final long maxDelay = Math.max(0, Math.min(this.maxWait, governed.deadline - now));
+        long start = now;
+        synchronized (this.limits) {
+            final Limit[] callLimits = new Limit[governed.keys.length];
+            for (int i = 0; i < callLimits.length; i++) {
+                callLimits[i] = getLimit(governed.keys[i], now);
+                start = Math.max(start, callLimits[i].nextStart(now));
+            }
+            if (start - now <= maxDelay) {
+                for (Limit limit : callLimits) {
+                    limit.reserve(start, now);
+                }
+            }
+        }
+
+        final long delay = start - now;
+        if (delay > maxDelay) {
+            this.rejected.increment();
+            Logger.w(TAG, "Rejected " + governed.method + ", flood wait of " + delay + " ms");
+            governed.completeExceptionally(new RpcException(FLOOD_WAIT_CODE, FLOOD_WAIT + ((delay + 999) / 1000)));
+        } else if (delay <= 0) {
+            send(governed);
+        } else {
+            this.delayedCalls.increment();
+            this.totalWait.add(delay);
+            this.maxObservedWait.accumulateAndGet(delay, Math::max);
+            this.queued.add(governed);
+            try {
+                if (this.isClosed) {
+                    throw new IllegalStateException("Governor is closed");
+                }
+                governed.pending = this.timer.schedule(() -> {
+                    this.queued.remove(governed);
+                    send(governed);
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                this.queued.remove(governed);
+                governed.completeExceptionally(new RpcException(0, "Connection is closed"));
+            }
+        }
+    }
+
+    private <T extends TLObject> void send(Governed<T> governed) {
+        if (governed.isDone()) {
+            return;
+        }
+        final CompletableFuture<T> source = governed.sender.apply(governed.method);
+        governed.source = source;
+        if (governed.isCancelled()) {
+            source.cancel(false);
+        }
+        source.whenComplete((result, throwable) -> {
+            final int floodWait = getFloodWait(throwable);
+            if (floodWait > 0) {
+                onFloodWait(governed.keys, floodWait);
+                if (governed.retries++ < MAX_RETRIES) {
+                    schedule(governed);
+                    return;
+                }
+            } else if (throwable == null) {
+                onSuccess(governed.keys);
+            }
+            if (throwable != null) {
+                governed.completeExceptionally(throwable);
+            } else {
+                governed.complete(result);
+            }
+        });
+    }
+
+    private void onFloodWait(String[] keys, int seconds) {
+        this.floodWaits.increment();
+        final long now = System.currentTimeMillis();
+        // The ban goes to the narrowest bucket, the peer one when there is a peer
+        final String key = keys[keys.length - 1];
+        final Map<String, Long> bans;
+        synchronized (this.limits) {
+            getLimit(key, now).onFloodWait(seconds, now);
+            bans = getBans(now);
+        }
+        Logger.w(TAG, "Flood wait of " + seconds + " s for " + key);
+        final Storage currentStorage = this.storage;
+        if (currentStorage != null) {
+            try {
+                currentStorage.save(bans);
+            } catch (IOException e) {
+                Logger.e(TAG, e);
+            }
+        }
+    }
+
+    private void onSuccess(String[] keys) {
+        synchronized (this.limits) {
+            for (String key : keys) {
+                final Limit limit = this.limits.get(key);
+                if (limit != null) {
+                    limit.onSuccess();
+                }
+            }
+        }
+    }
+
+    private Map<String, Long> getBans(long now) {
+        final HashMap<String, Long> bans = new HashMap<>();
+        for (Map.Entry<String, Limit> entry : this.limits.entrySet()) {
+            if (entry.getValue().bannedUntil > now) {
+                bans.put(entry.getKey(), entry.getValue().bannedUntil);
+            }
+        }
+        return bans;
+    }
+
+    private Limit getLimit(String key, long now) {
+        Limit limit = this.limits.get(key);
+        if (limit == null) {
+            limit = new Limit(now);
+            this.limits.put(key, limit);
+        }
+        return limit;
+    }
+
+    private void removeIdleLimits() {
+        final long now = System.currentTimeMillis();
+        synchronized (this.limits) {
+            final Iterator<Limit> iterator = this.limits.values().iterator();
+            while (iterator.hasNext()) {
+                final Limit limit = iterator.next();
+                if (limit.bannedUntil < now && limit.lastUse + IDLE_TIMEOUT < now) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static int getFloodWait(Throwable throwable) {
+        if (throwable instanceof RpcException && ((RpcException) throwable).getErrorCode() == FLOOD_WAIT_CODE) {
+            final String tag = ((RpcException) throwable).getErrorTag();
+            if (tag.startsWith(FLOOD_WAIT)) {
+                try {
+                    return Integer.parseInt(tag.substring(FLOOD_WAIT.length()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Keys of the buckets of a method: the method, and the method and peer when it has a peer
+     */
+    private String[] keys(TLMethod<?> method) {
+        final String methodKey = method.getClass().getSimpleName();
+        final Method getter = this.peerGetters.computeIfAbsent(method.getClass(), RpcFloodGovernor::findPeerGetter);
+        if (getter != NO_PEER) {
+            try {
+                final Object peer = getter.invoke(method);
+                if (peer instanceof TLObject) {
+                    return new String[]{methodKey, methodKey + "/" + Base64.getEncoder().encodeToString(((TLObject) peer).serialize())};
+                }
+            } catch (ReflectiveOperationException | IOException e) {
+                Logger.e(TAG, e);
+            }
+        }
+        return new String[]{methodKey};
+    }
+
+    private static Method findPeerGetter(Class<?> methodClass) {
+        for (String name : new String[]{"getPeer", "getChannel"}) {
+            try {
+                final Method getter = methodClass.getMethod(name);
+                if (TLObject.class.isAssignableFrom(getter.getReturnType())) {
+                    return getter;
+                }
+            } catch (NoSuchMethodException ignored) {
+            }
+        }
+        return NO_PEER;
+    }
+
+    /**
+     * Creates a storage keeping the bans in a file
+     *
+     * @param fileName the file name
+     * @return the storage
+     */
+    public static Storage fileStorage(String fileName) {
+        return new Storage() {
+            @Override
+            public Map<String, Long> load() throws IOException {
+                final HashMap<String, Long> bans = new HashMap<>();
+                final File file = new File(fileName);
+                if (!file.exists()) {
+                    return bans;
+                }
+                try (DataInputStream is = new DataInputStream(new FileInputStream(file))) {
+                    final int count = is.readInt();
+                    for (int i = 0; i < count; i++) {
+                        bans.put(is.readUTF(), is.readLong());
+                    }
+                }
+                return bans;
+            }
+
+            @Override
+            public synchronized void save(Map<String, Long> bans) throws IOException {
+                final File file = new File(fileName);
+                final File tempFile = new File(fileName + ".tmp");
+                try (DataOutputStream os = new DataOutputStream(new FileOutputStream(tempFile))) {
+                    os.writeInt(bans.size());
+                    for (Map.Entry<String, Long> ban : bans.entrySet()) {
+                        os.writeUTF(ban.getKey());
+                        os.writeLong(ban.getValue());
+                    }
+                }
+                if (!tempFile.renameTo(file)) {
+                    file.delete();
+                    if (!tempFile.renameTo(file)) {
+                        throw new IOException("Can't write " + fileName);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Storage of the bans running, by bucket key
+     */
+    public interface Storage {
+        /**
+         * Loads the bans.
+         *
+         * @return the time in milliseconds each bucket is banned until
+         * @throws IOException the iO exception
+         */
+        Map<String, Long> load() throws IOException;
+
+        /**
+         * Saves the bans, replacing the saved ones.
+         *
+         * @param bans the time in milliseconds each bucket is banned until
+         * @throws IOException the iO exception
+         */
+        void save(Map<String, Long> bans) throws IOException;
+    }
+
+    /**
+     * Token bucket of a method or a peer. Its rate is unlimited until the first flood wait.
+     */
+    private static final class Limit {
+        private double rate = Double.POSITIVE_INFINITY;
+        private double ceiling;
+        private long nextFree;
+        private long bannedUntil;
+        private long lastUse;
+        private long windowStart;
+        private int windowCount;
+        private int lastWindowCount;
+
+        private Limit(long now) {
+            this.windowStart = now;
+            this.lastUse = now;
+        }
+
+        private long nextStart(long now) {
+            long start = Math.max(now, this.bannedUntil);
+            if (!Double.isInfinite(this.rate)) {
+                start = Math.max(start, this.nextFree);
+            }
+            return start;
+        }
+
+        private void reserve(long start, long now) {
+            this.lastUse = now;
+            if (!Double.isInfinite(this.rate)) {
+                this.nextFree = start + (long) (1000 / this.rate);
+            }
+            if (now - this.windowStart >= RATE_WINDOW) {
+                this.lastWindowCount = now - this.windowStart < 2 * RATE_WINDOW ? this.windowCount : 0;
+                this.windowStart = now;
+                this.windowCount = 0;
+            }
+            this.windowCount++;
+        }
+
+        /**
+         * Calls per second sent during the last window and the current one
+         */
+        private double observedRate(long now) {
+            final long elapsed = now - this.windowStart + (this.lastWindowCount > 0 ? RATE_WINDOW : 0);
+            return (this.lastWindowCount + this.windowCount) * 1000.0 / Math.max(elapsed, 1000);
+        }
+
+        private void onFloodWait(int seconds, long now) {
+            this.bannedUntil = Math.max(this.bannedUntil, now + seconds * 1000L);
+            this.ceiling = Math.max(MIN_RATE, observedRate(now));
+            this.rate = Math.max(MIN_RATE, this.ceiling / 2);
+            this.nextFree = this.bannedUntil;
+        }
+
+        private void onSuccess() {
+            if (!Double.isInfinite(this.rate)) {
+                this.rate = this.rate < this.ceiling ? Math.min(this.ceiling, this.rate * 1.05) : this.rate * 1.005;
+            }
+        }
+    }
+
+    private final class Governed<T extends TLObject> extends CompletableFuture<T> {
+        private final TLMethod<T> method;
+        private final String[] keys;
+        private final long deadline;
+        private final Function<TLMethod<T>, CompletableFuture<T>> sender;
+        private volatile ScheduledFuture<?> pending;
+        private volatile CompletableFuture<T> source;
+        private int retries;
+
+        private Governed(TLMethod<T> method, String[] keys, long deadline, Function<TLMethod<T>, CompletableFuture<T>> sender) {
+            this.method = method;
+            this.keys = keys;
+            this.deadline = deadline;
+            this.sender = sender;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                final ScheduledFuture<?> currentPending = this.pending;
+                if (currentPending != null) {
+                    currentPending.cancel(false);
+                }
+                RpcFloodGovernor.this.queued.remove(this);
+                final CompletableFuture<T> currentSource = this.source;
+                if (currentSource != null) {
+                    currentSource.cancel(false);
+                }
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package org.telegram.api.engine;
+
+import org.telegram.api.chat.TLAbsChat;
+import org.telegram.api.contacts.TLResolvedPeer;
+import org.telegram.api.functions.channels.TLRequestChannelsGetFullChannel;
+import org.telegram.api.functions.contacts.TLRequestContactsResolveUsername;
+import org.telegram.api.functions.help.TLRequestHelpGetConfig;
+import org.telegram.api.functions.messages.TLRequestMessagesGetFullChat;
+import org.telegram.api.functions.messages.TLRequestMessagesGetStickersSet;
+import org.telegram.api.functions.messages.TLRequestMessagesGetWebPagePreview;
+import org.telegram.api.functions.users.TLRequestUsersGetFullUser;
+import org.telegram.api.input.chat.TLInputChannel;
+import org.telegram.api.input.user.TLInputUser;
+import org.telegram.api.peer.TLAbsPeer;
+import org.telegram.api.peer.TLPeerChannel;
+import org.telegram.api.peer.TLPeerChat;
+import org.telegram.api.peer.TLPeerUser;
+import org.telegram.api.update.TLAbsUpdate;
+import org.telegram.api.update.TLUpdateChannel;
+import org.telegram.api.update.TLUpdateChannelPinnedMessage;
+import org.telegram.api.update.TLUpdateChatAdmin;
+import org.telegram.api.update.TLUpdateChatParticipantAdd;
+import org.telegram.api.update.TLUpdateChatParticipantAdmin;
+import org.telegram.api.update.TLUpdateChatParticipantDelete;
+import org.telegram.api.update.TLUpdateChatParticipants;
+import org.telegram.api.update.TLUpdateConfig;
+import org.telegram.api.update.TLUpdateDcOptions;
+import org.telegram.api.update.TLUpdateNewStickerSet;
+import org.telegram.api.update.TLUpdateStickerSets;
+import org.telegram.api.update.TLUpdateStickerSetsOrder;
+import org.telegram.api.update.TLUpdateUserName;
+import org.telegram.api.update.TLUpdateUserPhone;
+import org.telegram.api.update.TLUpdateUserPhoto;
+import org.telegram.api.update.TLUpdateWebPage;
+import org.telegram.api.updates.TLAbsUpdates;
+import org.telegram.api.updates.TLUpdateShort;
+import org.telegram.api.updates.TLUpdates;
+import org.telegram.api.updates.TLUpdatesCombined;
+import org.telegram.api.user.TLAbsUser;
+import org.telegram.tl.TLMethod;
+import org.telegram.tl.TLObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Response cache of {@link TelegramApi#doRpcCallAsync(TLMethod, RpcCallOptions)}, and so of the
+ * sync calls too, for read-mostly methods. Installed with {@link TelegramApi#setResponseCache(RpcResponseCache)}.
+ *
+ * Answers are kept for the ttl of their method in an lru bounded by size, keyed by the serialized
+ * method, which starts with its class id, and the dc. Rpc errors with a negative ttl, like
+ * USERNAME_NOT_OCCUPIED, are cached too. Updates about a user, chat, channel, the config,
+ * sticker sets or web pages drop the entries related to them. All the callers get the same
+ * cached instance, so they must not modify it.
+ *
+ * @author Ruben Bermudez
+ */
+public class RpcResponseCache {
+    /**
+     * The default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final String TAG = "RpcResponseCache";
+    private static final String CONFIG = "config";
+    private static final String USER = "user:";
+    private static final String CHAT = "chat:";
+    private static final String CHANNEL = "channel:";
+    private static final String USERNAME = "username:";
+
+    private final int maxEntries;
+    private final LinkedHashMap<Key, CachedAnswer> entries;
+    private final ConcurrentHashMap<Class<?>, Long> ttls = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> negativeTtls = new ConcurrentHashMap<>();
+    private final HashSet<InFlight> inFlight = new HashSet<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Instantiates a new Rpc response cache with {@link #DEFAULT_MAX_ENTRIES}.
+     */
+    public RpcResponseCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Instantiates a new Rpc response cache with the default ttls.
+     *
+     * @param maxEntries the maximum number of entries, the least recently used are dropped
+     */
+    public RpcResponseCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, CachedAnswer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedAnswer> eldest) {
+                if (size() > RpcResponseCache.this.maxEntries) {
+                    RpcResponseCache.this.evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        setTtl(TLRequestHelpGetConfig.class, 60 * 60 * 1000);
+        setTtl(TLRequestMessagesGetFullChat.class, 60 * 1000);
+        setTtl(TLRequestChannelsGetFullChannel.class, 60 * 1000);
+        setTtl(TLRequestContactsResolveUsername.class, 10 * 60 * 1000);
+        setTtl(TLRequestMessagesGetWebPagePreview.class, 10 * 60 * 1000);
+        setTtl(TLRequestMessagesGetStickersSet.class, 60 * 60 * 1000);
+        setNegativeTtl("USERNAME_NOT_OCCUPIED", 60 * 1000);
+        setNegativeTtl("USERNAME_INVALID", 60 * 1000);
+    }
+
+    /**
+     * Sets ttl of the answers of a method. It must be read-only.
+     *
+     * @param method the class of the method
+     * @param ttl    the ttl in milliseconds, 0 to stop caching it
+     */
+    public void setTtl(Class<? extends TLMethod> method, long ttl) {
+        if (ttl > 0) {
+            this.ttls.put(method, ttl);
+        } else {
+            this.ttls.remove(method);
+            invalidate(method);
+        }
+    }
+
+    /**
+     * Sets ttl of an rpc error of the cached methods.
+     *
+     * @param errorTag the error tag, like USERNAME_NOT_OCCUPIED
+     * @param ttl      the ttl in milliseconds, 0 to stop caching it
+     */
+    public void setNegativeTtl(String errorTag, long ttl) {
+        if (ttl > 0) {
+            this.negativeTtls.put(errorTag, ttl);
+        } else {
+            this.negativeTtls.remove(errorTag);
+        }
+    }
+
+    /**
+     * Is cacheable.
+     *
+     * @param method the method
+     * @return true if the answers of the method are cached
+     */
+    public boolean isCacheable(TLMethod<?> method) {
+        return this.ttls.containsKey(method.getClass());
+    }
+
+    /**
+     * Answers from the cache, or calls the method and caches its answer
+     *
+     * @param method  the method
+     * @param options the options
+     * @param sender  starts the rpc call
+     * @return the future result
+     */
+    @SuppressWarnings("unchecked")
+    <T extends TLObject> CompletableFuture<T> call(TLMethod<T> method, RpcCallOptions options,
+                                                   Function<TLMethod<T>, CompletableFuture<T>> sender) {
+        final Key key;
+        try {
+            key = new Key(method.serialize(), options.getDcId());
+        } catch (IOException e) {
+            Logger.e(TAG, e);
+            return sender.apply(method);
+        }
+
+        final long now = System.currentTimeMillis();
+        final CachedAnswer entry;
+        synchronized (this.entries) {
+            final CachedAnswer current = this.entries.get(key);
+            if (current != null && current.expiresAt <= now) {
+                this.entries.remove(key);
+                entry = null;
+            } else {
+                entry = current;
+            }
+        }
+        if (entry != null) {
+            final CompletableFuture<T> future = new CompletableFuture<>();
+            if (entry.error != null) {
+                this.negativeHits.increment();
+                future.completeExceptionally(entry.error);
+            } else {
+                this.hits.increment();
+                future.complete((T) entry.result);
+            }
+            return future;
+        }
+
+        this.misses.increment();
+        final InFlight flight = new InFlight(method.getClass());
+        synchronized (this.entries) {
+            this.inFlight.add(flight);
+        }
+        final CompletableFuture<T> future = sender.apply(method);
+        future.whenComplete((result, throwable) -> {
+            CachedAnswer answer = null;
+            if (throwable == null) {
+                answer = new CachedAnswer(method.getClass(), result, null, tags(method, result),
+                        System.currentTimeMillis() + this.ttls.getOrDefault(method.getClass(), 0L));
+            } else if (throwable instanceof RpcException) {
+                final Long ttl = this.negativeTtls.get(((RpcException) throwable).getErrorTag());
+                if (ttl != null) {
+                    answer = new CachedAnswer(method.getClass(), null, (RpcException) throwable, tags(method, null),
+                            System.currentTimeMillis() + ttl);
+                }
+            }
+            put(key, method, answer, flight);
+        });
+        return future;
+    }
+
+    /**
+     * Ends a call in flight, caching its answer unless what it depends on was invalidated meanwhile
+     *
+     * @param entry the answer to cache, null if it is not cached
+     */
+    private void put(Key key, TLMethod<?> method, CachedAnswer entry, InFlight flight) {
+        synchronized (this.entries) {
+            this.inFlight.remove(flight);
+            if (entry == null || flight.isInvalidated || !isCacheable(method)) {
+                return;
+            }
+            for (String tag : entry.tags) {
+                if (flight.invalidatedTags.contains(tag)) {
+                    // The answer may be older than the update that invalidated it
+                    return;
+                }
+            }
+            this.entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Drops the entries related to the updates.
+     *
+     * @param updates the updates
+     */
+    public void invalidate(TLAbsUpdates updates) {
+        if (updates instanceof TLUpdateShort) {
+            invalidate(((TLUpdateShort) updates).getUpdate());
+        } else if (updates instanceof TLUpdates) {
+            invalidate(((TLUpdates) updates).getUpdates());
+        } else if (updates instanceof TLUpdatesCombined) {
+            invalidate(((TLUpdatesCombined) updates).getUpdates());
+        }
+    }
+
+    /**
+     * Drops the entries related to the updates.
+     *
+     * @param updates the updates
+     */
+    public void invalidate(List<TLAbsUpdate> updates) {
+        if (updates != null) {
+            for (TLAbsUpdate update : updates) {
+                invalidate(update);
+            }
+        }
+    }
+
+    /**
+     * Drops the entries related to the update.
+     *
+     * @param update the update
+     */
+    public void invalidate(TLAbsUpdate update) {
+        if (update instanceof TLUpdateChannel) {
+            invalidateChannel(((TLUpdateChannel) update).getChannelId());
+        } else if (update instanceof TLUpdateChannelPinnedMessage) {
+            invalidateChannel(((TLUpdateChannelPinnedMessage) update).getChannelId());
+        } else if (update instanceof TLUpdateChatParticipants) {
+            invalidateChat(((TLUpdateChatParticipants) update).getParticipants().getChatId());
+        } else if (update instanceof TLUpdateChatParticipantAdd) {
+            invalidateChat(((TLUpdateChatParticipantAdd) update).getChatId());
+        } else if (update instanceof TLUpdateChatParticipantDelete) {
+            invalidateChat(((TLUpdateChatParticipantDelete) update).getChatId());
+        } else if (update instanceof TLUpdateChatParticipantAdmin) {
+            invalidateChat(((TLUpdateChatParticipantAdmin) update).getChatId());
+        } else if (update instanceof TLUpdateChatAdmin) {
+            invalidateChat(((TLUpdateChatAdmin) update).getChatId());
+        } else if (update instanceof TLUpdateUserName) {
+            final TLUpdateUserName userName = (TLUpdateUserName) update;
+            invalidateTags(USER + userName.getUserId(), username(userName.getUserName()));
+        } else if (update instanceof TLUpdateUserPhoto) {
+            invalidateUser(((TLUpdateUserPhoto) update).getUserId());
+        } else if (update instanceof TLUpdateUserPhone) {
+            invalidateUser(((TLUpdateUserPhone) update).getUserId());
+        } else if (update instanceof TLUpdateConfig || update instanceof TLUpdateDcOptions) {
+            invalidateTags(CONFIG);
+        } else if (update instanceof TLUpdateNewStickerSet || update instanceof TLUpdateStickerSets ||
+                update instanceof TLUpdateStickerSetsOrder) {
+            invalidate(TLRequestMessagesGetStickersSet.class);
+        } else if (update instanceof TLUpdateWebPage) {
+            invalidate(TLRequestMessagesGetWebPagePreview.class);
+        }
+    }
+
+    /**
+     * Drops the entries related to a user.
+     *
+     * @param userId the user id
+     */
+    public void invalidateUser(int userId) {
+        invalidateTags(USER + userId);
+    }
+
+    /**
+     * Drops the entries related to a chat.
+     *
+     * @param chatId the chat id
+     */
+    public void invalidateChat(int chatId) {
+        invalidateTags(CHAT + chatId);
+    }
+
+    /**
+     * Drops the entries related to a channel.
+     *
+     * @param channelId the channel id
+     */
+    public void invalidateChannel(int channelId) {
+        invalidateTags(CHANNEL + channelId);
+    }
+
+    /**
+     * Drops the entries of a method.
+     *
+     * @param method the class of the method
+     */
+    public void invalidate(Class<? extends TLMethod> method) {
+        synchronized (this.entries) {
+            for (InFlight flight : this.inFlight) {
+                if (flight.method == method) {
+                    flight.isInvalidated = true;
+                }
+            }
+            final Iterator<CachedAnswer> iterator = this.entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().method == method) {
+                    iterator.remove();
+                    this.invalidations.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            for (InFlight flight : this.inFlight) {
+                flight.isInvalidated = true;
+            }
+            this.invalidations.add(this.entries.size());
+            this.entries.clear();
+        }
+    }
+
+    private void invalidateTags(String... tags) {
+        synchronized (this.entries) {
+            for (InFlight flight : this.inFlight) {
+                flight.invalidatedTags.addAll(Arrays.asList(tags));
+            }
+            final Iterator<CachedAnswer> iterator = this.entries.values().iterator();
+            while (iterator.hasNext()) {
+                final CachedAnswer entry = iterator.next();
+                for (String tag : tags) {
+                    if (entry.tags.contains(tag)) {
+                        iterator.remove();
+                        this.invalidations.increment();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets hit count.
+     *
+     * @return the number of calls answered with a cached result
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Gets negative hit count.
+     *
+     * @return the number of calls answered with a cached rpc error
+     */
+    public long getNegativeHitCount() {
+        return this.negativeHits.sum();
+    }
+
+    /**
+     * Gets miss count.
+     *
+     * @return the number of cacheable calls sent to the server
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Gets eviction count.
+     *
+     * @return the number of entries dropped because the cache was full
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Gets invalidation count.
+     *
+     * @return the number of entries dropped by updates or invalidate calls
+     */
+    public long getInvalidationCount() {
+        return this.invalidations.sum();
+    }
+
+    /**
+     * Gets size.
+     *
+     * @return the number of entries, including the expired ones not dropped yet
+     */
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * Tags of the users, chats and channels an answer depends on
+     */
+    private static Set<String> tags(TLMethod<?> method, TLObject result) {
+        final HashSet<String> tags = new HashSet<>();
+        if (method instanceof TLRequestHelpGetConfig) {
+            tags.add(CONFIG);
+        } else if (method instanceof TLRequestMessagesGetFullChat) {
+            tags.add(CHAT + ((TLRequestMessagesGetFullChat) method).getChatId());
+        } else if (method instanceof TLRequestChannelsGetFullChannel) {
+            if (((TLRequestChannelsGetFullChannel) method).getChannel() instanceof TLInputChannel) {
+                tags.add(CHANNEL + ((TLInputChannel) ((TLRequestChannelsGetFullChannel) method).getChannel()).getChannelId());
+            }
+        } else if (method instanceof TLRequestUsersGetFullUser) {
+            if (((TLRequestUsersGetFullUser) method).getId() instanceof TLInputUser) {
+                tags.add(USER + ((TLInputUser) ((TLRequestUsersGetFullUser) method).getId()).getUserId());
+            }
+        } else if (method instanceof TLRequestContactsResolveUsername) {
+            tags.add(username(((TLRequestContactsResolveUsername) method).getUsername()));
+            if (result instanceof TLResolvedPeer) {
+                final TLResolvedPeer resolved = (TLResolvedPeer) result;
+                addTag(tags, resolved.getPeer());
+                for (TLAbsUser user : resolved.getUsers()) {
+                    tags.add(USER + user.getId());
+                }
+                for (TLAbsChat chat : resolved.getChats()) {
+                    tags.add(CHANNEL + chat.getId());
+                    tags.add(CHAT + chat.getId());
+                }
+            }
+        }
+        return tags;
+    }
+
+    private static void addTag(Set<String> tags, TLAbsPeer peer) {
+        if (peer instanceof TLPeerUser) {
+            tags.add(USER + peer.getId());
+        } else if (peer instanceof TLPeerChat) {
+            tags.add(CHAT + peer.getId());
+        } else if (peer instanceof TLPeerChannel) {
+            tags.add(CHANNEL + peer.getId());
+        }
+    }
+
+    private static String username(String username) {
+        return USERNAME + (username == null ? "" : username.toLowerCase());
+    }
+
+    private static final class Key {
+        private final byte[] request;
+        private final int dcId;
+        private final int hash;
+
+        private Key(byte[] request, int dcId) {
+            this.request = request;
+            this.dcId = dcId;
+            this.hash = 31 * Arrays.hashCode(request) + dcId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return this.dcId == key.dcId && Arrays.equals(this.request, key.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * A call sent to the server, with what was invalidated since it was sent
+     */
+    private static final class InFlight {
+        private final Class<?> method;
+        private final HashSet<String> invalidatedTags = new HashSet<>();
+        private boolean isInvalidated;
+
+        private InFlight(Class<?> method) {
+            this.method = method;
+        }
+    }
+
+    private static final class CachedAnswer {
+        private final Class<?> method;
+        private final TLObject result;
+        private final RpcException error;
+        private final Set<String> tags;
+        private final long expiresAt;
+
+        private CachedAnswer(Class<?> method, TLObject result, RpcException error, Set<String> tags, long expiresAt) {
+            this.method = method;
+            this.result = result;
+            this.error = error;
+            this.tags = tags;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
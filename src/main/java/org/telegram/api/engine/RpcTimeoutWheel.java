@@ -0,0 +1,308 @@
+package org.telegram.api.engine;
+
+import org.telegram.mtproto.util.EngineThreads;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadlines of rpc calls, keyed by call id, in a hierarchical timing wheel.
+ *
+ * Scheduling and cancelling are lock free: new deadlines go through a concurrent queue and
+ * cancelled ones are only marked, then dropped when the wheel reaches them. A single thread
+ * advances the wheel one tick at a time; the first level has a slot per tick and every upper
+ * level slot covers a whole turn of the level below, whose deadlines are moved down (cascaded)
+ * when that turn starts. Each deadline is moved at most once per level, and all the calls
+ * expiring in the same tick are handed to the {@link ExpiryHandler} at once.
+ *
+ * The ticks run on a thread of the wheel, or on a shared timer so many wheels need no thread.
+ *
+ * @author Ruben Bermudez
+ */
+public class RpcTimeoutWheel {
+    private static final int ROOT_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVELS = 4;
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final long MAX_TICKS = (1L << (ROOT_BITS + (LEVELS - 1) * LEVEL_BITS)) - 1;
+
+    /**
+     * Receives the calls whose deadline passed
+     */
+    public interface ExpiryHandler {
+        /**
+         * On expired.
+         *
+         * @param ids the ids of the expired calls, called from the wheel thread
+         */
+        void onExpired(int[] ids);
+    }
+
+    private final ExpiryHandler handler;
+    private final long tickDuration;
+    private final long startTime;
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Entry>[][] levels;
+    private final Thread workerThread;
+    private final ScheduledExecutorService timer;
+    private final ScheduledFuture<?> ticker;
+    private volatile boolean isClosed;
+    private long currentTick;
+
+    /**
+     * Instantiates a new Rpc timeout wheel.
+     *
+     * @param name         the name of the wheel thread
+     * @param tickDuration the duration of a tick in milliseconds, the precision of the deadlines
+     * @param handler      the handler of the expired calls
+     */
+    public RpcTimeoutWheel(String name, long tickDuration, ExpiryHandler handler) {
+        this(name, null, tickDuration, handler);
+    }
+
+    /**
+     * Instantiates a new Rpc timeout wheel ticked by a shared timer, which is not stopped on close.
+     *
+     * @param timer        the timer, expired calls are handed to the handler from its thread
+     * @param tickDuration the duration of a tick in milliseconds, the precision of the deadlines
+     * @param handler      the handler of the expired calls
+     */
+    public RpcTimeoutWheel(ScheduledExecutorService timer, long tickDuration, ExpiryHandler handler) {
+        this(null, timer, tickDuration, handler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private RpcTimeoutWheel(String name, ScheduledExecutorService timer, long tickDuration, ExpiryHandler handler) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration);
+        }
+        this.handler = handler;
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.levels = new ArrayList[LEVELS][];
+        for (int i = 0; i < LEVELS; i++) {
+            this.levels[i] = new ArrayList[i == 0 ? ROOT_SIZE : LEVEL_SIZE];
+            for (int j = 0; j < this.levels[i].length; j++) {
+                this.levels[i][j] = new ArrayList<>();
+            }
+        }
+        this.startTime = System.nanoTime();
+        this.timer = timer;
+        if (timer == null) {
+            this.ticker = null;
+            this.workerThread = EngineThreads.newThread(new Worker(), name, true);
+            this.workerThread.start();
+        } else {
+            this.workerThread = null;
+            this.ticker = timer.scheduleAtFixedRate(this::advance, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the deadline of a call, replacing the previous one if any.
+     *
+     * @param id      the id of the call
+     * @param timeout the milliseconds from now
+     */
+    public void schedule(int id, long timeout) {
+        final long deadline = System.nanoTime() - this.startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+        final Entry entry = new Entry(id, (deadline + this.tickDuration - 1) / this.tickDuration);
+        final Entry previous = this.entries.put(id, entry);
+        if (previous != null) {
+            previous.isCancelled = true;
+        }
+        this.pending.add(entry);
+    }
+
+    /**
+     * Removes the deadline of a call.
+     *
+     * @param id the id of the call
+     * @return true if the call had a deadline that did not expire yet
+     */
+    public boolean cancel(int id) {
+        final Entry entry = this.entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        entry.isCancelled = true;
+        return true;
+    }
+
+    /**
+     * Size.
+     *
+     * @return the number of calls with a pending deadline
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Stops the wheel. Every pending call is handed to the handler as expired.
+     */
+    public void close() {
+        this.isClosed = true;
+        if (this.workerThread != null) {
+            this.workerThread.interrupt();
+            return;
+        }
+        this.ticker.cancel(false);
+        try {
+            this.timer.execute(this::expireAll);
+        } catch (RejectedExecutionException e) {
+            expireAll();
+        }
+    }
+
+    /**
+     * Runs the ticks due by now, called by the shared timer
+     */
+    private void advance() {
+        final long now = System.nanoTime() - this.startTime;
+        while (!this.isClosed && this.currentTick * this.tickDuration <= now) {
+            tick();
+        }
+    }
+
+    private void add(Entry entry) {
+        long expiry = entry.expiryTick;
+        long delta = expiry - this.currentTick;
+        if (delta < 0) {
+            expiry = this.currentTick;
+            delta = 0;
+        } else if (delta > MAX_TICKS) {
+            expiry = this.currentTick + MAX_TICKS;
+            delta = MAX_TICKS;
+        }
+        if (delta < ROOT_SIZE) {
+            this.levels[0][(int) (expiry & (ROOT_SIZE - 1))].add(entry);
+            return;
+        }
+        for (int level = 1; level < LEVELS; level++) {
+            final int shift = ROOT_BITS + level * LEVEL_BITS;
+            if (delta < (1L << shift) || level == LEVELS - 1) {
+                this.levels[level][(int) ((expiry >> (shift - LEVEL_BITS)) & (LEVEL_SIZE - 1))].add(entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the deadlines of a slot of an upper level to the levels below
+     *
+     * @return the index of the slot
+     */
+    private int cascade(int level) {
+        final int shift = ROOT_BITS + (level - 1) * LEVEL_BITS;
+        final int index = (int) ((this.currentTick >> shift) & (LEVEL_SIZE - 1));
+        final ArrayList<Entry> slot = this.levels[level][index];
+        if (!slot.isEmpty()) {
+            this.levels[level][index] = new ArrayList<>();
+            for (Entry entry : slot) {
+                if (!entry.isCancelled) {
+                    add(entry);
+                }
+            }
+        }
+        return index;
+    }
+
+    private void transferPending() {
+        Entry entry;
+        while ((entry = this.pending.poll()) != null) {
+            if (!entry.isCancelled) {
+                add(entry);
+            }
+        }
+    }
+
+    /**
+     * Runs one tick: takes the new deadlines, cascades the upper levels when a turn starts and
+     * expires the slot of the current tick. Only called by the thread advancing the wheel.
+     */
+    void tick() {
+        transferPending();
+        final int index = (int) (this.currentTick & (ROOT_SIZE - 1));
+        if (index == 0) {
+            for (int level = 1; level < LEVELS && cascade(level) == 0; level++) {
+                // the slot of the next level starts a new turn too
+            }
+        }
+        final ArrayList<Entry> slot = this.levels[0][index];
+        if (!slot.isEmpty()) {
+            this.levels[0][index] = new ArrayList<>();
+            final int[] expired = new int[slot.size()];
+            int count = 0;
+            for (Entry entry : slot) {
+                if (!entry.isCancelled && this.entries.remove(entry.id, entry)) {
+                    expired[count++] = entry.id;
+                }
+            }
+            notifyExpired(expired, count);
+        }
+        this.currentTick++;
+    }
+
+    private void expireAll() {
+        final ArrayList<Entry> remaining = new ArrayList<>(this.entries.values());
+        final int[] expired = new int[remaining.size()];
+        int count = 0;
+        for (Entry entry : remaining) {
+            if (this.entries.remove(entry.id, entry)) {
+                expired[count++] = entry.id;
+            }
+        }
+        notifyExpired(expired, count);
+    }
+
+    private void notifyExpired(int[] expired, int count) {
+        if (count == 0) {
+            return;
+        }
+        final int[] ids = new int[count];
+        System.arraycopy(expired, 0, ids, 0, count);
+        try {
+            this.handler.onExpired(ids);
+        } catch (Throwable t) {
+            Logger.e("RpcTimeoutWheel", t);
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (!RpcTimeoutWheel.this.isClosed) {
+                final long now = System.nanoTime() - RpcTimeoutWheel.this.startTime;
+                final long sleep = RpcTimeoutWheel.this.currentTick * RpcTimeoutWheel.this.tickDuration - now;
+                if (sleep > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                    continue;
+                }
+                tick();
+            }
+            expireAll();
+        }
+    }
+
+    private static final class Entry {
+        private final int id;
+        private final long expiryTick;
+        private volatile boolean isCancelled;
+
+        private Entry(int id, long expiryTick) {
+            this.id = id;
+            this.expiryTick = expiryTick;
+        }
+    }
+}
@@ -10,7 +10,21 @@ import org.telegram.api.functions.TLRequestInitConnection;
 import org.telegram.api.functions.TLRequestInvokeWithLayer;
 import org.telegram.api.functions.auth.TLRequestAuthExportAuthorization;
 import org.telegram.api.functions.auth.TLRequestAuthImportAuthorization;
+import org.telegram.api.functions.channels.TLRequestChannelsGetParticipants;
 import org.telegram.api.functions.help.TLRequestHelpGetConfig;
+import org.telegram.api.functions.messages.TLRequestMessagesEditMessage;
+import org.telegram.api.functions.messages.TLRequestMessagesForwardMessages;
+import org.telegram.api.functions.messages.TLRequestMessagesGetDialogs;
+import org.telegram.api.functions.messages.TLRequestMessagesGetHistory;
+import org.telegram.api.functions.messages.TLRequestMessagesSearch;
+import org.telegram.api.functions.messages.TLRequestMessagesSendInlineBotResults;
+import org.telegram.api.functions.messages.TLRequestMessagesSendMedia;
+import org.telegram.api.functions.messages.TLRequestMessagesSendMessage;
+import org.telegram.api.functions.messages.TLRequestMessagesSetBotCallbackAnswer;
+import org.telegram.api.functions.messages.TLRequestMessagesSetInlineBotResults;
+import org.telegram.api.functions.updates.TLRequestUpdatesGetChannelDifference;
+import org.telegram.api.functions.updates.TLRequestUpdatesGetDifference;
+import org.telegram.api.functions.updates.TLRequestUpdatesGetState;
 import org.telegram.api.functions.upload.TLRequestUploadGetCdnFile;
 import org.telegram.api.functions.upload.TLRequestUploadGetFile;
 import org.telegram.api.functions.upload.TLRequestUploadSaveBigFilePart;
@@ -24,20 +38,33 @@ import org.telegram.mtproto.MTProto;
 import org.telegram.mtproto.MTProtoCallback;
 import org.telegram.mtproto.pq.Authorizer;
 import org.telegram.mtproto.pq.PqAuth;
+import org.telegram.mtproto.schedule.RpcPriority;
 import org.telegram.mtproto.state.ConnectionInfo;
 import org.telegram.mtproto.util.BytesCache;
+import org.telegram.mtproto.util.SerialTask;
+import org.telegram.mtproto.util.TelegramRuntime;
 import org.telegram.tl.*;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
 /**
  * Created with IntelliJ IDEA.
  * User: Ruben Bermudez
@@ -58,19 +85,40 @@ public class TelegramApi {
     private final int INSTANCE_INDEX;
     private final HashMap<Integer, MTProto> dcProtos = new HashMap<>();
     private final HashMap<Integer, Object> dcSync = new HashMap<>();
-    private final HashMap<Integer, RpcCallbackWrapper> callbacks = new HashMap<>();
+    private final ConcurrentHashMap<Integer, RpcCallbackWrapper> callbacks = new ConcurrentHashMap<>();
     private final HashMap<Integer, Integer> sentRequests = new HashMap<>();
-    private final TreeMap<Long, Integer> timeoutTimes = new TreeMap<>();
+    private final HashMap<Integer, SendQueue> sendQueues = new HashMap<>();
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final RpcCoalescer coalescer = new RpcCoalescer();
+    private volatile RpcResponseCache responseCache;
+    private final RpcFloodGovernor floodGovernor;
+    private final ConcurrentHashMap<Class<?>, RpcPriority> defaultPriorities = createDefaultPriorities();
+    private int lastSendDc = -1;
     private final TreeMap<Integer, Boolean> dcRequired = new TreeMap<>();
+    private final ArrayList<CompletableFuture<Void>> writableWaiters = new ArrayList<>();
+    private final HashMap<Integer, CompletableFuture<MTProto>> dcBringUps = new HashMap<>();
+    private final HashSet<Integer> dcAuthPending = new HashSet<>();
+    private final TelegramRuntime runtime;
+    private final ExecutorService dcExecutor;
+    private volatile Executor dispatchExecutor;
+    private boolean tcpNoDelay = true;
+    private int corkDelay;
+    private final Object updatesLock = new Object();
+    private CompletableFuture<Void> updatesTail = CompletableFuture.completedFuture(null);
     private static final int DEFAULTCOMPETABLETIMEOUTMILLIS = 30000;
+    private static final int DC_RETRY_DELAY = 1000;
+    private static final int TIMEOUT_TICK = 50;
+    private static final int CALLS_PER_RUN = 64;
+    private static final int MSG_WAIT_FAILED_CODE = 400;
+    private static final String MSG_WAIT_FAILED = "MSG_WAIT_FAILED";
     private boolean isClosed;
     private int primaryDc;
     private MTProto mainProto;
     private ProtoCallback callback;
-    private SenderThread senderThread;
+    private final SerialTask senderTask;
     private TLApiContext apiContext;
-    private TimeoutThread timeoutThread;
-    private ConnectionThread dcThread;
+    private RpcTimeoutWheel timeoutWheel;
+    private final SerialTask connectionTask;
     private HashSet<Integer> registeredInApi = new HashSet<Integer>();
 
     private AbsApiState state;
@@ -78,9 +126,9 @@ public class TelegramApi {
 
     private ApiCallback apiCallback;
 
-    private Downloader downloader;
+    private volatile Downloader downloader;
 
-    private Uploader uploader;
+    private volatile Uploader uploader;
 
     /**
      * Instantiates a new Telegram api.
@@ -90,8 +138,25 @@ public class TelegramApi {
      * @param _apiCallback the _ api callback
      */
     public TelegramApi(AbsApiState state, AppInfo _appInfo, ApiCallback _apiCallback) {
+        this(state, _appInfo, _apiCallback, TelegramRuntime.getDefault());
+    }
+
+    /**
+     * Instantiates a new Telegram api attached to a runtime, whose threads run its connections,
+     * timers and loops, so it starts no thread of its own.
+     *
+     * @param state        the state
+     * @param _appInfo     the _ app info
+     * @param _apiCallback the _ api callback
+     * @param runtime      the runtime
+     */
+    public TelegramApi(AbsApiState state, AppInfo _appInfo, ApiCallback _apiCallback, TelegramRuntime runtime) {
         this.INSTANCE_INDEX = instanceIndex.incrementAndGet();
         this.TAG = "TelegramApi#" + this.INSTANCE_INDEX;
+        this.runtime = runtime;
+        this.dcExecutor = runtime.getBlockingExecutor();
+        this.dispatchExecutor = runtime.getDispatchers();
+        this.floodGovernor = new RpcFloodGovernor(runtime.getTimer());
 
         long start = System.currentTimeMillis();
         this.apiCallback = _apiCallback;
@@ -104,16 +169,6 @@ public class TelegramApi {
 
         start = System.currentTimeMillis();
         this.apiContext = new TLApiContext() {
-            private AtomicInteger integer = new AtomicInteger(0);
-
-            @Override
-            public TLObject deserializeMessage(int clazzId, InputStream stream) throws IOException {
-                if ((this.integer.incrementAndGet() % 10) == 9) {
-                    Thread.yield();
-                }
-                return super.deserializeMessage(clazzId, stream);
-            }
-
             @Override
             public TLBytes allocateBytes(int size) {
                 return new TLBytes(BytesCache.getInstance().allocate(size), 0, size);
@@ -128,37 +183,72 @@ public class TelegramApi {
         Logger.d(this.TAG, "Phase 1 in " + (System.currentTimeMillis() - start) + " ms");
 
         start = System.currentTimeMillis();
-        this.timeoutThread = new TimeoutThread();
-        this.timeoutThread.start();
+        this.timeoutWheel = new RpcTimeoutWheel(runtime.getTimer(), TIMEOUT_TICK, new TimeoutHandler());
 
-        this.dcThread = new ConnectionThread();
-        this.dcThread.start();
-
-        this.senderThread = new SenderThread();
-        this.senderThread.start();
+        this.connectionTask = runtime.newBlockingTask(this.TAG + "#Connection", new ConnectionStep());
+        this.senderTask = runtime.newTask(this.TAG + "#Sender", new SenderStep());
+        this.connectionTask.signal();
         Logger.d(this.TAG, "Phase 2 in " + (System.currentTimeMillis() - start) + " ms");
+    }
 
-        start = System.currentTimeMillis();
-        this.downloader = new Downloader(this);
-        this.uploader = new Uploader(this);
-        Logger.d(this.TAG, "Phase 3 in " + (System.currentTimeMillis() - start) + " ms");
+    /**
+     * Gets runtime.
+     *
+     * @return the runtime
+     */
+    public TelegramRuntime getRuntime() {
+        return this.runtime;
     }
 
     /**
-     * Gets downloader.
+     * Gets dispatch executor.
+     *
+     * @return the executor decoding responses and updates and running the callbacks, or null
+     */
+    public Executor getDispatchExecutor() {
+        return this.dispatchExecutor;
+    }
+
+    /**
+     * Sets the executor decoding responses and updates and running the callbacks, the dispatchers
+     * of the runtime by default. Results of calls are independent and run in parallel, updates are
+     * decoded in parallel too but handed to {@link #onMessageArrived(TLObject)} in arrival order.
+     *
+     * @param dispatchExecutor the executor, or null to decode on the response processor of the connection
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * Gets downloader, created with its threads on first use.
      *
      * @return the downloader
      */
     public Downloader getDownloader() {
+        if (this.downloader == null) {
+            synchronized (this) {
+                if (this.downloader == null) {
+                    this.downloader = new Downloader(this);
+                }
+            }
+        }
         return this.downloader;
     }
 
     /**
-     * Gets uploader.
+     * Gets uploader, created with its threads on first use.
      *
      * @return the uploader
      */
     public Uploader getUploader() {
+        if (this.uploader == null) {
+            synchronized (this) {
+                if (this.uploader == null) {
+                    this.uploader = new Uploader(this);
+                }
+            }
+        }
         return this.uploader;
     }
 
@@ -174,9 +264,7 @@ public class TelegramApi {
         this.mainProto = null;
         this.primaryDc = dcId;
         this.state.setPrimaryDc(dcId);
-        synchronized (this.dcRequired) {
-            this.dcRequired.notifyAll();
-        }
+        this.connectionTask.signal();
     }
 
     @Override
@@ -219,6 +307,7 @@ public class TelegramApi {
     protected void onMessageArrived(TLObject object) {
         if (object instanceof TLAbsUpdates) {
             Logger.d(this.TAG, "<< update " + object.toString());
+            invalidateResponseCache((TLAbsUpdates) object);
             this.apiCallback.onUpdate((TLAbsUpdates) object);
         } else {
             Logger.d(this.TAG, "<< unknown object " + object.toString());
@@ -241,11 +330,232 @@ public class TelegramApi {
         if (!this.isClosed) {
             this.apiCallback.onAuthCancelled(this);
             this.isClosed = true;
-            if (this.timeoutThread != null) {
-                this.timeoutThread.interrupt();
-                this.timeoutThread = null;
+            if (this.timeoutWheel != null) {
+                this.timeoutWheel.close();
             }
+            this.connectionTask.close();
+            this.senderTask.close();
             this.mainProto.close();
+            this.floodGovernor.close();
+            notifyCallbacks();
+            ArrayList<CompletableFuture<Void>> waiters;
+            synchronized (this.writableWaiters) {
+                waiters = new ArrayList<>(this.writableWaiters);
+                this.writableWaiters.clear();
+            }
+            for (CompletableFuture<Void> waiter : waiters) {
+                waiter.completeExceptionally(new IOException("Api is closed"));
+            }
+        }
+    }
+
+    /**
+     * Gets coalescer, the single-flight layer of the async calls. It is disabled by default.
+     *
+     * @return the coalescer
+     */
+    public RpcCoalescer getCoalescer() {
+        return this.coalescer;
+    }
+
+    private static ConcurrentHashMap<Class<?>, RpcPriority> createDefaultPriorities() {
+        final ConcurrentHashMap<Class<?>, RpcPriority> priorities = new ConcurrentHashMap<>();
+        priorities.put(TLRequestMessagesSendMessage.class, RpcPriority.INTERACTIVE);
+        priorities.put(TLRequestMessagesSendMedia.class, RpcPriority.INTERACTIVE);
+        priorities.put(TLRequestMessagesEditMessage.class, RpcPriority.INTERACTIVE);
+        priorities.put(TLRequestMessagesForwardMessages.class, RpcPriority.INTERACTIVE);
+        priorities.put(TLRequestMessagesSetBotCallbackAnswer.class, RpcPriority.INTERACTIVE);
+        priorities.put(TLRequestMessagesSetInlineBotResults.class, RpcPriority.INTERACTIVE);
+        priorities.put(TLRequestMessagesSendInlineBotResults.class, RpcPriority.INTERACTIVE);
+        priorities.put(TLRequestUpdatesGetState.class, RpcPriority.UPDATES);
+        priorities.put(TLRequestUpdatesGetDifference.class, RpcPriority.UPDATES);
+        priorities.put(TLRequestUpdatesGetChannelDifference.class, RpcPriority.UPDATES);
+        priorities.put(TLRequestMessagesGetHistory.class, RpcPriority.BULK);
+        priorities.put(TLRequestMessagesGetDialogs.class, RpcPriority.BULK);
+        priorities.put(TLRequestMessagesSearch.class, RpcPriority.BULK);
+        priorities.put(TLRequestChannelsGetParticipants.class, RpcPriority.BULK);
+        priorities.put(TLRequestUploadGetFile.class, RpcPriority.FILES);
+        priorities.put(TLRequestUploadGetCdnFile.class, RpcPriority.FILES);
+        priorities.put(TLRequestUploadSaveFilePart.class, RpcPriority.FILES);
+        priorities.put(TLRequestUploadSaveBigFilePart.class, RpcPriority.FILES);
+        return priorities;
+    }
+
+    /**
+     * Gets default priority of the calls to a method not tagged with a priority.
+     *
+     * @param method the method
+     * @return the traffic class
+     */
+    public RpcPriority getDefaultPriority(TLMethod<?> method) {
+        final RpcPriority priority = this.defaultPriorities.get(method.getClass());
+        return priority != null ? priority : RpcPriority.NORMAL;
+    }
+
+    /**
+     * Sets default priority of the calls to a method not tagged with a priority.
+     *
+     * @param method   the class of the method
+     * @param priority the traffic class, null for {@link RpcPriority#NORMAL}
+     */
+    public void setDefaultPriority(Class<? extends TLMethod> method, RpcPriority priority) {
+        if (priority == null) {
+            this.defaultPriorities.remove(method);
+        } else {
+            this.defaultPriorities.put(method, priority);
+        }
+    }
+
+    /**
+     * Gets flood governor, which queues the calls after flood waits instead of failing them.
+     *
+     * @return the flood governor
+     */
+    public RpcFloodGovernor getFloodGovernor() {
+        return this.floodGovernor;
+    }
+
+    /**
+     * Gets response cache.
+     *
+     * @return the response cache, null when the answers are not cached
+     */
+    public RpcResponseCache getResponseCache() {
+        return this.responseCache;
+    }
+
+    /**
+     * Sets response cache of the read-only methods, off by default.
+     *
+     * @param responseCache the response cache, null to stop caching
+     */
+    public void setResponseCache(RpcResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Sets TCP_NODELAY of the connections to every dc, enabled by default.
+     *
+     * @param tcpNoDelay false to let the system coalesce small packets
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        synchronized (this.dcProtos) {
+            this.tcpNoDelay = tcpNoDelay;
+            forEachProto(proto -> proto.setTcpNoDelay(tcpNoDelay));
+        }
+    }
+
+    /**
+     * Sets how long the connections to every dc hold outgoing packets to coalesce them with the
+     * following ones, off by default.
+     *
+     * @param corkDelay the delay in milliseconds, zero to send them at once
+     */
+    public void setCorkDelay(int corkDelay) {
+        synchronized (this.dcProtos) {
+            this.corkDelay = corkDelay;
+            forEachProto(proto -> proto.setCorkDelay(corkDelay));
+        }
+    }
+
+    /**
+     * Must be called holding the lock of dcProtos
+     */
+    private void forEachProto(Consumer<MTProto> action) {
+        final MTProto main = this.mainProto;
+        if (main != null) {
+            action.accept(main);
+        }
+        for (MTProto proto : this.dcProtos.values()) {
+            if (proto != main) {
+                action.accept(proto);
+            }
+        }
+    }
+
+    /**
+     * Applies the transport settings to a new proto
+     */
+    private void applyTransportSettings(MTProto proto) {
+        synchronized (this.dcProtos) {
+            proto.setTcpNoDelay(this.tcpNoDelay);
+            proto.setCorkDelay(this.corkDelay);
+        }
+    }
+
+    private void invalidateResponseCache(TLAbsUpdates updates) {
+        final RpcResponseCache cache = this.responseCache;
+        if (cache != null) {
+            cache.invalidate(updates);
+        }
+    }
+
+    /**
+     * Is writable: whether the connection to the primary dc can take more requests
+     * without queueing them in memory. Producers sending a lot of requests should
+     * hold back while it is false.
+     *
+     * @return the boolean
+     */
+    public boolean isWritable() {
+        final MTProto proto = this.mainProto;
+        return !this.isClosed && proto != null && proto.isWritable();
+    }
+
+    /**
+     * When writable.
+     *
+     * @return a future completed as soon as {@link #isWritable()} is true, or exceptionally if the api is closed
+     */
+    public CompletableFuture<Void> whenWritable() {
+        if (this.isClosed) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("Api is closed"));
+            return future;
+        }
+        synchronized (this.writableWaiters) {
+            if (isWritable()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            this.writableWaiters.removeIf(CompletableFuture::isDone);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            this.writableWaiters.add(future);
+            return future;
+        }
+    }
+
+    /**
+     * Blocks until the api is writable.
+     *
+     * @param timeout the timeout
+     * @param unit    the unit of the timeout
+     * @return true if the api is writable, false if the timeout elapsed or the api was closed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean awaitWritable(long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<Void> future = whenWritable();
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (java.util.concurrent.TimeoutException e) {
+            future.cancel(false);
+            return false;
+        }
+    }
+
+    private void notifyWritable() {
+        ArrayList<CompletableFuture<Void>> waiters;
+        synchronized (this.writableWaiters) {
+            if (this.writableWaiters.isEmpty() || !isWritable()) {
+                return;
+            }
+            waiters = new ArrayList<>(this.writableWaiters);
+            this.writableWaiters.clear();
+        }
+        for (CompletableFuture<Void> waiter : waiters) {
+            waiter.complete(null);
         }
     }
 
@@ -256,8 +566,10 @@ public class TelegramApi {
         if (this.mainProto != null) {
             this.mainProto.resetNetworkBackoff();
         }
-        for (MTProto mtProto : this.dcProtos.values()) {
-            mtProto.resetNetworkBackoff();
+        synchronized (this.dcProtos) {
+            for (MTProto mtProto : this.dcProtos.values()) {
+                mtProto.resetNetworkBackoff();
+            }
         }
     }
 
@@ -287,37 +599,74 @@ public class TelegramApi {
             }
             return;
         }
-        int localRpcId = rpcCallIndex.getAndIncrement();
-        synchronized (this.callbacks) {
-            RpcCallbackWrapper wrapper = new RpcCallbackWrapper(localRpcId, method, callback);
-            wrapper.dcId = destDc;
-            wrapper.timeout = timeout;
-            wrapper.isAuthRequred = authRequired;
+        RpcCallbackWrapper wrapper = new RpcCallbackWrapper(rpcCallIndex.getAndIncrement(), method, callback);
+        wrapper.dcId = destDc;
+        wrapper.timeout = timeout;
+        wrapper.isAuthRequred = authRequired;
+        // Legacy high priority calls
+        wrapper.isDepend = callback instanceof RpcCallbackEx;
+        wrapper.priority = wrapper.isDepend ? RpcPriority.INTERACTIVE : getDefaultPriority(method);
+        startRpcCall(wrapper, timeout * 2L);
+    }
 
-            this.callbacks.put(localRpcId, wrapper);
+    private void startRpcCall(RpcCallbackWrapper wrapper, long expiry) {
+        this.callbacks.put(wrapper.id, wrapper);
 
-            if (callback != null) {
-                long timeoutTime = System.nanoTime() + timeout * 2 * 1000 * 1000L;
-                synchronized (this.timeoutTimes) {
-                    while (this.timeoutTimes.containsKey(timeoutTime)) {
-                        timeoutTime++;
-                    }
-                    this.timeoutTimes.put(timeoutTime, localRpcId);
-                    this.timeoutTimes.notifyAll();
-                }
-                wrapper.timeoutTime = timeoutTime;
-            }
+        if (wrapper.callback != null) {
+            this.timeoutWheel.schedule(wrapper.id, expiry);
+        }
 
-            if (authRequired) {
-                checkDcAuth(destDc);
-            } else {
-                checkDc(destDc);
-            }
+        if (wrapper.isAuthRequred) {
+            checkDcAuth(wrapper.dcId);
+        } else {
+            checkDc(wrapper.dcId);
+        }
 
-            this.callbacks.notifyAll();
+        enqueue(wrapper);
+
+        Logger.d(this.TAG, ">> #" + +wrapper.id + ": " + wrapper.method.toString());
+    }
+
+    /**
+     * Forgets a call that is no longer awaited: it is dropped from its send queue or, if it was
+     * already sent, its answer is ignored and it is not resent.
+     */
+    private void cancelRpcCall(RpcCallbackWrapper wrapper) {
+        synchronized (wrapper) {
+            if (wrapper.isCompleted) {
+                return;
+            }
+            wrapper.isCompleted = true;
+        }
+        this.callbacks.remove(wrapper.id, wrapper);
+        this.timeoutWheel.cancel(wrapper.id);
+        final MTProto proto = wrapper.sentProto;
+        if (proto != null) {
+            synchronized (this.sentRequests) {
+                this.sentRequests.remove(wrapper.sentId);
+            }
+            proto.forgetMessage(wrapper.sentId);
         }
+        Logger.d(this.TAG, "RPC #" + wrapper.id + ": Cancelled (" + wrapper.elapsed() + " ms)");
+    }
 
-        Logger.d(this.TAG, ">> #" + +localRpcId + ": " + method.toString());
+    /**
+     * Fails a call that was not sent, as the server would have failed it
+     */
+    private void failRpcCall(RpcCallbackWrapper wrapper, int errorCode, String message) {
+        synchronized (wrapper) {
+            if (wrapper.isCompleted) {
+                return;
+            }
+            wrapper.isCompleted = true;
+        }
+        this.callbacks.remove(wrapper.id, wrapper);
+        this.timeoutWheel.cancel(wrapper.id);
+        Logger.d(this.TAG, "RPC #" + wrapper.id + ": Failed locally with " + message + " (" + wrapper.elapsed() + " ms)");
+        final RpcCallback callback = wrapper.callback;
+        if (callback != null) {
+            dispatch(() -> callback.onError(errorCode, message));
+        }
     }
 
     private <T extends TLObject> T doRpcCall(TLMethod<T> method, int timeout, int destDc) throws IOException, java.util.concurrent.TimeoutException {
@@ -330,27 +679,17 @@ public class TelegramApi {
         }
 
         T resultObject = null;
-        final CompletableFuture<T> completableFuture = new CompletableFuture<>();
-
-        doRpcCall(method, timeout, new RpcCallback<T>() {
-            @Override
-            public void onResult(T result) {
-                completableFuture.complete(result);
-            }
-
-            @Override
-            public void onError(int errorCode, String message) {
-                completableFuture.completeExceptionally(new RpcException(errorCode, message));
-            }
-        }, destDc, authRequired);
-
+        final CompletableFuture<T> completableFuture = doRpcCallAsync(method, RpcCallOptions.defaults()
+                .setTimeout(timeout).setDcId(destDc).setAuthRequired(authRequired));
 
         try {
             resultObject = completableFuture.get(timeout, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
+            completableFuture.cancel(false);
             Logger.w(TAG, method.toString());
             Logger.e(TAG, e);
         } catch (java.util.concurrent.TimeoutException e) {
+            completableFuture.cancel(false);
             Logger.w(TAG, method.toString());
             Logger.e(TAG, e);
             throw e;
@@ -359,19 +698,122 @@ public class TelegramApi {
             Logger.e(TAG, e);
             if (e.getCause() instanceof RpcException) {
                 throw (RpcException) e.getCause();
+            } else if (e.getCause() instanceof TimeoutException) {
+                throw new java.util.concurrent.TimeoutException(e.getCause().getMessage());
             }
         }
 
         return resultObject;
     }
 
+// Public async methods
+
+    /**
+     * Do rpc call async with the default options.
+     *
+     * @param <T>    the type parameter
+     * @param method the method
+     * @return the future result
+     * @see #doRpcCallAsync(TLMethod, RpcCallOptions)
+     */
+    public <T extends TLObject> CompletableFuture<T> doRpcCallAsync(TLMethod<T> method) {
+        return doRpcCallAsync(method, RpcCallOptions.defaults());
+    }
+
+    /**
+     * Do rpc call async. No thread waits for the answer: the future is completed from the thread
+     * delivering it, so dependent stages should not block. It fails with {@link RpcException}
+     * on rpc errors and with {@link TimeoutException} when there is no answer before the timeout.
+     * Cancelling the future forgets the call, it is not sent or resent anymore.
+     * Identical read-only calls may share one rpc call, see {@link #getCoalescer()}, and may be
+     * answered from the response cache, see {@link #setResponseCache(RpcResponseCache)}.
+     *
+     * @param <T>     the type parameter
+     * @param method  the method
+     * @param options the options
+     * @return the future result
+     */
+    public <T extends TLObject> CompletableFuture<T> doRpcCallAsync(TLMethod<T> method, RpcCallOptions options) {
+        final RpcResponseCache cache = this.responseCache;
+        if (cache != null && cache.isCacheable(method)) {
+            return cache.call(method, options, m -> coalesceRpcCall(m, options));
+        }
+        return coalesceRpcCall(method, options);
+    }
+
+    private <T extends TLObject> CompletableFuture<T> coalesceRpcCall(TLMethod<T> method, RpcCallOptions options) {
+        if (this.coalescer.isCoalescable(method)) {
+            return this.coalescer.call(method, options, m -> governRpcCall(m, options));
+        }
+        return governRpcCall(method, options);
+    }
+
+    private <T extends TLObject> CompletableFuture<T> governRpcCall(TLMethod<T> method, RpcCallOptions options) {
+        return this.floodGovernor.call(method, options.getTimeout(), m -> sendRpcCall(m, options));
+    }
+
+    /**
+     * Do rpc calls ordered with the default options.
+     *
+     * @param <T>     the type parameter
+     * @param methods the methods, in the order they must run
+     * @return the future results, in the same order
+     * @see #doRpcCallsOrdered(List, RpcCallOptions)
+     */
+    public <T extends TLObject> List<CompletableFuture<T>> doRpcCallsOrdered(List<? extends TLMethod<T>> methods) {
+        return doRpcCallsOrdered(methods, RpcCallOptions.defaults());
+    }
+
+    /**
+     * Do rpc calls ordered: all of them are sent at once, each one wrapped in invokeAfterMsg on
+     * the previous one, so the server runs them in order and they take a single round trip,
+     * like the parts of a long answer to a chat. If a call fails, is cancelled or times out the
+     * next ones fail too, with MSG_WAIT_FAILED. They skip the response cache, the coalescer and the flood governor.
+     *
+     * @param <T>     the type parameter
+     * @param methods the methods, in the order they must run
+     * @param options the options of all of them
+     * @return the future results, in the same order
+     */
+    public <T extends TLObject> List<CompletableFuture<T>> doRpcCallsOrdered(List<? extends TLMethod<T>> methods, RpcCallOptions options) {
+        final ArrayList<CompletableFuture<T>> futures = new ArrayList<>(methods.size());
+        RpcCallbackWrapper previous = null;
+        for (TLMethod<T> method : methods) {
+            final RpcFuture<T> future = sendRpcCall(method, options, previous);
+            futures.add(future);
+            previous = future.wrapper;
+        }
+        return futures;
+    }
+
+    private <T extends TLObject> CompletableFuture<T> sendRpcCall(TLMethod<T> method, RpcCallOptions options) {
+        return sendRpcCall(method, options, null);
+    }
+
+    private <T extends TLObject> RpcFuture<T> sendRpcCall(TLMethod<T> method, RpcCallOptions options, RpcCallbackWrapper previous) {
+        final RpcFuture<T> future = new RpcFuture<>();
+        if (this.isClosed) {
+            future.completeExceptionally(new RpcException(0, "Connection is closed"));
+            return future;
+        }
+        final TLMethod<T> request = options.isGzip() ? new GzipRequest<T>(method) : method;
+        final RpcCallbackWrapper wrapper = new RpcCallbackWrapper(rpcCallIndex.getAndIncrement(), request, future);
+        wrapper.dcId = options.getDcId();
+        wrapper.timeout = options.getTimeout();
+        wrapper.isAuthRequred = options.isAuthRequired();
+        wrapper.priority = options.getPriority() != null ? options.getPriority() : getDefaultPriority(method);
+        wrapper.previous = previous;
+        future.wrapper = wrapper;
+        startRpcCall(wrapper, options.getTimeout());
+        return future;
+    }
+
     /**
      * Do rpc call weak.
      *
      * @param <T>    the type parameter
      * @param method the method
      */
-// Public async methods
     public <T extends TLObject> void doRpcCallWeak(TLMethod<T> method) {
         doRpcCallWeak(method, DEFAULT_TIMEOUT);
     }
@@ -603,18 +1045,27 @@ public class TelegramApi {
         return doRpcCall(tlRequestUploadGetCdnFile, FILE_TIMEOUT, dcId);
     }
 
+    private void requireDc(int dcId, boolean authRequired) {
+        synchronized (this.dcRequired) {
+            if (authRequired || !this.dcRequired.containsKey(dcId)) {
+                this.dcRequired.put(dcId, authRequired);
+            }
+            this.connectionTask.signal();
+        }
+    }
+
     private void checkDcAuth(int dcId) {
         if (dcId != 0) {
             synchronized (this.dcProtos) {
                 if (!this.dcProtos.containsKey(dcId)) {
                     synchronized (this.dcRequired) {
                         this.dcRequired.put(dcId, true);
-                        this.dcRequired.notifyAll();
+                        this.connectionTask.signal();
                     }
                 } else if (!this.state.isAuthenticated(dcId)) {
                     synchronized (this.dcRequired) {
                         this.dcRequired.put(dcId, true);
-                        this.dcRequired.notifyAll();
+                        this.connectionTask.signal();
                     }
                 }
             }
@@ -629,21 +1080,149 @@ public class TelegramApi {
                         if (!this.dcRequired.containsKey(dcId)) {
                             this.dcRequired.put(dcId, false);
                         }
-                        this.dcRequired.notifyAll();
+                        this.connectionTask.signal();
                     }
                 }
             }
         } else if (this.mainProto == null) {
-            synchronized (this.dcRequired) {
-                this.dcRequired.notifyAll();
-            }
+            this.connectionTask.signal();
         }
     }
 
+    /**
+     * Wakes up the sender, to be called when a dc may have become ready for its pending calls
+     */
     public void notifyCallbacks() {
-        synchronized (this.callbacks) {
-            this.callbacks.notifyAll();
+        this.senderTask.signal();
+    }
+
+    /**
+     * Runs a callback on the dispatch executor, or at once if there is none. A failing callback
+     * is logged and never reaches the thread dispatching it.
+     */
+    private void dispatch(Runnable runnable) {
+        final Runnable guarded = () -> {
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                Logger.e(this.TAG, t);
+            }
+        };
+        final Executor executor = this.dispatchExecutor;
+        if (executor != null) {
+            try {
+                executor.execute(guarded);
+                return;
+            } catch (RejectedExecutionException e) {
+                Logger.w(this.TAG, "Dispatch executor rejected a callback, running it inline");
+            }
         }
+        guarded.run();
+    }
+
+    /**
+     * Unregisters the call sent to MTProto with the given id
+     *
+     * @return the call or null if it was unknown or already completed
+     */
+    private RpcCallbackWrapper removeSentCallback(int callId) {
+        final Integer id;
+        synchronized (this.sentRequests) {
+            id = this.sentRequests.remove(callId);
+        }
+        return id != null ? this.callbacks.remove(id) : null;
+    }
+
+    /**
+     * Queues a call to be sent as soon as its dc is ready
+     */
+    private void enqueue(RpcCallbackWrapper wrapper) {
+        enqueue(wrapper, false);
+    }
+
+    /**
+     * Queues a call again at the head of its queue, keeping its order, when its dc went away
+     * after it was taken from the queue
+     */
+    private void requeue(RpcCallbackWrapper wrapper) {
+        enqueue(wrapper, true);
+    }
+
+    private void enqueue(RpcCallbackWrapper wrapper, boolean atHead) {
+        this.sendLock.lock();
+        try {
+            SendQueue queue = this.sendQueues.get(wrapper.dcId);
+            if (queue == null) {
+                queue = new SendQueue();
+                this.sendQueues.put(wrapper.dcId, queue);
+            }
+            final ArrayDeque<RpcCallbackWrapper> target = wrapper.isAuthRequred ? queue.parked : queue.ready;
+            if (atHead) {
+                target.addFirst(wrapper);
+            } else {
+                target.addLast(wrapper);
+            }
+            this.senderTask.signal();
+        } finally {
+            this.sendLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next call whose dc is ready, visiting the dcs in turns so none of them starves
+     * the others. Calls are only looked at from the head of their queue.
+     *
+     * @return the call with the proto of its dc, or null if none can be sent now
+     */
+    private ReadyCall pollReadyCall() {
+        this.sendLock.lock();
+        try {
+            final MTProto main = this.mainProto;
+            if (main == null) {
+                return null;
+            }
+            final int count = this.sendQueues.size();
+            for (int i = 0; i < count; i++) {
+                final Map.Entry<Integer, SendQueue> entry = nextSendQueue();
+                final int dcId = entry.getKey();
+                final MTProto proto;
+                if (dcId == 0) {
+                    proto = main;
+                } else {
+                    synchronized (this.dcProtos) {
+                        proto = this.dcProtos.get(dcId);
+                    }
+                }
+                if (proto == null || proto.isClosed()) {
+                    continue;
+                }
+                final RpcCallbackWrapper wrapper = entry.getValue().poll(this.state.isAuthenticated(dcId == 0 ? this.primaryDc : dcId));
+                if (wrapper != null) {
+                    return new ReadyCall(wrapper, proto);
+                }
+            }
+            return null;
+        } finally {
+            this.sendLock.unlock();
+        }
+    }
+
+    private Map.Entry<Integer, SendQueue> nextSendQueue() {
+        Map.Entry<Integer, SendQueue> res = null;
+        Map.Entry<Integer, SendQueue> first = null;
+        for (Map.Entry<Integer, SendQueue> entry : this.sendQueues.entrySet()) {
+            if (first == null || entry.getKey() < first.getKey()) {
+                first = entry;
+            }
+            if (entry.getKey() > this.lastSendDc && (res == null || entry.getKey() < res.getKey())) {
+                res = entry;
+            }
+        }
+        if (res == null) {
+            res = first;
+        }
+        this.lastSendDc = res.getKey();
+        return res;
     }
 
     private class ProtoCallback implements MTProtoCallback {
@@ -681,7 +1260,7 @@ public class TelegramApi {
                     TelegramApi.this.mainProto.close();
                     TelegramApi.this.mainProto = null;
                     TelegramApi.this.state.setAuthenticated(TelegramApi.this.primaryDc, false);
-                    TelegramApi.this.dcRequired.notifyAll();
+                    TelegramApi.this.connectionTask.signal();
                 }
 
                 synchronized (TelegramApi.this.dcProtos) {
@@ -702,15 +1281,14 @@ public class TelegramApi {
                         }
                     }
                 }
-                synchronized (TelegramApi.this.dcRequired) {
-                    TelegramApi.this.dcRequired.notifyAll();
-                }
+                TelegramApi.this.connectionTask.signal();
             }
         }
 
         @Override
         public void onApiMessage(byte[] message, MTProto proto) {
             if (TelegramApi.this.isClosed) {
+                BytesCache.getInstance().put(message);
                 return;
             }
 
@@ -725,8 +1303,45 @@ public class TelegramApi {
                 }
             }
 
+            final Executor executor = TelegramApi.this.dispatchExecutor;
+            if (executor == null) {
+                onUpdate(decodeMessage(message));
+                return;
+            }
+            try {
+                final CompletableFuture<TLObject> decoded = CompletableFuture.supplyAsync(() -> decodeMessage(message), executor);
+                synchronized (TelegramApi.this.updatesLock) {
+                    TelegramApi.this.updatesTail = TelegramApi.this.updatesTail.thenCombineAsync(decoded, (previous, object) -> {
+                        onUpdate(object);
+                        return null;
+                    }, executor);
+                }
+            } catch (RejectedExecutionException e) {
+                onUpdate(decodeMessage(message));
+            }
+        }
+
+        /**
+         * Decodes an update and releases its bytes
+         *
+         * @return the update or null if it is broken
+         */
+        private TLObject decodeMessage(byte[] message) {
+            try {
+                return TelegramApi.this.apiContext.deserializeMessage(message);
+            } catch (Throwable t) {
+                Logger.e(TelegramApi.this.TAG, t);
+                return null;
+            } finally {
+                BytesCache.getInstance().put(message);
+            }
+        }
+
+        private void onUpdate(TLObject object) {
+            if (object == null || TelegramApi.this.isClosed) {
+                return;
+            }
             try {
-                TLObject object = TelegramApi.this.apiContext.deserializeMessage(message);
                 onMessageArrived(object);
             } catch (Throwable t) {
                 Logger.e(TelegramApi.this.TAG, t);
@@ -736,6 +1351,7 @@ public class TelegramApi {
         @Override
         public void onRpcResult(int callId, byte[] response, MTProto proto) {
             if (TelegramApi.this.isClosed) {
+                BytesCache.getInstance().put(response);
                 return;
             }
 
@@ -750,37 +1366,52 @@ public class TelegramApi {
                 }
             }
 
+            final RpcCallbackWrapper currentCallback = removeSentCallback(callId);
+            if (currentCallback == null || currentCallback.method == null) {
+                BytesCache.getInstance().put(response);
+                return;
+            }
+            dispatch(() -> onResponse(currentCallback, response));
+        }
+
+        /**
+         * Decodes the result of a call and completes it, on the dispatch executor
+         */
+        private void onResponse(RpcCallbackWrapper currentCallback, byte[] response) {
             try {
-                RpcCallbackWrapper currentCallback = null;
-                synchronized (TelegramApi.this.callbacks) {
-                    if (TelegramApi.this.sentRequests.containsKey(callId)) {
-                        currentCallback = TelegramApi.this.callbacks.remove(TelegramApi.this.sentRequests.remove(callId));
+                synchronized (currentCallback) {
+                    if (currentCallback.isCompleted) {
+                        Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " ignored in " + currentCallback.elapsed() + " ms");
+                        return;
                     }
                 }
-                if (currentCallback != null && currentCallback.method != null) {
-                    long start = System.currentTimeMillis();
-                    TLObject object = currentCallback.method.deserializeResponse(response, TelegramApi.this.apiContext);
-                    Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " deserialized " + object + " in " + (System.currentTimeMillis() - start) + " ms");
+                long start = System.currentTimeMillis();
+                TLObject object = currentCallback.method.deserializeResponse(response, TelegramApi.this.apiContext);
+                Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " deserialized " + object + " in " + (System.currentTimeMillis() - start) + " ms");
 
-                    synchronized (currentCallback) {
-                        if (currentCallback.isCompleted) {
-                            Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " ignored " + object + " in " + currentCallback.elapsed() + " ms");
-                            return;
-                        } else {
-                            currentCallback.isCompleted = true;
-                        }
+                synchronized (currentCallback) {
+                    if (currentCallback.isCompleted) {
+                        Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " ignored " + object + " in " + currentCallback.elapsed() + " ms");
+                        return;
+                    } else {
+                        currentCallback.isCompleted = true;
+                        currentCallback.isAnswered = true;
+                        currentCallback.previous = null;
                     }
-                    Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " " + object + " in " + currentCallback.elapsed() + " ms");
+                }
+                Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " " + object + " in " + currentCallback.elapsed() + " ms");
 
-                    synchronized (TelegramApi.this.timeoutTimes) {
-                        TelegramApi.this.timeoutTimes.remove(currentCallback.timeoutTime);
-                    }
-                    if (currentCallback.callback != null) {
-                        currentCallback.callback.onResult(object);
-                    }
+                TelegramApi.this.timeoutWheel.cancel(currentCallback.id);
+                if (object instanceof TLAbsUpdates) {
+                    invalidateResponseCache((TLAbsUpdates) object);
+                }
+                if (currentCallback.callback != null) {
+                    currentCallback.callback.onResult(object);
                 }
             } catch (Throwable t) {
                 Logger.e(TelegramApi.this.TAG, t);
+            } finally {
+                BytesCache.getInstance().put(response);
             }
         }
 
@@ -810,13 +1441,14 @@ public class TelegramApi {
                 }
                 TelegramApi.this.registeredInApi.remove(dc);
 
-                RpcCallbackWrapper currentCallback;
-                synchronized (TelegramApi.this.callbacks) {
-                    currentCallback = TelegramApi.this.callbacks.remove(TelegramApi.this.sentRequests.remove(callId));
-                    if (currentCallback != null) {
-                        currentCallback.isSent = false;
-                        TelegramApi.this.callbacks.notifyAll();
-                    }
+                final Integer id;
+                synchronized (TelegramApi.this.sentRequests) {
+                    id = TelegramApi.this.sentRequests.remove(callId);
+                }
+                final RpcCallbackWrapper currentCallback = id != null ? TelegramApi.this.callbacks.get(id) : null;
+                if (currentCallback != null) {
+                    currentCallback.isSent = false;
+                    enqueue(currentCallback);
                 }
 
                 return;
@@ -834,12 +1466,7 @@ public class TelegramApi {
             }
 
             try {
-                RpcCallbackWrapper currentCallback = null;
-                synchronized (TelegramApi.this.callbacks) {
-                    if (TelegramApi.this.sentRequests.containsKey(callId)) {
-                        currentCallback = TelegramApi.this.callbacks.remove(TelegramApi.this.sentRequests.remove(callId));
-                    }
-                }
+                RpcCallbackWrapper currentCallback = removeSentCallback(callId);
                 if (currentCallback != null) {
                     synchronized (currentCallback) {
                         if (currentCallback.isCompleted) {
@@ -850,11 +1477,9 @@ public class TelegramApi {
                         }
                     }
                     Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " error #" + errorCode + " " + message + " in " + currentCallback.elapsed() + " ms");
-                    synchronized (TelegramApi.this.timeoutTimes) {
-                        TelegramApi.this.timeoutTimes.remove(currentCallback.timeoutTime);
-                    }
+                    TelegramApi.this.timeoutWheel.cancel(currentCallback.id);
                     if (currentCallback.callback != null) {
-                        currentCallback.callback.onError(errorCode, message);
+                        dispatch(() -> currentCallback.callback.onError(errorCode, message));
                     }
                 }
             } catch (Throwable t) {
@@ -864,12 +1489,11 @@ public class TelegramApi {
 
         @Override
         public void onConfirmed(int callId) {
-            RpcCallbackWrapper currentCallback = null;
-            synchronized (TelegramApi.this.callbacks) {
-                if (TelegramApi.this.sentRequests.containsKey(callId)) {
-                    currentCallback = TelegramApi.this.callbacks.get(TelegramApi.this.sentRequests.get(callId));
-                }
+            final Integer id;
+            synchronized (TelegramApi.this.sentRequests) {
+                id = TelegramApi.this.sentRequests.get(callId);
             }
+            final RpcCallbackWrapper currentCallback = id != null ? TelegramApi.this.callbacks.get(id) : null;
             if (currentCallback != null) {
                 Logger.d(TelegramApi.this.TAG, "<< #" + +currentCallback.id + " confirmed in " + currentCallback.elapsed() + " ms");
                 synchronized (currentCallback) {
@@ -884,90 +1508,78 @@ public class TelegramApi {
                 }
             }
         }
-    }
 
-    private class SenderThread extends Thread {
-        /**
-         * Instantiates a new Sender thread.
-         */
-        public SenderThread() {
-            setName("Sender#" + hashCode());
+        @Override
+        public void onWritabilityChanged(MTProto proto) {
+            if (proto == TelegramApi.this.mainProto) {
+                notifyWritable();
+            }
         }
+    }
 
+    /**
+     * Hands the calls whose dc is ready to MTProto, until none is left; it runs again when a call
+     * is queued or a dc becomes ready.
+     */
+    private class SenderStep implements SerialTask.Step {
         @Override
-        public void run() {
-            setPriority(Thread.MIN_PRIORITY);
-            while (!TelegramApi.this.isClosed) {
+        public boolean run() {
+            for (int i = 0; i < CALLS_PER_RUN; i++) {
+                if (TelegramApi.this.isClosed) {
+                    return false;
+                }
                 Logger.d(TelegramApi.this.TAG, "Sender iteration");
-                RpcCallbackWrapper wrapper = null;
-                synchronized (TelegramApi.this.callbacks) {
-                    for (RpcCallbackWrapper w : TelegramApi.this.callbacks.values()) {
-                        if (!w.isSent) {
-                            if (w.dcId == 0 && TelegramApi.this.mainProto != null) {
-                                if (TelegramApi.this.state.isAuthenticated(TelegramApi.this.primaryDc) || !w.isAuthRequred) {
-                                    wrapper = w;
-                                    break;
-                                }
-                            }
-                            if (w.dcId != 0 && TelegramApi.this.dcProtos.containsKey(w.dcId)) {
-                                if (TelegramApi.this.state.isAuthenticated(w.dcId) || !w.isAuthRequred) {
-                                    wrapper = w;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                    if (wrapper == null) {
-                        try {
-                            TelegramApi.this.callbacks.wait();
-                        } catch (InterruptedException e) {
-                            Logger.e(TelegramApi.this.TAG, e);
-                            return;
-                        }
-                        continue;
-                    }
+                final ReadyCall call = pollReadyCall();
+                if (call == null) {
+                    return false;
                 }
 
-                if (TelegramApi.this.mainProto == null) {
+                final RpcCallbackWrapper wrapper = call.wrapper;
+                final MTProto proto = call.proto;
+                if (proto.isClosed()) {
+                    // The dc went away after the call was taken: wait for the next proto of the dc
+                    requeue(wrapper);
                     continue;
                 }
-
-                if (wrapper.dcId == 0) {
-                    if (!TelegramApi.this.state.isAuthenticated(TelegramApi.this.primaryDc) && wrapper.isAuthRequred) {
-                        continue;
-                    }
-                    synchronized (TelegramApi.this.callbacks) {
-                        boolean isHighPriority = wrapper.callback != null && wrapper.callback instanceof RpcCallbackEx;
-                        int rpcId = TelegramApi.this.mainProto.sendRpcMessage(wrapper.method, wrapper.timeout, isHighPriority);
-                        TelegramApi.this.sentRequests.put(rpcId, wrapper.id);
-                        wrapper.isSent = true;
-                        Logger.d(TelegramApi.this.TAG, "#> #" + wrapper.id + " sent to MTProto #" + TelegramApi.this.mainProto.getInstanceIndex() + " with id #" + rpcId);
+                // Kept until the call is answered, so a call sent again is still ordered after it
+                final RpcCallbackWrapper previous = wrapper.previous;
+                boolean isAfterPrevious = false;
+                boolean isPreviousFailed = false;
+                if (previous != null) {
+                    synchronized (previous) {
+                        isAfterPrevious = previous.isSent && previous.sentProto == proto && !previous.isCompleted;
+                        isPreviousFailed = !isAfterPrevious && !previous.isAnswered;
                     }
-                } else {
-                    if (!TelegramApi.this.dcProtos.containsKey(wrapper.dcId) || (!TelegramApi.this.state.isAuthenticated(wrapper.dcId) && wrapper.isAuthRequred)) {
-                        continue;
-                    }
-
-                    MTProto proto = TelegramApi.this.dcProtos.get(wrapper.dcId);
-                    synchronized (TelegramApi.this.callbacks) {
-                        boolean isHighPriority = wrapper.callback != null && wrapper.callback instanceof RpcCallbackEx;
-                        int rpcId = proto.sendRpcMessage(wrapper.method, wrapper.timeout, isHighPriority);
-                        TelegramApi.this.sentRequests.put(rpcId, wrapper.id);
-                        wrapper.isSent = true;
-                        Logger.d(TelegramApi.this.TAG, "#> #" + wrapper.id + " sent to MTProto #" + proto.getInstanceIndex() + " with id #" + rpcId);
+                }
+                if (isPreviousFailed) {
+                    // Failed, cancelled, timed out, lost with its connection or waiting to be sent
+                    // again: the server would not run this one after it, so it fails here unsent
+                    failRpcCall(wrapper, MSG_WAIT_FAILED_CODE, MSG_WAIT_FAILED);
+                    continue;
+                }
+                synchronized (TelegramApi.this.sentRequests) {
+                    final int rpcId;
+                    if (isAfterPrevious) {
+                        rpcId = proto.sendRpcMessageAfter(wrapper.method, wrapper.timeout, wrapper.priority, previous.sentId);
+                    } else {
+                        rpcId = proto.sendRpcMessage(wrapper.method, wrapper.timeout, wrapper.priority, wrapper.isDepend);
                     }
+                    TelegramApi.this.sentRequests.put(rpcId, wrapper.id);
+                    wrapper.sentId = rpcId;
+                    wrapper.sentProto = proto;
+                    wrapper.isSent = true;
+                    Logger.d(TelegramApi.this.TAG, "#> #" + wrapper.id + " sent to MTProto #" + proto.getInstanceIndex() + " with id #" + rpcId);
                 }
             }
+            return true;
         }
     }
 
-    private class ConnectionThread extends Thread {
-        /**
-         * Instantiates a new Connection thread.
-         */
-        public ConnectionThread() {
-            setName("Connection#" + hashCode());
-        }
+    /**
+     * Creates the main proto and starts bringing up the required dcs. Creating the main proto may
+     * block, so it runs on the blocking pool of the runtime.
+     */
+    private class ConnectionStep implements SerialTask.Step {
 
         private MTProto waitForDc(final int dcId) throws IOException, java.util.concurrent.TimeoutException {
             Logger.d(TelegramApi.this.TAG, "#" + dcId + ": waitForDc");
@@ -1031,9 +1643,12 @@ public class TelegramApi {
                                     public TLObject wrapObject(TLMethod srcRequest) {
                                         return wrapForDc(dcId, srcRequest);
                                     }
-                                }, CHANNELS_FS);
+                                }, CHANNELS_FS, TelegramApi.this.runtime);
 
-                        TelegramApi.this.dcProtos.put(dcId, proto);
+                        synchronized (TelegramApi.this.dcProtos) {
+                            TelegramApi.this.dcProtos.put(dcId, proto);
+                            applyTransportSettings(proto);
+                        }
                         return proto;
                     } else {
                         Logger.w(TelegramApi.this.TAG, "#" + dcId + ": Creating key");
@@ -1059,9 +1674,12 @@ public class TelegramApi {
                                     public TLObject wrapObject(TLMethod srcRequest) {
                                         return wrapForDc(dcId, srcRequest);
                                     }
-                                }, CHANNELS_FS);
+                                }, CHANNELS_FS, TelegramApi.this.runtime);
 
-                        TelegramApi.this.dcProtos.put(dcId, proto);
+                        synchronized (TelegramApi.this.dcProtos) {
+                            TelegramApi.this.dcProtos.put(dcId, proto);
+                            applyTransportSettings(proto);
+                        }
 
                         return proto;
                     }
@@ -1072,36 +1690,88 @@ public class TelegramApi {
             }
         }
 
-        private MTProto waitForAuthDc(final int dcId) throws IOException, java.util.concurrent.TimeoutException {
-            Logger.d(TelegramApi.this.TAG, "#" + dcId + ": waitForAuthDc");
-            if (TelegramApi.this.isClosed) {
-                Logger.w(TelegramApi.this.TAG, "#" + dcId + ": Api is closed");
-                throw new TimeoutException();
+        /**
+         * Brings a dc up in background: creates its auth key and proto if needed and then, if
+         * required, imports the authorization of the primary dc. Every dc runs concurrently,
+         * and the sender is woken up as soon as each one is ready.
+         */
+        private void startDcBringUp(final int dcId, final boolean authRequired) {
+            synchronized (TelegramApi.this.dcBringUps) {
+                if (TelegramApi.this.dcBringUps.containsKey(dcId)) {
+                    if (authRequired) {
+                        TelegramApi.this.dcAuthPending.add(dcId);
+                    }
+                    return;
+                }
+                Logger.d(TelegramApi.this.TAG, "#" + dcId + ": bring up started");
+                final long start = System.currentTimeMillis();
+                CompletableFuture<MTProto> bringUp = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return waitForDc(dcId);
+                    } catch (IOException | java.util.concurrent.TimeoutException e) {
+                        throw new CompletionException(e);
+                    }
+                }, TelegramApi.this.dcExecutor);
+                if (authRequired) {
+                    bringUp = bringUp.thenCompose(proto -> authorizeDc(dcId).thenApply(v -> proto));
+                }
+                TelegramApi.this.dcBringUps.put(dcId, bringUp);
+                bringUp.whenComplete((proto, e) -> onDcBringUpCompleted(dcId, e, start));
             }
+        }
 
-            MTProto proto = waitForDc(dcId);
-
-            if (!TelegramApi.this.state.isAuthenticated(dcId)) {
-                Logger.w(TelegramApi.this.TAG, "#" + dcId + ": exporting auth");
-                TLRequestAuthExportAuthorization exportAuthorization = new TLRequestAuthExportAuthorization();
-                exportAuthorization.setDcId(dcId);
-                TLExportedAuthorization exAuth = doRpcCall(exportAuthorization);
+        private void onDcBringUpCompleted(final int dcId, Throwable e, long start) {
+            final boolean isAuthPending;
+            synchronized (TelegramApi.this.dcBringUps) {
+                TelegramApi.this.dcBringUps.remove(dcId);
+                isAuthPending = TelegramApi.this.dcAuthPending.remove(dcId);
+            }
+            if (TelegramApi.this.isClosed) {
+                return;
+            }
+            if (e != null) {
+                Logger.e(TelegramApi.this.TAG, e);
+                if (hasPendingCalls(dcId)) {
+                    TelegramApi.this.runtime.getTimer().schedule(() -> requireDc(dcId, isAuthPending || !TelegramApi.this.state.isAuthenticated(dcId)), DC_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            Logger.d(TelegramApi.this.TAG, "#" + dcId + ": ready in " + (System.currentTimeMillis() - start) + " ms");
+            if (isAuthPending && !TelegramApi.this.state.isAuthenticated(dcId)) {
+                requireDc(dcId, true);
+            }
+            notifyCallbacks();
+        }
 
+        private CompletableFuture<Void> authorizeDc(final int dcId) {
+            if (TelegramApi.this.state.isAuthenticated(dcId) || !TelegramApi.this.state.isAuthenticated(TelegramApi.this.primaryDc)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            Logger.w(TelegramApi.this.TAG, "#" + dcId + ": exporting auth");
+            TLRequestAuthExportAuthorization exportAuthorization = new TLRequestAuthExportAuthorization();
+            exportAuthorization.setDcId(dcId);
+            return doRpcCallAsync(exportAuthorization).thenCompose(exAuth -> {
                 Logger.w(TelegramApi.this.TAG, "#" + dcId + ": importing auth");
                 TLRequestAuthImportAuthorization tlRequestAuthImportAuthorization = new TLRequestAuthImportAuthorization();
                 tlRequestAuthImportAuthorization.setId(exAuth.getId());
                 tlRequestAuthImportAuthorization.setBytes(exAuth.getBytes());
-                doRpcCallNonAuth(tlRequestAuthImportAuthorization, DEFAULT_TIMEOUT, dcId);
+                return doRpcCallAsync(tlRequestAuthImportAuthorization, RpcCallOptions.defaults()
+                        .setTimeout(DEFAULT_TIMEOUT).setDcId(dcId).setAuthRequired(false));
+            }).thenAccept(authorization -> TelegramApi.this.state.setAuthenticated(dcId, true));
+        }
 
-                TelegramApi.this.state.setAuthenticated(dcId, true);
+        private boolean hasPendingCalls(int dcId) {
+            TelegramApi.this.sendLock.lock();
+            try {
+                final SendQueue queue = TelegramApi.this.sendQueues.get(dcId);
+                return queue != null && !queue.isEmpty();
+            } finally {
+                TelegramApi.this.sendLock.unlock();
             }
-
-            return proto;
         }
 
         @Override
-        public void run() {
-            setPriority(Thread.MIN_PRIORITY);
+        public boolean run() {
             while (!TelegramApi.this.isClosed) {
                 Logger.d(TelegramApi.this.TAG, "Connection iteration");
                 if (TelegramApi.this.mainProto == null) {
@@ -1115,17 +1785,13 @@ public class TelegramApi {
                                         public TLObject wrapObject(TLMethod srcRequest) {
                                             return wrapForDc(TelegramApi.this.primaryDc, srcRequest);
                                         }
-                                    }, CHANNELS_MAIN);
+                                    }, CHANNELS_MAIN, TelegramApi.this.runtime);
+                            applyTransportSettings(TelegramApi.this.mainProto);
                             Logger.d(TelegramApi.this.TAG, "#MTProto #" + TelegramApi.this.mainProto.getInstanceIndex() + " created in " + (System.currentTimeMillis() - start) + " ms");
                         } catch (IOException | java.util.concurrent.TimeoutException e) {
                             Logger.e(TelegramApi.this.TAG, e);
-                            try {
-                                Thread.sleep(1000);
-                                continue;
-                            } catch (InterruptedException e1) {
-                                Logger.e(TelegramApi.this.TAG, e1);
-                                return;
-                            }
+                            TelegramApi.this.connectionTask.signalAfter(DC_RETRY_DELAY);
+                            return false;
                         }
                     } else {
                         long start = System.currentTimeMillis();
@@ -1135,12 +1801,12 @@ public class TelegramApi {
                                     public TLObject wrapObject(TLMethod srcRequest) {
                                         return wrapForDc(TelegramApi.this.primaryDc, srcRequest);
                                     }
-                                }, CHANNELS_MAIN);
+                                }, CHANNELS_MAIN, TelegramApi.this.runtime);
+                        applyTransportSettings(TelegramApi.this.mainProto);
                         Logger.d(TelegramApi.this.TAG, "#MTProto #" + TelegramApi.this.mainProto.getInstanceIndex() + " created in " + (System.currentTimeMillis() - start) + " ms");
                     }
-                    synchronized (TelegramApi.this.callbacks) {
-                        TelegramApi.this.callbacks.notifyAll();
-                    }
+                    notifyCallbacks();
+                    notifyWritable();
                     continue;
                 }
 
@@ -1159,140 +1825,123 @@ public class TelegramApi {
                     }
 
                     if (dcId == null) {
-                        try {
-                            TelegramApi.this.dcRequired.wait();
-                        } catch (InterruptedException e) {
-                            // e.printStackTrace();
-                        }
-                        continue;
+                        return false;
                     }
 
                     authRequired = TelegramApi.this.dcRequired.remove(dcId);
                 }
 
-                if (TelegramApi.this.dcProtos.containsKey(dcId)) {
-                    if (authRequired && !TelegramApi.this.state.isAuthenticated(dcId) && TelegramApi.this.state.isAuthenticated(TelegramApi.this.primaryDc)) {
-                        try {
-                            waitForAuthDc(dcId);
-                            synchronized (TelegramApi.this.callbacks) {
-                                TelegramApi.this.callbacks.notifyAll();
-                            }
-                        } catch (IOException | java.util.concurrent.TimeoutException e) {
-                            try {
-                                Thread.sleep(1000);
-                                continue;
-                            } catch (InterruptedException e1) {
-                                Logger.e(TelegramApi.this.TAG, e1);
-                                return;
-                            }
-                        }
+                if (TelegramApi.this.dcProtos.containsKey(dcId) && (!authRequired || TelegramApi.this.state.isAuthenticated(dcId))) {
+                    continue;
+                }
+                startDcBringUp(dcId, authRequired);
+            }
+            return false;
+        }
+    }
+
+    private class TimeoutHandler implements RpcTimeoutWheel.ExpiryHandler {
+        @Override
+        public void onExpired(int[] ids) {
+            for (int id : ids) {
+                RpcCallbackWrapper currentCallback = TelegramApi.this.callbacks.remove(id);
+                if (currentCallback == null) {
+                    Logger.d(TelegramApi.this.TAG, "RPC #" + id + ": Timeout ignored2");
+                    continue;
+                }
+                synchronized (currentCallback) {
+                    if (currentCallback.isCompleted) {
+                        Logger.d(TelegramApi.this.TAG, "RPC #" + id + ": Timeout ignored");
+                        continue;
+                    } else {
+                        currentCallback.isCompleted = true;
                     }
+                }
+                Logger.d(TelegramApi.this.TAG, "RPC #" + id + ": Timeout (" + currentCallback.elapsed() + " ms)");
+                // Runs on the shared timer: the callbacks and the stages of the futures go to the dispatchers
+                if (currentCallback.callback instanceof RpcFuture && !TelegramApi.this.isClosed) {
+                    final RpcFuture future = (RpcFuture) currentCallback.callback;
+                    dispatch(future::onTimeout);
                 } else {
-                    try {
-                        if (authRequired && !TelegramApi.this.state.isAuthenticated(dcId) && TelegramApi.this.state.isAuthenticated(TelegramApi.this.primaryDc)) {
-                            waitForAuthDc(dcId);
-                        } else {
-                            waitForDc(dcId);
-                        }
-                        synchronized (TelegramApi.this.callbacks) {
-                            TelegramApi.this.callbacks.notifyAll();
-                        }
-                    } catch (IOException | java.util.concurrent.TimeoutException e) {
-                        Logger.e(TelegramApi.this.TAG, e);
-                    }
+                    final RpcCallback callback = currentCallback.callback;
+                    dispatch(() -> callback.onError(0, null));
                 }
             }
         }
     }
 
-    private class TimeoutThread extends Thread {
+    /**
+     * Calls waiting to be sent to a dc. Calls not requiring authorization are ready as soon as
+     * the dc is connected, the rest are parked until it is authorized.
+     */
+    private class SendQueue {
+        private final ArrayDeque<RpcCallbackWrapper> ready = new ArrayDeque<>();
+        private final ArrayDeque<RpcCallbackWrapper> parked = new ArrayDeque<>();
+
+        private RpcCallbackWrapper poll(boolean isAuthenticated) {
+            RpcCallbackWrapper wrapper = pollActive(this.ready);
+            if (wrapper == null && isAuthenticated) {
+                wrapper = pollActive(this.parked);
+            }
+            return wrapper;
+        }
+
+        private boolean isEmpty() {
+            return this.ready.isEmpty() && this.parked.isEmpty();
+        }
+
         /**
-         * Instantiates a new Timeout thread.
+         * Skips the calls that timed out while queued
          */
-        public TimeoutThread() {
-            setName("Timeout#" + hashCode());
+        private RpcCallbackWrapper pollActive(ArrayDeque<RpcCallbackWrapper> queue) {
+            RpcCallbackWrapper wrapper;
+            while ((wrapper = queue.poll()) != null) {
+                if (TelegramApi.this.callbacks.get(wrapper.id) == wrapper) {
+                    return wrapper;
+                }
+            }
+            return null;
         }
+    }
 
-        @Override
-        public void run() {
-            while (!TelegramApi.this.isClosed) {
-                Logger.d(TelegramApi.this.TAG, "Timeout Iteration");
-                Long key = null;
-                Integer id = null;
-                synchronized (TelegramApi.this.timeoutTimes) {
-                    if (TelegramApi.this.timeoutTimes.isEmpty()) {
-                        key = null;
-                    } else {
-                        try {
-                            key = TelegramApi.this.timeoutTimes.firstKey();
-                        } catch (Exception e) {
-                            Logger.e(TelegramApi.this.TAG, e);
-                        }
-                    }
+    /**
+     * A call taken from its queue and the proto it is sent to, read together under the locks
+     */
+    private static class ReadyCall {
+        private final RpcCallbackWrapper wrapper;
+        private final MTProto proto;
 
-                    if (key == null) {
-                        try {
-                            TelegramApi.this.timeoutTimes.wait();
-                        } catch (InterruptedException e) {
-                            // e.printStackTrace();
-                        }
-                        continue;
-                    }
+        private ReadyCall(RpcCallbackWrapper wrapper, MTProto proto) {
+            this.wrapper = wrapper;
+            this.proto = proto;
+        }
+    }
 
-                    long delta = (key - System.nanoTime()) / (1000 * 1000);
-                    if (delta > 0) {
-                        try {
-                            TelegramApi.this.timeoutTimes.wait(delta);
-                        } catch (InterruptedException e) {
-                            // e.printStackTrace();
-                        }
-                        continue;
-                    }
+    private class RpcFuture<T extends TLObject> extends CompletableFuture<T> implements RpcCallback<T> {
+        private volatile RpcCallbackWrapper wrapper;
 
-                    id = TelegramApi.this.timeoutTimes.remove(key);
-                    if (id == null) {
-                        continue;
-                    }
-                }
+        @Override
+        public void onResult(T result) {
+            complete(result);
+        }
 
-                RpcCallbackWrapper currentCallback;
-                synchronized (TelegramApi.this.callbacks) {
-                    currentCallback = TelegramApi.this.callbacks.remove(id);
-                }
-                if (currentCallback != null) {
-                    synchronized (currentCallback) {
-                        if (currentCallback.isCompleted) {
-                            Logger.d(TelegramApi.this.TAG, "RPC #" + id + ": Timeout ignored");
-                            return;
-                        } else {
-                            currentCallback.isCompleted = true;
-                        }
-                    }
-                    Logger.d(TelegramApi.this.TAG, "RPC #" + id + ": Timeout (" + currentCallback.elapsed() + " ms)");
-                    currentCallback.callback.onError(0, null);
-                } else {
-                    Logger.d(TelegramApi.this.TAG, "RPC #" + id + ": Timeout ignored2");
-                }
-            }
-            synchronized (TelegramApi.this.timeoutTimes) {
-                for (Map.Entry<Long, Integer> entry : TelegramApi.this.timeoutTimes.entrySet()) {
-                    RpcCallbackWrapper currentCallback;
-                    synchronized (TelegramApi.this.callbacks) {
-                        currentCallback = TelegramApi.this.callbacks.remove(entry.getValue());
-                    }
-                    if (currentCallback != null) {
-                        synchronized (currentCallback) {
-                            if (currentCallback.isCompleted) {
-                                return;
-                            } else {
-                                currentCallback.isCompleted = true;
-                            }
-                        }
-                        Logger.d(TelegramApi.this.TAG, "RPC #" + entry.getValue() + ": Timeout (" + currentCallback.elapsed() + " ms)");
-                        currentCallback.callback.onError(0, null);
-                    }
-                }
+        @Override
+        public void onError(int errorCode, String message) {
+            completeExceptionally(new RpcException(errorCode, message));
+        }
+
+        private void onTimeout() {
+            completeExceptionally(new TimeoutException("RPC #" + this.wrapper.id + " timed out after " +
+                    this.wrapper.timeout + " ms"));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && this.wrapper != null) {
+                cancelRpcCall(this.wrapper);
             }
+            return cancelled;
         }
     }
 
@@ -1313,6 +1962,10 @@ public class TelegramApi {
          * The Is completed.
          */
         public boolean isCompleted;
+        /**
+         * Whether it was completed with a result, not an error.
+         */
+        public boolean isAnswered;
         /**
          * The Is confirmed.
          */
@@ -1321,10 +1974,6 @@ public class TelegramApi {
          * The Callback.
          */
         public RpcCallback callback;
-        /**
-         * The Timeout time.
-         */
-        public long timeoutTime;
         /**
          * The Timeout.
          */
@@ -1338,10 +1987,30 @@ public class TelegramApi {
          * The Is auth requred.
          */
         public boolean isAuthRequred;
+        /**
+         * The traffic class.
+         */
+        public RpcPriority priority = RpcPriority.NORMAL;
+        /**
+         * Whether it is invoked after the previous call with it set.
+         */
+        public boolean isDepend;
+        /**
+         * The call it is invoked after, until it is answered.
+         */
+        public volatile RpcCallbackWrapper previous;
         /**
          * The Dc id.
          */
         public int dcId;
+        /**
+         * The MTProto the call was last sent to.
+         */
+        public volatile MTProto sentProto;
+        /**
+         * The MTProto id of the call when it was last sent.
+         */
+        public volatile int sentId;
 
         private RpcCallbackWrapper(int id, TLMethod method, RpcCallback callback) {
             this.id = id;
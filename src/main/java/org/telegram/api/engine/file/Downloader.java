@@ -9,6 +9,7 @@ import org.telegram.api.upload.cdn.TLCdnFile;
 import org.telegram.api.upload.file.TLAbsFile;
 import org.telegram.api.upload.file.TLFile;
 import org.telegram.api.upload.file.TLFileCdnRedirect;
+import org.telegram.mtproto.util.EngineThreads;
 import org.telegram.tl.TLBytes;
 
 import java.io.FileNotFoundException;
@@ -17,7 +18,10 @@ import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Random;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Ruben Bermudez on 18.11.13.
@@ -53,10 +57,11 @@ public class Downloader {
     private static final int BLOCK_COMPLETED = 2;
     private final AtomicInteger fileIds = new AtomicInteger(1);
     private final String TAG;
-    private final Object threadLocker = new Object();
+    private final ReentrantLock threadLocker = new ReentrantLock();
+    private final Condition threadSignal = this.threadLocker.newCondition();
     private TelegramApi api;
     private ArrayList<DownloadTask> tasks = new ArrayList<DownloadTask>();
-    private ArrayList<DownloadFileThread> threads = new ArrayList<DownloadFileThread>();
+    private ArrayList<Thread> threads = new ArrayList<Thread>();
     private Random rnd = new Random();
 
     /**
@@ -69,7 +74,7 @@ public class Downloader {
         this.api = api;
 
         for (int i = 0; i < PARALLEL_PARTS_COUNT; i++) {
-            DownloadFileThread thread = new DownloadFileThread();
+            Thread thread = EngineThreads.newThread(new DownloadFileThread(), "DownloadFileThread#" + i + "#" + hashCode());
             thread.start();
             this.threads.add(thread);
         }
@@ -133,13 +138,14 @@ public class Downloader {
             if ((state == FILE_COMPLETED) || (state == FILE_FAILURE) || (state == FILE_CANCELED)) {
                 return;
             }
-            synchronized (this.threadLocker) {
-                try {
-                    this.threadLocker.wait(DEFAULT_DELAY);
-                } catch (InterruptedException e) {
-                    Logger.e(this.TAG, e);
-                    return;
-                }
+            this.threadLocker.lock();
+            try {
+                this.threadSignal.await(DEFAULT_DELAY, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Logger.e(this.TAG, e);
+                return;
+            } finally {
+                this.threadLocker.unlock();
             }
         }
     }
@@ -232,8 +238,11 @@ public class Downloader {
             Logger.d(this.TAG, "File #" + minTask.taskId + "| Downloading");
         }
 
-        synchronized (this.threadLocker) {
-            this.threadLocker.notifyAll();
+        this.threadLocker.lock();
+        try {
+            this.threadSignal.signalAll();
+        } finally {
+            this.threadLocker.unlock();
         }
     }
 
@@ -427,18 +436,10 @@ public class Downloader {
         public int index;
     }
 
-    private class DownloadFileThread extends Thread {
-
-        /**
-         * Instantiates a new Download file thread.
-         */
-        public DownloadFileThread() {
-            setName("DownloadFileThread#" + hashCode());
-        }
-
+    private class DownloadFileThread implements Runnable {
         @Override
         public void run() {
-            setPriority(Thread.MIN_PRIORITY);
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
             while (true) {
                 Logger.d(Downloader.this.TAG, "DownloadFileThread iteration");
                 try {
@@ -449,14 +450,15 @@ public class Downloader {
                 }
                 DownloadBlock block = fetchBlock();
                 if (block == null) {
-                    synchronized (Downloader.this.threadLocker) {
-                        try {
-                            Downloader.this.threadLocker.wait();
-                            continue;
-                        } catch (InterruptedException e) {
-                            Logger.e(Downloader.this.TAG, e);
-                            return;
-                        }
+                    Downloader.this.threadLocker.lock();
+                    try {
+                        Downloader.this.threadSignal.await();
+                        continue;
+                    } catch (InterruptedException e) {
+                        Logger.e(Downloader.this.TAG, e);
+                        return;
+                    } finally {
+                        Downloader.this.threadLocker.unlock();
                     }
                 }
 
@@ -4,6 +4,7 @@ import org.telegram.api.engine.Logger;
 import org.telegram.api.engine.TelegramApi;
 import org.telegram.mtproto.secure.CryptoUtils;
 import org.telegram.mtproto.secure.Entropy;
+import org.telegram.mtproto.util.EngineThreads;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -12,7 +13,10 @@ import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Random;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Ruben Bermudez on 19.11.13.
@@ -48,10 +52,11 @@ public class Uploader {
     private static final int MAX_BLOCK_COUNT = 3000;
     private final AtomicInteger fileIds = new AtomicInteger(1);
     private final String TAG;
-    private final Object threadLocker = new Object();
+    private final ReentrantLock threadLocker = new ReentrantLock();
+    private final Condition threadSignal = this.threadLocker.newCondition();
     private TelegramApi api;
     private ArrayList<UploadTask> tasks = new ArrayList<UploadTask>();
-    private ArrayList<UploadFileThread> threads = new ArrayList<UploadFileThread>();
+    private ArrayList<Thread> threads = new ArrayList<Thread>();
     private Random rnd = new Random();
 
     /**
@@ -64,7 +69,7 @@ public class Uploader {
         this.api = api;
 
         for (int i = 0; i < PARALLEL_PARTS_COUNT; i++) {
-            UploadFileThread thread = new UploadFileThread();
+            Thread thread = EngineThreads.newThread(new UploadFileThread(), "UploadFileThread#" + i + "#" + hashCode());
             thread.start();
             this.threads.add(thread);
         }
@@ -128,13 +133,14 @@ public class Uploader {
             if ((state == FILE_COMPLETED) || (state == FILE_CANCELED)) {
                 return;
             }
-            synchronized (this.threadLocker) {
-                try {
-                    this.threadLocker.wait(DEFAULT_DELAY);
-                } catch (InterruptedException e) {
-                    Logger.e(this.TAG, e);
-                    return;
-                }
+            this.threadLocker.lock();
+            try {
+                this.threadSignal.await(DEFAULT_DELAY, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Logger.e(this.TAG, e);
+                return;
+            } finally {
+                this.threadLocker.unlock();
             }
         }
     }
@@ -267,8 +273,11 @@ public class Uploader {
             Logger.d(this.TAG, "File #" + minTask.uniqId + "| Uploading");
         }
 
-        synchronized (this.threadLocker) {
-            this.threadLocker.notifyAll();
+        this.threadLocker.lock();
+        try {
+            this.threadSignal.signalAll();
+        } finally {
+            this.threadLocker.unlock();
         }
     }
 
@@ -497,18 +506,10 @@ public class Uploader {
         public byte[] workData;
     }
 
-    private class UploadFileThread extends Thread {
-
-        /**
-         * Instantiates a new Upload file thread.
-         */
-        public UploadFileThread() {
-            setName("UploadFileThread#" + hashCode());
-        }
-
+    private class UploadFileThread implements Runnable {
         @Override
         public void run() {
-            setPriority(Thread.MIN_PRIORITY);
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
             while (true) {
                 Logger.d(Uploader.this.TAG, "UploadFileThread iteration");
                 try {
@@ -519,14 +520,15 @@ public class Uploader {
                 }
                 UploadBlock block = fetchBlock();
                 if (block == null) {
-                    synchronized (Uploader.this.threadLocker) {
-                        try {
-                            Uploader.this.threadLocker.wait();
-                            continue;
-                        } catch (InterruptedException e) {
-                            Logger.e(Uploader.this.TAG, e);
-                            return;
-                        }
+                    Uploader.this.threadLocker.lock();
+                    try {
+                        Uploader.this.threadSignal.await();
+                        continue;
+                    } catch (InterruptedException e) {
+                        Logger.e(Uploader.this.TAG, e);
+                        return;
+                    } finally {
+                        Uploader.this.threadLocker.unlock();
                     }
                 }
 
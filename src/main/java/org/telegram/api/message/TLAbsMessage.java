@@ -14,5 +14,7 @@ public abstract class TLAbsMessage extends TLObject {
         super();
     }
 
+    public abstract int getId();
+
     public abstract int getChatId();
 }
\ No newline at end of file
@@ -17,6 +17,7 @@ import org.telegram.tl.TLMethod;
 import org.telegram.tl.TLObject;
 import org.telegram.tl.TLVector;
 
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -58,6 +59,13 @@ public interface IKernelComm extends NotificationsService.NotificationObserver {
                           @Nullable TLVector<TLAbsMessageEntity> entities,
                           boolean enableWebPreview, boolean parseMarkdown, TelegramFunctionCallback<TLAbsUpdates> callback);
 
+    /**
+     * Sends several messages to a user at once, they are delivered in order. The callback is
+     * called once: with the answer to the last message, or with the first error, after which
+     * the next messages are not delivered.
+     */
+    void sendMessagesAsync(@NotNull IUser user, @NotNull List<String> messages, @Nullable TelegramFunctionCallback<TLAbsUpdates> callback);
+
     void sendMessageWithEntitiesAsync(@NotNull IUser user, @NotNull String message, @NotNull TLVector<TLAbsMessageEntity> entities, TelegramFunctionCallback<TLAbsUpdates> callback);
 
     void sendMessageAsReply(@NotNull IUser user, @NotNull String message, @NotNull Integer replayToMsg) throws RpcException;
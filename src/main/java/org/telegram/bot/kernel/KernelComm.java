@@ -40,6 +40,8 @@ import org.telegram.bot.services.BotLogger;
 import org.telegram.bot.services.NotificationsService;
 import org.telegram.bot.structure.Chat;
 import org.telegram.bot.structure.IUser;
+import org.telegram.mtproto.secure.Entropy;
+import org.telegram.mtproto.util.EngineThreads;
 import org.telegram.tl.TLMethod;
 import org.telegram.tl.TLObject;
 import org.telegram.tl.TLVector;
@@ -48,7 +50,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -71,8 +74,13 @@ public class KernelComm implements IKernelComm {
     private static final Pattern italicMarkdownRegex =  Pattern.compile("\\_.+?\\_");
     private static final Pattern codeMarkdownRegex = Pattern.compile("\\`.+?\\`");
 
-    private final ExecutorService exe = Executors.newCachedThreadPool();
-    private final SecureRandom random = new SecureRandom();
+    private static final int CALLBACK_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Runs the callbacks of async calls, the calls themselves do not hold any thread.
+     * With virtual threads every callback gets its own thread.
+     */
+    private final ExecutorService exe = EngineThreads.newExecutor("KernelComm", CALLBACK_THREADS, false);
     private final AbsApiState apiState;
     private final int apiKey;
     private TelegramApi api;
@@ -88,7 +96,7 @@ public class KernelComm implements IKernelComm {
             final byte[] buffer = new byte[BYTES];
             sUrandomIn.read(buffer);
             sUrandomIn.close();
-            this.random.setSeed(buffer);
+            Entropy.getInstance().feedEntropy(buffer);
         } catch (FileNotFoundException e) {
             BotLogger.info(LOGTAG, e);
         } catch (Exception e) {
@@ -165,27 +173,18 @@ public class KernelComm implements IKernelComm {
     public <T extends TLObject> T doRpcCallSync(final TLMethod<T> method) throws ExecutionException, RpcException {
         T answer = null;
         if (getApi() != null) {
-            final Future<T> result = this.exe.submit(() -> {
-                T internalAnswer = null;
-                try {
-                    internalAnswer = getApi().doRpcCall(method);
-                } catch (RpcException e) {
-                    BotLogger.debug(LOGTAG, "Rpc call failed", e);
-                    throw e;
-                } catch (TimeoutException e) {
-                    BotLogger.debug(LOGTAG, "timeout");
-                } catch (Exception e) {
-                    BotLogger.error(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallSync", e);
-                }
-
-                return internalAnswer;
-            });
             try {
-                answer = result.get();
+                answer = getApi().doRpcCallAsync(method).get();
             } catch (InterruptedException e) {
                 BotLogger.error(LOGTAG, e);
-            } catch (Exception e) {
-                BotLogger.error(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallSync", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RpcException) {
+                    BotLogger.debug(LOGTAG, "Rpc call failed", e.getCause());
+                } else if (e.getCause() instanceof TimeoutException) {
+                    BotLogger.debug(LOGTAG, "timeout");
+                } else {
+                    BotLogger.error(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallSync", e);
+                }
             }
         }
 
@@ -196,24 +195,17 @@ public class KernelComm implements IKernelComm {
     @Override
     public <T extends TLObject> T doRpcCallSyncNoAuth(final TLMethod<T> method) throws ExecutionException {
         T answer = null;
-        final Future<T> result = this.exe.submit(() -> {
-            T answerInternal = null;
-            try {
-                answerInternal = this.api.doRpcCallNonAuth(method);
-            } catch (RpcException e) {
-                BotLogger.error(LOGTAG, "Rpc call failed", e);
-                throw e;
-            } catch (Exception e) {
-                BotLogger.error(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallSyncNoAuth");
-            }
-            return answerInternal;
-        });
         try {
-            answer = result.get();
+            answer = this.api.doRpcCallAsync(method, RpcCallOptions.defaults()
+                    .setDcId(this.apiState.getPrimaryDc()).setAuthRequired(false)).get();
         } catch (InterruptedException e) {
             BotLogger.error(LOGTAG, e);
-        } catch (Exception e) {
-            BotLogger.severe(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallSyncNoAuth");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RpcException) {
+                BotLogger.error(LOGTAG, "Rpc call failed", e.getCause());
+            } else {
+                BotLogger.severe(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallSyncNoAuth");
+            }
         }
 
         handleAffectedMessagesAndHistory(answer);
@@ -223,51 +215,94 @@ public class KernelComm implements IKernelComm {
     @Override
     public <T extends TLObject> void doRpcCallAsync(final TLMethod<T> method, TelegramFunctionCallback<T> callback) {
         if (getApi() != null) {
-            final CompletableFuture<T> result = CompletableFuture.supplyAsync(() -> {
-                T internalAnswer = null;
-                try {
-                    internalAnswer = getApi().doRpcCall(method);
-                    handleAffectedMessagesAndHistory(internalAnswer);
-                } catch (RpcException e) {
-                    BotLogger.debug(LOGTAG, "Rpc call failed", e);
-                    callback.onRpcError(e);
-                } catch (TimeoutException e) {
-                    BotLogger.debug(LOGTAG, "timeout");
-                    callback.onTimeout(e);
-                } catch (Exception e) {
-                    BotLogger.error(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallSync", e);
-                    callback.onUnknownError(e);
-                }
+            handleAsyncResult(getApi().doRpcCallAsync(method), callback);
+        }
+    }
 
-                return internalAnswer;
-            });
-            result.handleAsync((ok, ex) -> {
-                if (ok != null) {
-                    callback.onSuccess(ok);
-                } else {
-                    callback.onUnknownError(ex);
+    private <T extends TLObject> void handleAsyncResult(CompletableFuture<T> future, @Nullable TelegramFunctionCallback<T> callback) {
+        future.whenCompleteAsync((result, ex) -> {
+            final Throwable cause = (ex instanceof CompletionException) ? ex.getCause() : ex;
+            if (cause == null) {
+                handleAffectedMessagesAndHistory(result);
+                if (callback != null) {
+                    callback.onSuccess(result);
+                }
+            } else if (cause instanceof RpcException) {
+                BotLogger.debug(LOGTAG, "Rpc call failed", cause);
+                if (callback != null) {
+                    callback.onRpcError((RpcException) cause);
+                }
+            } else if (cause instanceof TimeoutException) {
+                BotLogger.debug(LOGTAG, "timeout");
+                if (callback != null) {
+                    callback.onTimeout((TimeoutException) cause);
+                }
+            } else {
+                BotLogger.error(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallAsync", cause);
+                if (callback != null) {
+                    callback.onUnknownError(cause);
                 }
-                return null;
-            });
+            }
+        }, this.exe);
+    }
+
+    @Override
+    public void sendMessagesAsync(@NotNull IUser user, @NotNull List<String> messages, @Nullable TelegramFunctionCallback<TLAbsUpdates> callback) {
+        if (getApi() == null) {
+            return;
         }
+        final ArrayList<TLRequestMessagesSendMessage> requests = new ArrayList<>();
+        for (String message : messages) {
+            if ((message != null) && !message.isEmpty()) {
+                final TLRequestMessagesSendMessage request = new TLRequestMessagesSendMessage();
+                request.setPeer(TLFactory.createTLInputPeer(user, null));
+                request.setMessage(message);
+                request.setRandomId(Entropy.getInstance().randomInt());
+                requests.add(request);
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+        BotLogger.info(LOGTAG, "Sending " + requests.size() + " ordered messages to: " + user.getUserId());
+        final List<CompletableFuture<TLAbsUpdates>> parts = getApi().doRpcCallsOrdered(requests);
+        final CompletableFuture<TLAbsUpdates> sent = new CompletableFuture<>();
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture[parts.size()])).whenComplete((ignored, ex) -> {
+            // The callback gets the answer to the last message, or the first error in order
+            TLAbsUpdates last = null;
+            for (int i = 0; i < parts.size(); i++) {
+                try {
+                    last = parts.get(i).join();
+                } catch (CompletionException e) {
+                    sent.completeExceptionally(e.getCause());
+                    return;
+                } catch (CancellationException e) {
+                    sent.completeExceptionally(e);
+                    return;
+                }
+                if (i < parts.size() - 1) {
+                    handleAffectedMessagesAndHistory(last);
+                }
+            }
+            sent.complete(last);
+        });
+        handleAsyncResult(sent, callback);
     }
 
     @Override
     public void doRpcCallAsyncNoReturn(final TLMethod<TLObject> method) {
-        this.exe.submit(() -> {
-            try {
-                final TLObject answer = this.api.doRpcCall(method);
+        this.api.doRpcCallAsync(method).whenCompleteAsync((answer, ex) -> {
+            final Throwable cause = (ex instanceof CompletionException) ? ex.getCause() : ex;
+            if (cause == null) {
                 handleAffectedMessagesAndHistory(answer);
-            } catch (RpcException e) {
-                BotLogger.severe(LOGTAG, "Rpc call failed", e);
-            } catch (TimeoutException e) {
+            } else if (cause instanceof RpcException) {
+                BotLogger.severe(LOGTAG, "Rpc call failed", cause);
+            } else if (cause instanceof TimeoutException) {
                 BotLogger.severe(LOGTAG, "timeout");
-            } catch (IOException e) {
-                BotLogger.error(LOGTAG, e);
-            } catch (Exception e) {
+            } else {
                 BotLogger.error(LOGTAG, "Bot threw an unexpected exception at KernelComm-doRpcCallAsyncNoReturn");
             }
-        });
+        }, this.exe);
     }
 
     private void sendMessageInternal(@NotNull IUser user, @Nullable String message, @Nullable Integer replayToMsg,
@@ -340,7 +375,7 @@ public class KernelComm implements IKernelComm {
 
         if (canSend) {
             BotLogger.info(LOGTAG, "Sending message to: " + user.getUserId());
-            final int id = this.random.nextInt();
+            final int id = Entropy.getInstance().randomInt();
             request.setRandomId(id);
 
             doRpcCallAsync(request, callback);
@@ -429,7 +464,7 @@ public class KernelComm implements IKernelComm {
     }
 
     private void performSendMessageSyncInternal(TLRequestMessagesSendMessage request) throws RpcException {
-        final int id = this.random.nextInt();
+        final int id = Entropy.getInstance().randomInt();
         request.setRandomId(id);
 
         try {
@@ -614,7 +649,7 @@ public class KernelComm implements IKernelComm {
 
     @Override
     public void sendMedia(@NotNull IUser user, @NotNull TLAbsInputMedia media) throws RpcException{
-        final int id = this.random.nextInt();
+        final int id = Entropy.getInstance().randomInt();
         try {
             BotLogger.debug(LOGTAG, "Sending media " + id + " to: " + user + " : " + media);
             BotLogger.debug(LOGTAG, "Sending media " + id + " to: " + user);
@@ -633,7 +668,7 @@ public class KernelComm implements IKernelComm {
 
     @Override
     public void sendGroupMedia(@NotNull Chat chat, @NotNull TLAbsInputMedia media) throws RpcException {
-        final int id = this.random.nextInt();
+        final int id = Entropy.getInstance().randomInt();
         try {
             BotLogger.debug(LOGTAG, "Sending media " + id + " to group: " + chat.getId() + " : " + media);
             BotLogger.info(LOGTAG, "Sending media " + id + " to group: " + chat.getId());
@@ -652,7 +687,7 @@ public class KernelComm implements IKernelComm {
 
     @Override
     public void sendUploadedSticker(@NotNull String title, @NotNull String mimetype, @NotNull IUser user, long idFile, int parts) throws RpcException {
-        final int id = this.random.nextInt();
+        final int id = Entropy.getInstance().randomInt();
         try {
             final TLVector<TLAbsDocumentAttribute> attributes = new TLVector<>();
             final TLDocumentAttributeFilename fileName = new TLDocumentAttributeFilename();
@@ -680,7 +715,7 @@ public class KernelComm implements IKernelComm {
 
     @Override
     public void sendUploadedGroupSticker(@NotNull String title, @NotNull String mimetype, @NotNull Chat group, long idFile, int parts) throws RpcException {
-        final int id = this.random.nextInt();
+        final int id = Entropy.getInstance().randomInt();
         try {
             final TLVector<TLAbsDocumentAttribute> attributes = new TLVector<>();
             final TLDocumentAttributeFilename fileName = new TLDocumentAttributeFilename();
@@ -17,11 +17,15 @@ import org.telegram.bot.handlers.interfaces.IUpdatesHandler;
 import org.telegram.bot.services.BotLogger;
 import org.telegram.bot.services.NotificationsService;
 
+import org.telegram.mtproto.util.EngineThreads;
+
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -40,6 +44,8 @@ public class MainHandler implements NotificationsService.NotificationObserver {
     private final AtomicBoolean gettingDifferences = new AtomicBoolean(false);
     private final AtomicBoolean needGetUpdateState = new AtomicBoolean(true);
     private final ConcurrentLinkedDeque<TLAbsUpdates> updatesQueue = new ConcurrentLinkedDeque<>();
+    private final ReentrantLock updatesLock = new ReentrantLock();
+    private final Condition updatesSignal = this.updatesLock.newCondition();
     private final IUpdatesHandler updatesHandler;
     private final UpdateHandlerThread updateHandlerThread;
 
@@ -48,9 +54,9 @@ public class MainHandler implements NotificationsService.NotificationObserver {
         this.kernelComm = kernelComm;
         this.updatesHandler = updatesHandler;
         this.running = false;
-        new UpdatesHandlerThread().start();
+        EngineThreads.newThread(new UpdatesHandlerThread(), "UpdatesHandlerThread#" + hashCode()).start();
         updateHandlerThread = new UpdateHandlerThread();
-        updateHandlerThread.start();
+        EngineThreads.newThread(updateHandlerThread, "UpdateHandlerThread#" + hashCode()).start();
         kernelComm.setMainHandler(this);
     }
 
@@ -75,9 +81,7 @@ public class MainHandler implements NotificationsService.NotificationObserver {
     void onUpdate(@NotNull final TLAbsUpdates updates) {
         if (this.running) {
             this.updatesQueue.addLast(updates);
-            synchronized (this.updatesQueue) {
-                this.updatesQueue.notifyAll();
-            }
+            signalUpdates();
         }
     }
 
@@ -191,8 +195,15 @@ public class MainHandler implements NotificationsService.NotificationObserver {
      */
     public void needGetUpdates() {
         this.needGetUpdateState.set(true);
-        synchronized (this.updatesQueue) {
-            this.updatesQueue.notifyAll();
+        signalUpdates();
+    }
+
+    private void signalUpdates() {
+        this.updatesLock.lock();
+        try {
+            this.updatesSignal.signalAll();
+        } finally {
+            this.updatesLock.unlock();
         }
     }
 
@@ -216,19 +227,9 @@ public class MainHandler implements NotificationsService.NotificationObserver {
     /**
      * Updates handler thread
      */
-    private class UpdatesHandlerThread extends Thread {
+    private class UpdatesHandlerThread implements Runnable {
         boolean isAlive = true;
 
-        private UpdatesHandlerThread() {
-            super();
-        }
-
-        @Override
-        public void interrupt() {
-            this.isAlive = false;
-            super.interrupt();
-        }
-
         @Override
         public void run() {
             TLAbsUpdates updates;
@@ -239,12 +240,15 @@ public class MainHandler implements NotificationsService.NotificationObserver {
                     }
                     updates = MainHandler.this.updatesQueue.pollFirst();
                     if (updates == null) {
-                        synchronized (MainHandler.this.updatesQueue) {
-                            try {
-                                MainHandler.this.updatesQueue.wait();
-                            } catch (InterruptedException e) {
-                                BotLogger.error(LOGTAG, e);
+                        MainHandler.this.updatesLock.lock();
+                        try {
+                            if (MainHandler.this.updatesQueue.isEmpty()) {
+                                MainHandler.this.updatesSignal.await();
                             }
+                        } catch (InterruptedException e) {
+                            BotLogger.error(LOGTAG, e);
+                        } finally {
+                            MainHandler.this.updatesLock.unlock();
                         }
                     } else {
                         onTLAbsUpdates(updates);
@@ -256,57 +260,27 @@ public class MainHandler implements NotificationsService.NotificationObserver {
         }
     }
 
-    private class UpdateHandlerThread extends Thread {
+    private class UpdateHandlerThread implements Runnable {
         private boolean isAlive = true;
-        private final PriorityQueue<UpdateWrapper> updates = new PriorityQueue<>(new UpdateWrapper.UpdateWrapperComparator());
-
-        private UpdateHandlerThread() {
-            super();
-        }
+        private final PriorityBlockingQueue<UpdateWrapper> updates = new PriorityBlockingQueue<>(11, new UpdateWrapper.UpdateWrapperComparator());
 
         void addUpdate(UpdateWrapper newUpdate) {
-            synchronized (updates) {
-                updates.offer(newUpdate);
-                updates.notifyAll();
-            }
+            updates.offer(newUpdate);
         }
 
         void addUpdates(List<UpdateWrapper> newUpdates) {
-            synchronized (updates) {
-                updates.addAll(newUpdates);
-                updates.notifyAll();
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            this.isAlive = false;
-            super.interrupt();
+            updates.addAll(newUpdates);
         }
 
         @Override
         public void run() {
             while (isAlive) {
-                UpdateWrapper update;
-                while(isAlive) {
-                    try {
-                        synchronized (updates) {
-                            update = updates.poll();
-                        }
-                        if (update == null) {
-                            synchronized (updates) {
-                                try {
-                                    updates.wait();
-                                } catch (InterruptedException e) {
-                                    BotLogger.error(LOGTAG, e);
-                                }
-                            }
-                        } else {
-                            updatesHandler.processUpdate(update);
-                        }
-                    } catch (Exception e) {
-                        BotLogger.error(LOGTAG, e);
-                    }
+                try {
+                    updatesHandler.processUpdate(updates.take());
+                } catch (InterruptedException e) {
+                    BotLogger.error(LOGTAG, e);
+                } catch (Exception e) {
+                    BotLogger.error(LOGTAG, e);
                 }
             }
         }
@@ -1,6 +1,7 @@
 package org.telegram.bot.kernel;
 
 import org.telegram.api.engine.LoggerInterface;
+import org.telegram.api.engine.RpcFloodGovernor;
 import org.telegram.api.engine.storage.AbsApiState;
 import org.telegram.bot.ChatUpdatesBuilder;
 import org.telegram.bot.kernel.differenceparameters.DifferenceParametersService;
@@ -23,6 +24,7 @@ import java.lang.reflect.InvocationTargetException;
  */
 public class TelegramBot {
     private static final String LOGTAG = "KERNELMAIN";
+    private static final String FLOOD_BANS_SUFFIX = ".flood";
     private final BotConfig config;
     private final ChatUpdatesBuilder chatUpdatesBuilder;
     private final int apiKey;
@@ -118,6 +120,7 @@ public class TelegramBot {
     private void initKernelComm() {
         final long start = System.currentTimeMillis();
         this.kernelComm.init();
+        this.kernelComm.getApi().getFloodGovernor().setStorage(RpcFloodGovernor.fileStorage(config.getAuthfile() + FLOOD_BANS_SUFFIX));
         BotLogger.info(LOGTAG, String.format("%s init in %d ms", this.kernelComm.getClass().getName(), (start - System.currentTimeMillis()) * -1));
     }
 
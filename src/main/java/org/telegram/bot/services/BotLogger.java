@@ -1,6 +1,7 @@
 package org.telegram.bot.services;
 
 import org.jetbrains.annotations.NotNull;
+import org.telegram.mtproto.util.EngineThreads;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -8,7 +9,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.time.LocalDateTime;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,8 +27,8 @@ public class BotLogger {
     private static final String pathToLogs = "./";
     private static final Logger logger = Logger.getLogger("Telegram Bot");
     private static volatile LocalDateTime lastFileDate;
-    private static LoggerThread loggerThread = new LoggerThread();
-    private static final ConcurrentLinkedQueue<String> logsToFile = new ConcurrentLinkedQueue<>();
+    private static final LinkedBlockingQueue<String> logsToFile = new LinkedBlockingQueue<>();
+    private static Thread loggerThread = EngineThreads.newThread(new LoggerThread(), "BotLoggerThread");
 
     static {
         logger.setLevel(Level.INFO);
@@ -304,9 +306,6 @@ public class BotLogger {
     private static void logMsgToFile(@NotNull Level level, @NotNull String tag, @NotNull String msg, @NotNull String dateForLog) {
         final String logMessage = String.format("%s{%s} %s - %s", dateForLog, level.toString(), tag, msg);
         logsToFile.add(logMessage);
-        synchronized (logsToFile) {
-            logsToFile.notifyAll();
-        }
     }
 
     private static void logThrowableToFile(@NotNull Level level, @NotNull String tag, @NotNull Throwable throwable, @NotNull String dateForLog) {
@@ -315,37 +314,27 @@ public class BotLogger {
             throwableLog += "\tat " + element + "\n";
         }
         logsToFile.add(throwableLog);
-        synchronized (logsToFile) {
-            logsToFile.notifyAll();
-        }
     }
 
     private static boolean isLoggable(Level level) {
         return logger.isLoggable(level);
     }
 
-    private static class LoggerThread extends Thread {
+    private static class LoggerThread implements Runnable {
 
         @Override
         public void run() {
+            final ArrayList<String> stringsToLog = new ArrayList<>();
             while(true) {
-                final ConcurrentLinkedQueue<String> stringsToLog = new ConcurrentLinkedQueue<>();
-                synchronized (logsToFile) {
-                    if (logsToFile.isEmpty()) {
-                        try {
-                            logsToFile.wait();
-                        } catch (InterruptedException e) {
-                            return;
-                        }
-                        if (logsToFile.isEmpty()) {
-                            continue;
-                        }
-                    }
-                    stringsToLog.addAll(logsToFile);
-                    logsToFile.clear();
+                try {
+                    stringsToLog.add(logsToFile.take());
+                } catch (InterruptedException e) {
+                    return;
                 }
+                logsToFile.drainTo(stringsToLog);
 
-                stringsToLog.stream().forEach(logginFile::println);
+                stringsToLog.forEach(logginFile::println);
+                stringsToLog.clear();
                 logginFile.flush();
             }
         }
@@ -1,7 +1,10 @@
 package org.telegram.bot.services;
 
+import org.telegram.mtproto.util.EngineThreads;
+
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * @author Ruben Bermudez
@@ -17,12 +20,12 @@ public class NotificationsService {
     public static final int updatesInvalidated = notificationsCounter++;
     public static final int needGetUpdates = notificationsCounter++;
 
-    private final NotificationsThread thread;
-    private final ConcurrentLinkedDeque<Notification> notificationsQueue = new ConcurrentLinkedDeque<>();
+    private final Thread thread;
+    private final LinkedBlockingQueue<Notification> notificationsQueue = new LinkedBlockingQueue<>();
     private final ConcurrentHashMap<Integer, ConcurrentLinkedDeque<NotificationObserver>> observers = new ConcurrentHashMap<>();
 
     private NotificationsService() {
-        this.thread = new NotificationsThread();
+        this.thread = EngineThreads.newThread(new NotificationsThread(), "NotificationsThread#" + hashCode());
         this.thread.start();
     }
 
@@ -61,10 +64,7 @@ public class NotificationsService {
 
     public void postNotification(int notificationId, Object... args) {
         final Notification notification = new Notification(notificationId, args);
-        notificationsQueue.addLast(notification);
-        synchronized (notificationsQueue) {
-            notificationsQueue.notifyAll();
-        }
+        notificationsQueue.add(notification);
     }
 
     private void handleNotification(Notification notification) {
@@ -96,27 +96,14 @@ public class NotificationsService {
         }
     }
 
-    private class NotificationsThread extends Thread {
-        public NotificationsThread() {
-            super();
-            this.setName("NotificationsThread#" + this.getId());
-        }
-
+    private class NotificationsThread implements Runnable {
         @Override
         public void run() {
-            Notification currentNotification;
             while (true) {
-                currentNotification = notificationsQueue.pollFirst();
-                if (currentNotification == null) {
-                    try {
-                        synchronized (notificationsQueue) {
-                            notificationsQueue.wait();
-                        }
-                    } catch (InterruptedException e) {
-                        BotLogger.error(LOGTAG, e);
-                    }
-                } else {
-                    handleNotification(currentNotification);
+                try {
+                    handleNotification(notificationsQueue.take());
+                } catch (InterruptedException e) {
+                    BotLogger.error(LOGTAG, e);
                 }
             }
         }
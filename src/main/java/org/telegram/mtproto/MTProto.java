@@ -1,10 +1,12 @@
 package org.telegram.mtproto;
 
 import org.telegram.mtproto.backoff.ApiErrorExponentialBackoff;
-import org.telegram.mtproto.backoff.ExponentalBackoff;
 import org.telegram.mtproto.log.Logger;
+import org.telegram.mtproto.metrics.MTProtoMetrics;
+import org.telegram.mtproto.metrics.SimpleMTProtoMetrics;
 import org.telegram.mtproto.schedule.PrepareSchedule;
 import org.telegram.mtproto.schedule.PreparedPackage;
+import org.telegram.mtproto.schedule.RpcPriority;
 import org.telegram.mtproto.schedule.Scheduller;
 import org.telegram.mtproto.secure.Entropy;
 import org.telegram.mtproto.state.AbsMTProtoState;
@@ -12,10 +14,14 @@ import org.telegram.mtproto.state.KnownSalt;
 import org.telegram.mtproto.time.TimeOverlord;
 import org.telegram.mtproto.tl.*;
 import org.telegram.mtproto.transport.ConnectionType;
+import org.telegram.mtproto.transport.PooledBuffer;
+import org.telegram.mtproto.transport.TcpConnectRace;
 import org.telegram.mtproto.transport.TcpContext;
 import org.telegram.mtproto.transport.TcpContextCallback;
 import org.telegram.mtproto.transport.TransportRate;
 import org.telegram.mtproto.util.BytesCache;
+import org.telegram.mtproto.util.SerialTask;
+import org.telegram.mtproto.util.TelegramRuntime;
 import org.telegram.tl.DeserializeException;
 import org.telegram.tl.StreamingUtils;
 import org.telegram.tl.TLMethod;
@@ -24,11 +30,14 @@ import org.telegram.tl.TLObject;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -64,9 +73,18 @@ public class MTProto {
     private static final int ERROR_SEQ_EXPECTED_ODD = 35;
     private static final int ERROR_BAD_SERVER_SALT = 48;
     private static final int ERROR_BAD_CONTAINER = 64;
+    private static final int MSG_WAIT_FAILED_CODE = 400;
+    private static final String MSG_WAIT_FAILED = "MSG_WAIT_FAILED";
 
     private static final int PING_TIMEOUT = 60 * 1000;
     private static final int RESEND_TIMEOUT = 60 * 1000;
+    private static final int SATURATED_WAIT = 1000;
+    private static final int MAX_PENDING_PINGS = 64;
+    private static final int CONNECT_RACE_SIZE = 3;
+    private static final int CONNECT_RACE_DELAY = 250;
+    private static final int CONNECT_RACE_TIMEOUT = 30000;
+    private static final int PACKAGES_PER_RUN = 16;
+    private static final int MESSAGES_PER_RUN = 64;
 
     private static final int FUTURE_REQUEST_COUNT = 64;
     private static final int FUTURE_MINIMAL = 5;
@@ -75,7 +93,14 @@ public class MTProto {
     private final String TAG;
     private final int INSTANCE_INDEX;
     private final HashSet<TcpContext> contexts = new HashSet<>();
+    private volatile TcpContext[] contextsSnapshot = new TcpContext[0];
     private final HashMap<Integer, Integer> contextConnectionId = new HashMap<>();
+    private final LinkedHashMap<Long, Integer> pingConnectionIds = new LinkedHashMap<Long, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return size() > MAX_PENDING_PINGS;
+        }
+    };
     private final HashSet<Integer> connectedContexts = new HashSet<>();
     private final HashSet<Integer> initedContext = new HashSet<>();
     private final Scheduller scheduller;
@@ -84,9 +109,14 @@ public class MTProto {
     private MTProtoContext protoContext;
     private int desiredConnectionCount;
     private TcpContextCallback tcpListener;
-    private ConnectionFixerThread connectionFixerThread;
-    private SchedullerThread schedullerThread;
-    private ResponseProcessor responseProcessor;
+    private final TelegramRuntime runtime;
+    private final SerialTask connectionFixerTask;
+    private final SerialTask schedullerTask;
+    private final SerialTask responseTask;
+    private volatile long nextConnectTime;
+    private volatile TcpConnectRace connectRace;
+    private volatile boolean tcpNoDelay = true;
+    private volatile int corkDelay;
     private byte[] authKey;
     private byte[] authKeyId;
     private byte[] session;
@@ -103,17 +133,23 @@ public class MTProto {
     private int roundRobin;
 
     private TransportRate connectionRate;
+    private volatile MTProtoMetrics metrics = new SimpleMTProtoMetrics();
 
     private long lastPingTime = (System.nanoTime() / 1000000L) - (PING_INTERVAL_REQUEST * 10);
 
-    private ExponentalBackoff exponentalBackoff;
     private ApiErrorExponentialBackoff apiErrorExponentialBackoff;
     private ConcurrentLinkedQueue<Long> newSessionsIds = new ConcurrentLinkedQueue<>();
 
     public MTProto(AbsMTProtoState state, MTProtoCallback callback, CallWrapper callWrapper, int connectionsCount) {
+        this(state, callback, callWrapper, connectionsCount, TelegramRuntime.getDefault());
+    }
+
+    /**
+     * Creates a proto whose scheduller, response processor and connection fixer are tasks of the runtime
+     */
+    public MTProto(AbsMTProtoState state, MTProtoCallback callback, CallWrapper callWrapper, int connectionsCount, TelegramRuntime runtime) {
         this.INSTANCE_INDEX = instanceIndex.incrementAndGet();
         this.TAG = "MTProto#" + this.INSTANCE_INDEX;
-        this.exponentalBackoff = new ExponentalBackoff(this.TAG + "#BackOff");
         this.apiErrorExponentialBackoff = new ApiErrorExponentialBackoff();
         this.state = state;
         this.connectionRate = new TransportRate(state.getAvailableConnections());
@@ -125,12 +161,11 @@ public class MTProto {
         this.session = Entropy.getInstance().generateSeed(8);
         this.tcpListener = new TcpListener();
         this.scheduller = new Scheduller(this, callWrapper);
-        this.schedullerThread = new SchedullerThread();
-        this.schedullerThread.start();
-        this.responseProcessor = new ResponseProcessor();
-        this.responseProcessor.start();
-        this.connectionFixerThread = new ConnectionFixerThread();
-        this.connectionFixerThread.start();
+        this.runtime = runtime;
+        this.schedullerTask = runtime.newTask(this.TAG + "#Scheduller", new SchedullerStep());
+        this.responseTask = runtime.newTask(this.TAG + "#ResponseProcessor", new ResponseStep());
+        this.connectionFixerTask = runtime.newTask(this.TAG + "#ConnectionFixer", new ConnectionFixerStep());
+        this.connectionFixerTask.signal();
     }
 
     public static int readInt(byte[] src) {
@@ -147,7 +182,8 @@ public class MTProto {
     }
 
     public void resetNetworkBackoff() {
-        this.exponentalBackoff.reset();
+        this.nextConnectTime = 0;
+        this.connectionFixerTask.signal();
     }
 
     public void reloadConnectionInformation() {
@@ -158,6 +194,54 @@ public class MTProto {
         return this.INSTANCE_INDEX;
     }
 
+    public TelegramRuntime getRuntime() {
+        return this.runtime;
+    }
+
+    /**
+     * Measurements of this instance, a {@link SimpleMTProtoMetrics} unless replaced
+     */
+    public MTProtoMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public void setMetrics(MTProtoMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public boolean isTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    /**
+     * Sets TCP_NODELAY of the connections of this instance, enabled by default
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        synchronized (this.contexts) {
+            for (TcpContext context : this.contexts) {
+                context.setTcpNoDelay(tcpNoDelay);
+            }
+        }
+    }
+
+    public int getCorkDelay() {
+        return this.corkDelay;
+    }
+
+    /**
+     * Sets how many milliseconds the connections of this instance hold outgoing packets to
+     * coalesce them with the following ones, zero (default) to send them at once
+     */
+    public void setCorkDelay(int corkDelay) {
+        this.corkDelay = corkDelay;
+        synchronized (this.contexts) {
+            for (TcpContext context : this.contexts) {
+                context.setCorkDelay(corkDelay);
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "mtproto#" + this.INSTANCE_INDEX;
@@ -166,14 +250,12 @@ public class MTProto {
     public void close() {
         if (!this.isClosed) {
             this.isClosed = true;
-            if (this.connectionFixerThread != null) {
-                this.connectionFixerThread.interrupt();
-            }
-            if (this.schedullerThread != null) {
-                this.schedullerThread.interrupt();
-            }
-            if (this.responseProcessor != null) {
-                this.responseProcessor.interrupt();
+            this.connectionFixerTask.close();
+            this.schedullerTask.close();
+            this.responseTask.close();
+            final TcpConnectRace race = this.connectRace;
+            if (race != null) {
+                race.cancel();
             }
             closeConnections();
         }
@@ -183,14 +265,35 @@ public class MTProto {
         return this.isClosed;
     }
 
+    /**
+     * Whether there is a connection able to take more messages without buffering
+     * them in memory, see {@link TcpContext#isWritable()}. Doesn't block.
+     */
+    public boolean isWritable() {
+        for (TcpContext context : this.contextsSnapshot) {
+            if (context.isWritable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Must be called holding the lock of contexts after every change of it
+     */
+    private void updateContextsSnapshot() {
+        this.contextsSnapshot = this.contexts.toArray(new TcpContext[0]);
+    }
+
     public void closeConnections() {
         synchronized (this.contexts) {
             for (TcpContext context : this.contexts) {
-                context.suspendConnection(true);
+                context.close();
                 this.scheduller.onConnectionDies(context.getContextId());
             }
             this.contexts.clear();
-            this.contexts.notifyAll();
+            updateContextsSnapshot();
+            this.connectionFixerTask.signal();
         }
     }
 
@@ -215,25 +318,52 @@ public class MTProto {
         return true;
     }
 
+    /**
+     * Forgets a call that is no longer awaited. The calls sent after it with
+     * {@link #sendRpcMessageAfter(TLMethod, long, RpcPriority, int)} fail with MSG_WAIT_FAILED.
+     */
     public void forgetMessage(int id) {
         this.scheduller.forgetMessage(id);
+        signalScheduller();
     }
 
     public int sendRpcMessage(TLMethod request, long timeout, boolean highPriority) {
         return sendMessage(request, timeout, true, highPriority);
     }
 
+    public int sendRpcMessage(TLMethod request, long timeout, RpcPriority priority, boolean isDepend) {
+        return sendMessage(request, timeout, true, priority, isDepend);
+    }
+
+    /**
+     * Sends an rpc call invoked by the server after a previous one, if it is still pending
+     *
+     * @param previousId id of the previous call returned by this MTProto
+     */
+    public int sendRpcMessageAfter(TLMethod request, long timeout, RpcPriority priority, int previousId) {
+        final int id = this.scheduller.postMessageAfter(request, true, timeout, priority, previousId);
+        Logger.d(this.TAG, "sendMessage #" + id + " after #" + previousId + " " + request.toString());
+        signalScheduller();
+
+        return id;
+    }
+
     public int sendMessage(TLObject request, long timeout, boolean isRpc, boolean highPriority) {
-        final int id = this.scheduller.postMessage(request, isRpc, timeout, highPriority);
+        return sendMessage(request, timeout, isRpc, highPriority ? RpcPriority.INTERACTIVE : RpcPriority.NORMAL, highPriority);
+    }
+
+    public int sendMessage(TLObject request, long timeout, boolean isRpc, RpcPriority priority, boolean isDepend) {
+        final int id = this.scheduller.postMessage(request, isRpc, timeout, priority, isDepend);
         Logger.d(this.TAG, "sendMessage #" + id + " " + request.toString());
-        synchronized (this.scheduller) {
-            this.scheduller.notifyAll();
-        }
+        signalScheduller();
 
         return id;
     }
 
-    private void onMTMessage(MTMessage mtMessage) {
+    /**
+     * @return true if the content of the message was handed to the callback, which releases it
+     */
+    private boolean onMTMessage(MTMessage mtMessage) {
         if ((this.futureSaltsRequestedTime - System.nanoTime()) > (FUTURE_TIMEOUT * 1000L)) {
             Logger.d(this.TAG, "Salt check timeout");
             final int count = this.state.maximumCachedSalts(getUnixTime(mtMessage.getMessageId()));
@@ -251,17 +381,19 @@ public class MTProto {
             if (Logger.LOG_IGNORED) {
                 Logger.d(this.TAG, "Ignoring messages #" + mtMessage.getMessageId());
             }
-            return;
+            return false;
         }
         try {
             final TLObject intMessage = this.protoContext.deserializeMessage(new ByteArrayInputStream(mtMessage.getContent()));
             onMTProtoMessage(mtMessage.getMessageId(), intMessage);
         } catch (DeserializeException e) {
             onApiMessage(mtMessage.getContent());
+            return true;
         } catch (IOException e) {
             Logger.e(this.TAG, e);
             // ???
         }
+        return false;
     }
 
     private void onApiMessage(byte[] data) {
@@ -274,6 +406,7 @@ public class MTProto {
         if (object instanceof MTBadMessage) {
             MTBadMessage badMessage = (MTBadMessage) object;
             Logger.d(this.TAG, "BadMessage: " + badMessage.getErrorCode() + " #" + badMessage.getBadMsgId());
+            this.metrics.onBadMessage(badMessage.getErrorCode());
             this.scheduller.confirmMessage(badMessage.getBadMsgId());
             this.scheduller.onMessageConfirmed(badMessage.getBadMsgId());
             long time = this.scheduller.getMessageIdGenerationTime(badMessage.getBadMsgId());
@@ -301,6 +434,7 @@ public class MTProto {
                     long delta = System.nanoTime() / 1000000 - time;
                     TimeOverlord.getInstance().onMethodExecuted(badMessage.getBadMsgId(), msgId, delta);
                     this.state.badServerSalt(salt);
+                    this.metrics.onSaltRefresh();
                     Logger.d(this.TAG, "Reschedule messages because bad_server_salt #" + badMessage.getBadMsgId());
                     this.scheduller.resendAsNewMessage(badMessage.getBadMsgId());
                     requestSchedule();
@@ -385,6 +519,7 @@ public class MTProto {
 
                         this.callback.onRpcError(id, error.getErrorCode(), error.getMessage(), this);
                         this.scheduller.forgetMessage(id);
+                        signalScheduller();
                     } catch (IOException e) {
                         Logger.e(this.TAG, e);
                         return;
@@ -393,8 +528,7 @@ public class MTProto {
                     Logger.d(this.TAG, "rpc_result: " + result.getMessageId() + " #" + Integer.toHexString(responseConstructor));
                     this.apiErrorExponentialBackoff.reset();
                     this.callback.onRpcResult(id, result.getContent(), this);
-                    BytesCache.getInstance().put(result.getContent());
-                    this.scheduller.forgetMessage(id);
+                    this.scheduller.forgetAnsweredMessage(id);
                 }
             } else {
                 if (Logger.LOG_IGNORED) {
@@ -417,9 +551,17 @@ public class MTProto {
             this.scheduller.onMessageConfirmed(pong.getMessageId());
             this.scheduller.forgetMessageByMsgId(pong.getMessageId());
             final long time = this.scheduller.getMessageIdGenerationTime(pong.getMessageId());
+            final Integer connectionId;
+            synchronized (this.pingConnectionIds) {
+                connectionId = this.pingConnectionIds.remove(pong.getPingId());
+            }
             if (time != 0) {
                 final long delta = (System.nanoTime() / 1000000) - time;
                 TimeOverlord.getInstance().onMethodExecuted(pong.getMessageId(), msgId, delta);
+                this.metrics.onRtt(delta);
+                if (connectionId != null) {
+                    this.connectionRate.onRtt(connectionId, delta);
+                }
             }
         } else if (object instanceof MTFutureSalts) {
             final MTFutureSalts salts = (MTFutureSalts) object;
@@ -438,6 +580,7 @@ public class MTProto {
                 final long delta = (System.nanoTime() / 1000000) - time;
                 TimeOverlord.getInstance().onForcedServerTimeArrived(salts.getNow(), delta);
                 this.state.mergeKnownSalts(salts.getNow(), knownSalts);
+                this.metrics.onSaltRefresh();
             }
         } else if (object instanceof MTMessageDetailedInfo) {
             final MTMessageDetailedInfo detailedInfo = (MTMessageDetailedInfo) object;
@@ -468,6 +611,7 @@ public class MTProto {
                 int validSince = (int) System.currentTimeMillis() / 1000;
                 knownSalts[0] = new KnownSalt(validSince, validSince + 30 * 60, ((MTNewSessionCreated) object).getServerSalt());
                 this.state.mergeKnownSalts(validSince, knownSalts);
+                this.metrics.onSaltRefresh();
             }
             this.scheduller.updateMessageId(((MTNewSessionCreated) object).getFirstMsgId());
             this.callback.onSessionCreated(this);
@@ -479,14 +623,28 @@ public class MTProto {
         }
     }
 
+    /**
+     * Remembers the endpoint a ping is sent through, to rate it when the pong arrives
+     */
+    private void registerPing(long pingId, Integer connectionId) {
+        if (connectionId == null) {
+            return;
+        }
+        synchronized (this.pingConnectionIds) {
+            this.pingConnectionIds.put(pingId, connectionId);
+        }
+    }
+
     private void internalSchedule() {
         long time = System.nanoTime() / 1000000;
         if (time - this.lastPingTime > PING_INTERVAL_REQUEST) {
             this.lastPingTime = time;
             synchronized (this.contexts) {
                 for (TcpContext context : this.contexts) {
+                    final long pingId = Entropy.getInstance().generateRandomId();
+                    registerPing(pingId, this.contextConnectionId.get(context.getContextId()));
                     this.scheduller.postMessageDelayed(
-                            new MTPingDelayDisconnect(Entropy.getInstance().generateRandomId(), PING_INTERVAL),
+                            new MTPingDelayDisconnect(pingId, PING_INTERVAL),
                             false, PING_INTERVAL_REQUEST, 0, context.getContextId(), false);
                 }
             }
@@ -494,12 +652,26 @@ public class MTProto {
     }
 
     public void requestSchedule() {
-        synchronized (this.scheduller) {
-            this.scheduller.notifyAll();
-        }
+        signalScheduller();
+    }
+
+    /**
+     * Runs the scheduller task, or once more when it finishes if it is running
+     */
+    private void signalScheduller() {
+        this.schedullerTask.signal();
+    }
+
+    /**
+     * Queues a message for the response processor task
+     */
+    private void enqueueResponse(MTMessage message) {
+        this.inQueue.add(message);
+        this.responseTask.signal();
     }
 
     private EncryptedMessage encrypt(int seqNo, long messageId, byte[] content) throws IOException {
+        final long encryptStart = System.nanoTime();
         long salt = this.state.findActualSalt((int) (TimeOverlord.getInstance().getServerTime() / 1000));
         ByteArrayOutputStream messageBody = new ByteArrayOutputStream();
         writeLong(salt, messageBody);
@@ -530,10 +702,11 @@ public class MTProto {
         EncryptedMessage res = new EncryptedMessage();
         res.data = out.toByteArray();
         res.fastConfirm = fastConfirm;
+        this.metrics.onEncrypt(System.nanoTime() - encryptStart);
         return res;
     }
 
-    private byte[] optimizedSHA(byte[] serverSalt, byte[] session, long msgId, int seq, int len, byte[] data, int datalen) {
+    private byte[] optimizedSHA(byte[] serverSalt, byte[] session, long msgId, int seq, int len, ByteBuffer data) {
         try {
             MessageDigest crypt = MessageDigest.getInstance("SHA-1");
             crypt.reset();
@@ -542,7 +715,7 @@ public class MTProto {
             crypt.update(longToBytes(msgId));
             crypt.update(intToBytes(seq));
             crypt.update(intToBytes(len));
-            crypt.update(data, 0, datalen);
+            crypt.update(data);
             return crypt.digest();
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
@@ -551,17 +724,23 @@ public class MTProto {
         return null;
     }
 
-    private MTMessage decrypt(byte[] data, int offset, int len) throws IOException {
-        final ByteArrayInputStream stream = new ByteArrayInputStream(data);
-        stream.skip(offset);
-        final byte[] msgAuthKey = readBytes(8, stream);
+    /**
+     * Decrypts the frame in place; only the message body is copied, into the content of the result
+     */
+    private MTMessage decrypt(PooledBuffer frame) throws IOException {
+        final ByteBuffer data = frame.buffer();
+        final int len = data.remaining();
+        if (len < 8 + 16 + 32) {
+            throw new IOException("Message is too short: " + len);
+        }
         for (int i = 0; i < this.authKeyId.length; i++) {
-            if (msgAuthKey[i] != this.authKeyId[i]) {
+            if (data.get() != this.authKeyId[i]) {
                 Logger.e(this.TAG, "Unsupported msgAuthKey");
                 throw new SecurityException();
             }
         }
-        final byte[] msgKey = readBytes(16, stream);
+        final byte[] msgKey = new byte[16];
+        data.get(msgKey);
 
         final byte[] sha1_a = SHA1(msgKey, substring(this.authKey, 8, 32));
         final byte[] sha1_b = SHA1(substring(this.authKey, 40, 16), msgKey, substring(this.authKey, 56, 16));
@@ -572,22 +751,20 @@ public class MTProto {
         final byte[] aesIv = concat(substring(sha1_a, 8, 12), substring(sha1_b, 0, 8), substring(sha1_c, 16, 4), substring(sha1_d, 0, 8));
 
         final int totalLen = len - 8 - 16;
-        final byte[] encMessage = BytesCache.getInstance().allocate(totalLen);
-        readBytes(encMessage, 0, totalLen, stream);
-
-        final byte[] rawMessage = BytesCache.getInstance().allocate(totalLen);
-        final long decryptStart = System.currentTimeMillis();
-        AES256IGEDecryptBig(encMessage, rawMessage, totalLen, aesIv, aesKey);
-        Logger.d(this.TAG, "Decrypted in " + (System.currentTimeMillis() - decryptStart) + " ms");
-        BytesCache.getInstance().put(encMessage);
+        final long decryptStart = System.nanoTime();
+        AES256IGEDecrypt(data, totalLen, aesIv, aesKey);
+        final long decryptTime = System.nanoTime() - decryptStart;
+        this.metrics.onDecrypt(decryptTime);
+        Logger.d(this.TAG, "Decrypted in " + (decryptTime / 1000000) + " ms");
 
-        final ByteArrayInputStream bodyStream = new ByteArrayInputStream(rawMessage);
-        final byte[] serverSalt = readBytes(8, bodyStream);
-        final byte[] session = readBytes(8, bodyStream);
-        final long messageId = readLong(bodyStream);
-        final int mes_seq = StreamingUtils.readInt(bodyStream);
+        final byte[] serverSalt = new byte[8];
+        data.get(serverSalt);
+        final byte[] session = new byte[8];
+        data.get(session);
+        final long messageId = data.getLong();
+        final int mes_seq = data.getInt();
 
-        final int msg_len = StreamingUtils.readInt(bodyStream);
+        final int msg_len = data.getInt();
 
         final int bodySize = totalLen - 32;
 
@@ -603,12 +780,9 @@ public class MTProto {
             throw new SecurityException("Message length is more than 15 bytes longer than body size");
         }
 
-        final byte[] message = BytesCache.getInstance().allocate(msg_len);
-        readBytes(message, 0, msg_len, bodyStream);
-
-        BytesCache.getInstance().put(rawMessage);
-
-        final byte[] checkHash = optimizedSHA(serverSalt, session, messageId, mes_seq, msg_len, message, msg_len);
+        final ByteBuffer body = data.duplicate();
+        body.limit(body.position() + msg_len);
+        final byte[] checkHash = optimizedSHA(serverSalt, session, messageId, mes_seq, msg_len, body);
 
         if (!arrayEq(substring(checkHash, 4, 16), msgKey)) {
             throw new SecurityException();
@@ -633,19 +807,44 @@ public class MTProto {
             }
         }
 
+        final byte[] message = BytesCache.getInstance().allocate(msg_len);
+        data.get(message, 0, msg_len);
         return new MTMessage(messageId, mes_seq, message, message.length);
     }
 
-    private class SchedullerThread extends Thread {
-        private SchedullerThread() {
-            setName("Scheduller#" + hashCode());
+    /**
+     * Fails the calls forgotten by the scheduller because the call they were sent after was
+     * forgotten unanswered, as the server would have failed them
+     */
+    private void failOrphanedMessages() {
+        for (int id : this.scheduller.pollOrphanedMessages()) {
+            Logger.w(this.TAG, "Call #" + id + " lost the call it was sent after");
+            this.callback.onRpcError(id, MSG_WAIT_FAILED_CODE, MSG_WAIT_FAILED, this);
         }
+    }
+
+    /**
+     * Packs the scheduled messages and posts them to the connections, until there is nothing to
+     * send now; then it sleeps on the timer until the next deadline of the scheduller.
+     */
+    private class SchedullerStep implements SerialTask.Step {
+        private final PrepareSchedule prepareSchedule = new PrepareSchedule();
 
         @Override
-        public void run() {
-            setPriority(Thread.MIN_PRIORITY);
-            PrepareSchedule prepareSchedule = new PrepareSchedule();
-            while (!MTProto.this.isClosed) {
+        public boolean run() {
+            try {
+                return schedule();
+            } finally {
+                failOrphanedMessages();
+            }
+        }
+
+        private boolean schedule() {
+            internalSchedule();
+            for (int i = 0; i < PACKAGES_PER_RUN; i++) {
+                if (MTProto.this.isClosed) {
+                    return false;
+                }
                 if (Logger.LOG_THREADS) {
                     Logger.d(MTProto.this.TAG, "Scheduller Iteration");
                 }
@@ -654,36 +853,32 @@ public class MTProto {
                 synchronized (MTProto.this.contexts) {
                     TcpContext[] currentContexts = MTProto.this.contexts.toArray(new TcpContext[0]);
                     contextIds = new int[currentContexts.length];
-                    for (int i = 0; i < contextIds.length; i++) {
-                        contextIds[i] = currentContexts[i].getContextId();
+                    for (int j = 0; j < contextIds.length; j++) {
+                        contextIds[j] = currentContexts[j].getContextId();
                     }
                 }
 
-                synchronized (MTProto.this.scheduller) {
-                    MTProto.this.scheduller.prepareScheduller(prepareSchedule, contextIds);
-                    if (prepareSchedule.isDoWait()) {
-                        if (Logger.LOG_THREADS) {
-                            Logger.d(MTProto.this.TAG, "Scheduller:wait " + prepareSchedule.getDelay());
-                        }
-                        try {
-                            MTProto.this.scheduller.wait(Math.min(prepareSchedule.getDelay(), 30000));
-                        } catch (InterruptedException e) {
-                            Logger.e(MTProto.this.TAG, e);
-                            return;
-                        }
-                        internalSchedule();
-                        continue;
+                MTProto.this.scheduller.prepareScheduller(this.prepareSchedule, contextIds);
+                if (this.prepareSchedule.isDoWait()) {
+                    if (Logger.LOG_THREADS) {
+                        Logger.d(MTProto.this.TAG, "Scheduller:wait " + this.prepareSchedule.getDelay());
                     }
+                    MTProto.this.schedullerTask.signalAfter(Math.min(this.prepareSchedule.getDelay(), 30000));
+                    return false;
                 }
 
                 TcpContext context = null;
                 synchronized (MTProto.this.contexts) {
                     TcpContext[] currentContexts = MTProto.this.contexts.toArray(new TcpContext[0]);
                     outer:
-                    for (int i = 0; i < currentContexts.length; i++) {
-                        int index = (i + MTProto.this.roundRobin + 1) % currentContexts.length;
-                        for (int allowed : prepareSchedule.getAllowedContexts()) {
+                    for (int j = 0; j < currentContexts.length; j++) {
+                        int index = (j + MTProto.this.roundRobin + 1) % currentContexts.length;
+                        for (int allowed : this.prepareSchedule.getAllowedContexts()) {
                             if (currentContexts[index].getContextId() == allowed) {
+                                if (!currentContexts[index].isWritable()) {
+                                    // Leave messages in the scheduller until the socket drains
+                                    continue outer;
+                                }
                                 context = currentContexts[index];
                                 break outer;
                             }
@@ -700,14 +895,15 @@ public class MTProto {
                     if (Logger.LOG_THREADS) {
                         Logger.d(MTProto.this.TAG, "Scheduller: no context");
                     }
-                    continue;
+                    // Woken up earlier when a connection is added or drains
+                    MTProto.this.schedullerTask.signalAfter(SATURATED_WAIT);
+                    return false;
                 }
 
                 if (Logger.LOG_THREADS) {
                     Logger.d(MTProto.this.TAG, "doSchedule");
                 }
 
-                internalSchedule();
                 synchronized (MTProto.this.scheduller) {
                     long start = System.currentTimeMillis();
                     PreparedPackage preparedPackage = MTProto.this.scheduller.doSchedule(context.getContextId(), MTProto.this.initedContext.contains(context.getContextId()));
@@ -735,96 +931,143 @@ public class MTProto {
                     }
                 }
             }
+            return true;
         }
     }
 
-    private class ResponseProcessor extends Thread {
-        public ResponseProcessor() {
-            setName("ResponseProcessor#" + hashCode());
-        }
-
+    private class ResponseStep implements SerialTask.Step {
         @Override
-        public void run() {
-            setPriority(Thread.MIN_PRIORITY);
-            while (!MTProto.this.isClosed) {
+        public boolean run() {
+            for (int i = 0; i < MESSAGES_PER_RUN; i++) {
+                if (MTProto.this.isClosed) {
+                    return false;
+                }
                 if (Logger.LOG_THREADS) {
                     Logger.d(MTProto.this.TAG, "Response Iteration");
                 }
-                synchronized (MTProto.this.inQueue) {
-                    if (MTProto.this.inQueue.isEmpty()) {
-                        try {
-                            MTProto.this.inQueue.wait();
-                        } catch (InterruptedException e) {
-                            return;
-                        }
-                    }
-                    if (MTProto.this.inQueue.isEmpty()) {
-                        continue;
-                    }
+                final MTMessage message = MTProto.this.inQueue.poll();
+                if (message == null) {
+                    return false;
+                }
+                if (!onMTMessage(message)) {
+                    BytesCache.getInstance().put(message.getContent());
                 }
-                MTMessage message = MTProto.this.inQueue.poll();
-                onMTMessage(message);
-                BytesCache.getInstance().put(message.getContent());
             }
+            return true;
         }
     }
 
-    private class ConnectionFixerThread extends Thread {
-        private ConnectionFixerThread() {
-            setName("ConnectionFixerThread#" + hashCode());
+    /**
+     * Delays the next connection attempt of the connection fixer, keeping the latest deadline
+     *
+     * @param delay milliseconds from now, as given by the backoff of the endpoint that failed
+     */
+    private void delayNextConnect(long delay) {
+        final long time = System.nanoTime() / 1000000L + delay;
+        if (time > this.nextConnectTime) {
+            this.nextConnectTime = time;
         }
+    }
 
+    /**
+     * Opens connections until there are as many as desired. It starts a race of the candidates
+     * and is signalled again when the race ends, so it never waits; failures are retried on the
+     * timer.
+     */
+    private class ConnectionFixerStep implements SerialTask.Step {
         @Override
-        public void run() {
-            setPriority(Thread.MIN_PRIORITY);
-            while (!MTProto.this.isClosed) {
-                if (Logger.LOG_THREADS) {
-                    Logger.d(MTProto.this.TAG, "Connection Fixer Iteration");
+        public boolean run() {
+            if (MTProto.this.isClosed) {
+                return false;
+            }
+            if (Logger.LOG_THREADS) {
+                Logger.d(MTProto.this.TAG, "Connection Fixer Iteration");
+            }
+            final TcpConnectRace race = MTProto.this.connectRace;
+            if (race != null) {
+                if (!race.isFinished()) {
+                    return false;
                 }
-                synchronized (MTProto.this.contexts) {
-                    if (MTProto.this.contexts.size() >= MTProto.this.desiredConnectionCount) {
-                        try {
-                            MTProto.this.contexts.wait();
-                        } catch (InterruptedException e) {
-                            return;
-                        }
-                    }
+                MTProto.this.connectRace = null;
+                return onRaceFinished(race);
+            }
+            synchronized (MTProto.this.contexts) {
+                if (MTProto.this.contexts.size() >= MTProto.this.desiredConnectionCount) {
+                    return false;
                 }
+            }
+            final long backoff = MTProto.this.nextConnectTime - System.nanoTime() / 1000000L;
+            if (backoff > 0) {
+                MTProto.this.connectionFixerTask.signalAfter(backoff);
+                return false;
+            }
 
-                ConnectionType type = MTProto.this.connectionRate.tryConnection();
-                TcpContext context = new TcpContext(MTProto.this, type.getHost(), type.getPort(), MTProto.this.tcpListener);
-                context.connect();
-                if (MTProto.this.isClosed) {
-                    return;
-                }
-                MTProto.this.scheduller.postMessageDelayed(new MTPing(Entropy.getInstance().generateRandomId()), false, PING_TIMEOUT, 0, context.getContextId(), false);
-                synchronized (MTProto.this.contexts) {
+            ConnectionType[] candidates = MTProto.this.connectionRate.tryConnections(CONNECT_RACE_SIZE);
+            final TcpConnectRace newRace = new TcpConnectRace(MTProto.this, candidates, MTProto.this.connectionRate, MTProto.this.tcpListener);
+            MTProto.this.connectRace = newRace;
+            newRace.race(CONNECT_RACE_DELAY, CONNECT_RACE_TIMEOUT).whenComplete((context, e) -> MTProto.this.connectionFixerTask.signal());
+            return false;
+        }
+
+        /**
+         * Takes the winner of the race into the connections
+         *
+         * @return true to run again, to check whether more connections are needed
+         */
+        private boolean onRaceFinished(TcpConnectRace race) {
+            final TcpContext context = race.getResult();
+            if (context == null) {
+                final long delay = race.getRetryDelay();
+                delayNextConnect(delay);
+                MTProto.this.connectionFixerTask.signalAfter(delay);
+                return false;
+            }
+
+            ConnectionType type = race.getWinnerType();
+            boolean isAdded = false;
+            synchronized (MTProto.this.contexts) {
+                // The winner may already be broken, and then it has been closed
+                if (!context.isClosed()) {
+                    // The settings may have changed since the race started
+                    context.setTcpNoDelay(MTProto.this.tcpNoDelay);
+                    context.setCorkDelay(MTProto.this.corkDelay);
                     MTProto.this.contexts.add(context);
                     MTProto.this.contextConnectionId.put(context.getContextId(), type.getId());
+                    updateContextsSnapshot();
+                    isAdded = true;
                 }
-                synchronized (MTProto.this.scheduller) {
-                    MTProto.this.scheduller.notifyAll();
-                }
             }
+            if (!isAdded) {
+                return true;
+            }
+            if (MTProto.this.isClosed) {
+                context.close();
+                return false;
+            }
+            MTProto.this.callback.onWritabilityChanged(MTProto.this);
+            final long pingId = Entropy.getInstance().generateRandomId();
+            registerPing(pingId, type.getId());
+            MTProto.this.scheduller.postMessageDelayed(new MTPing(pingId), false, PING_TIMEOUT, 0, context.getContextId(), false);
+            signalScheduller();
+            return true;
         }
     }
 
     private class TcpListener implements TcpContextCallback {
 
         @Override
-        public void onRawMessage(byte[] data, int offset, int len, TcpContext context) {
+        public void onRawMessage(PooledBuffer data, TcpContext context) {
             if (MTProto.this.isClosed) {
                 return;
             }
             try {
-                MTMessage decrypted = decrypt(data, offset, len);
+                MTMessage decrypted = decrypt(data);
                 if (decrypted == null) {
                     Logger.d(MTProto.this.TAG, "message ignored");
                     return;
                 }
                 if (!MTProto.this.connectedContexts.contains(context.getContextId())) {
                     MTProto.this.connectedContexts.add(context.getContextId());
-                    MTProto.this.exponentalBackoff.onSuccess();
                     MTProto.this.connectionRate.onConnectionSuccess(MTProto.this.contextConnectionId.get(context.getContextId()));
                 }
 
@@ -836,10 +1079,7 @@ public class MTProto {
                         TLObject object = MTProto.this.protoContext.deserializeMessage(new ByteArrayInputStream(decrypted.getContent()));
                         if (object instanceof MTMessagesContainer) {
                             for (MTMessage mtMessage : ((MTMessagesContainer) object).getMessages()) {
-                                MTProto.this.inQueue.add(mtMessage);
-                            }
-                            synchronized (MTProto.this.inQueue) {
-                                MTProto.this.inQueue.notifyAll();
+                                enqueueResponse(mtMessage);
                             }
                         }
                         BytesCache.getInstance().put(decrypted.getContent());
@@ -853,29 +1093,26 @@ public class MTProto {
                         TLObject object = MTProto.this.protoContext.deserializeMessage(new ByteArrayInputStream(decrypted.getContent()));
                         MTMessageCopy messageCopy = (MTMessageCopy) object;
                         MTProto.this.scheduller.confirmMessage(decrypted.getMessageId());
-                        MTProto.this.inQueue.add(messageCopy.getOrig_message());
-                        synchronized (MTProto.this.inQueue) {
-                            MTProto.this.inQueue.notifyAll();
-                        }
+                        enqueueResponse(messageCopy.getOrig_message());
                     } catch (DeserializeException e) {
                         Logger.e(MTProto.this.TAG, e);
                     }
                 } else {
-                    MTProto.this.inQueue.add(decrypted);
-                    synchronized (MTProto.this.inQueue) {
-                        MTProto.this.inQueue.notifyAll();
-                    }
+                    enqueueResponse(decrypted);
                 }
             } catch (IOException e) {
                 Logger.e(MTProto.this.TAG, e);
                 synchronized (MTProto.this.contexts) {
-                    context.suspendConnection(true);
+                    context.close();
                     if (!MTProto.this.connectedContexts.contains(context.getContextId())) {
-                        MTProto.this.exponentalBackoff.onFailureNoWait();
+                        delayNextConnect(context.getBackoff().onFailure());
                         MTProto.this.connectionRate.onConnectionFailure(MTProto.this.contextConnectionId.get(context.getContextId()));
                     }
-                    MTProto.this.contexts.remove(context);
-                    MTProto.this.contexts.notifyAll();
+                    if (MTProto.this.contexts.remove(context)) {
+                        MTProto.this.metrics.onReconnect();
+                        updateContextsSnapshot();
+                    }
+                    MTProto.this.connectionFixerTask.signal();
                     MTProto.this.scheduller.onConnectionDies(context.getContextId());
                 }
             }
@@ -900,18 +1137,38 @@ public class MTProto {
             }
             int contextId = context.getContextId();
             Logger.d(MTProto.this.TAG, "onChannelBroken (#" + contextId + ")");
+            context.close();
             synchronized (MTProto.this.contexts) {
-                MTProto.this.contexts.remove(context);
+                // The connection fixer opens a new connection in place of an established one
+                if (MTProto.this.contexts.remove(context)) {
+                    MTProto.this.metrics.onReconnect();
+                }
+                updateContextsSnapshot();
                 if (!MTProto.this.connectedContexts.contains(contextId)) {
                     if (MTProto.this.contextConnectionId.containsKey(contextId)) {
-                        MTProto.this.exponentalBackoff.onFailureNoWait();
+                        delayNextConnect(context.getBackoff().onFailure());
                         MTProto.this.connectionRate.onConnectionFailure(MTProto.this.contextConnectionId.get(contextId));
                     }
                 }
-                MTProto.this.contexts.notifyAll();
+                MTProto.this.connectionFixerTask.signal();
             }
             MTProto.this.scheduller.onConnectionDies(context.getContextId());
             requestSchedule();
+            MTProto.this.callback.onWritabilityChanged(MTProto.this);
+        }
+
+        @Override
+        public void onConnected(TcpContext context) {
+            if (MTProto.this.isClosed) {
+                return;
+            }
+            Integer connectionId;
+            synchronized (MTProto.this.contexts) {
+                connectionId = MTProto.this.contextConnectionId.get(context.getContextId());
+            }
+            if (connectionId != null) {
+                MTProto.this.connectionRate.onConnected(connectionId, context.getConnectTime());
+            }
         }
 
         @Override
@@ -925,6 +1182,17 @@ public class MTProto {
                 MTProto.this.callback.onConfirmed(id);
             }
         }
+
+        @Override
+        public void onWritabilityChanged(TcpContext context) {
+            if (MTProto.this.isClosed) {
+                return;
+            }
+            if (context.isWritable()) {
+                requestSchedule();
+            }
+            MTProto.this.callback.onWritabilityChanged(MTProto.this);
+        }
     }
 
     private class EncryptedMessage {
@@ -11,11 +11,24 @@ public interface MTProtoCallback {
 
     void onAuthInvalidated(MTProto proto);
 
+    /**
+     * Called with a message that is not part of the protocol, such as updates. The callback
+     * owns the array, taken from {@link org.telegram.mtproto.util.BytesCache}, and puts it back
+     * there when it is done with it, so it may decode it later on another thread.
+     */
     void onApiMessage(byte[] message, MTProto proto);
 
+    /**
+     * Called with the result of a call. The callback owns the array, as in {@link #onApiMessage(byte[], MTProto)}
+     */
     void onRpcResult(int callId, byte[] response, MTProto proto);
 
     void onRpcError(int callId, int errorCode, String message, MTProto proto);
 
     void onConfirmed(int callId);
+
+    /**
+     * Called when {@link MTProto#isWritable()} may have changed
+     */
+    void onWritabilityChanged(MTProto proto);
 }
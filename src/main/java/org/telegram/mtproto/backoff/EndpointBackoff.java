@@ -0,0 +1,53 @@
+package org.telegram.mtproto.backoff;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reconnect delays of an endpoint, shared by every connection to it. The delay doubles
+ * with every consecutive failure up to MAX_DELAY, and half of it is random so that
+ * connections dropped at the same time don't reconnect at the same time.
+ */
+public class EndpointBackoff {
+
+    private static final int MIN_DELAY = 300;
+    private static final int MAX_DELAY = 15000;
+    private static final int MAX_EXPONENT = 16;
+    private static final ConcurrentHashMap<String, EndpointBackoff> endpoints = new ConcurrentHashMap<>();
+
+    private final AtomicInteger currentFailureCount = new AtomicInteger();
+
+    private EndpointBackoff() {
+    }
+
+    public static EndpointBackoff forEndpoint(String host, int port) {
+        final String key = host + ":" + port;
+        EndpointBackoff backoff = endpoints.get(key);
+        if (backoff == null) {
+            final EndpointBackoff newBackoff = new EndpointBackoff();
+            backoff = endpoints.putIfAbsent(key, newBackoff);
+            if (backoff == null) {
+                backoff = newBackoff;
+            }
+        }
+        return backoff;
+    }
+
+    /**
+     * Registers a failure and returns how many milliseconds to wait before the next attempt
+     */
+    public long onFailure() {
+        final int val = Math.min(this.currentFailureCount.incrementAndGet(), MAX_EXPONENT);
+        final long delay = Math.min((long) MIN_DELAY << (val - 1), MAX_DELAY);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public void onSuccess() {
+        this.currentFailureCount.set(0);
+    }
+
+    public int getFailureCount() {
+        return this.currentFailureCount.get();
+    }
+}
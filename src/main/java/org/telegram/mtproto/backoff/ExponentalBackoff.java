@@ -28,7 +28,7 @@ public class ExponentalBackoff {
             val = MAX_FAILURE_COUNT;
         }
 
-        int delay = MIN_DELAY + ((MAX_DELAY - MIN_DELAY) / MAX_FAILURE_COUNT) * val;
+        int delay = getDelay(val);
 
         synchronized (this) {
             Logger.d(this.TAG, "onFailure: wait " + delay + " ms");
@@ -36,6 +36,17 @@ public class ExponentalBackoff {
         }
     }
 
+    /**
+     * Milliseconds to wait after the failures counted so far
+     */
+    public int getDelay() {
+        return getDelay(this.currentFailureCount.get());
+    }
+
+    private static int getDelay(int failureCount) {
+        return MIN_DELAY + ((MAX_DELAY - MIN_DELAY) / MAX_FAILURE_COUNT) * Math.min(failureCount, MAX_FAILURE_COUNT);
+    }
+
     public void onFailureNoWait() {
         Logger.d(this.TAG, "onFailureNoWait");
         int val = this.currentFailureCount.incrementAndGet();
@@ -0,0 +1,96 @@
+package org.telegram.mtproto.metrics;
+
+/**
+ * Forwards every measurement to several {@link MTProtoMetrics}
+ */
+public class CompositeMTProtoMetrics implements MTProtoMetrics {
+    private final MTProtoMetrics[] metrics;
+
+    public CompositeMTProtoMetrics(MTProtoMetrics... metrics) {
+        this.metrics = metrics.clone();
+    }
+
+    @Override
+    public void onRtt(long millis) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onRtt(millis);
+        }
+    }
+
+    @Override
+    public void onInFlight(int count) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onInFlight(count);
+        }
+    }
+
+    @Override
+    public void onResend() {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onResend();
+        }
+    }
+
+    @Override
+    public void onBadMessage(int errorCode) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onBadMessage(errorCode);
+        }
+    }
+
+    @Override
+    public void onSaltRefresh() {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onSaltRefresh();
+        }
+    }
+
+    @Override
+    public void onBytesReceived(int bytes) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onBytesReceived(bytes);
+        }
+    }
+
+    @Override
+    public void onBytesSent(int bytes) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onBytesSent(bytes);
+        }
+    }
+
+    @Override
+    public void onFrameReceived(int size) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onFrameReceived(size);
+        }
+    }
+
+    @Override
+    public void onFrameSent(int size) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onFrameSent(size);
+        }
+    }
+
+    @Override
+    public void onDecrypt(long nanos) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onDecrypt(nanos);
+        }
+    }
+
+    @Override
+    public void onEncrypt(long nanos) {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onEncrypt(nanos);
+        }
+    }
+
+    @Override
+    public void onReconnect() {
+        for (MTProtoMetrics m : this.metrics) {
+            m.onReconnect();
+        }
+    }
+}
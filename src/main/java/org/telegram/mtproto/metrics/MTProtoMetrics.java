@@ -0,0 +1,65 @@
+package org.telegram.mtproto.metrics;
+
+/**
+ * Receives the measurements of a {@link org.telegram.mtproto.MTProto} instance, its connections
+ * and its scheduller. Methods are called from the network, scheduller and response threads, so
+ * implementations must be thread safe and must not block.
+ *
+ * {@link SimpleMTProtoMetrics} keeps them in memory. To export them to an external registry
+ * extend {@link MTProtoMetricsAdapter} and combine both with {@link CompositeMTProtoMetrics}.
+ */
+public interface MTProtoMetrics {
+    /**
+     * Round trip time of a ping, in milliseconds
+     */
+    void onRtt(long millis);
+
+    /**
+     * Number of packages sent and waiting for confirmation
+     */
+    void onInFlight(int count);
+
+    /**
+     * A package was sent again
+     */
+    void onResend();
+
+    /**
+     * A bad_msg_notification or bad_server_salt was received
+     */
+    void onBadMessage(int errorCode);
+
+    /**
+     * New server salts were received
+     */
+    void onSaltRefresh();
+
+    void onBytesReceived(int bytes);
+
+    void onBytesSent(int bytes);
+
+    /**
+     * Size in bytes of a received transport frame
+     */
+    void onFrameReceived(int size);
+
+    /**
+     * Size in bytes of a sent transport frame
+     */
+    void onFrameSent(int size);
+
+    /**
+     * Time spent decrypting a message, in nanoseconds
+     */
+    void onDecrypt(long nanos);
+
+    /**
+     * Time spent encrypting a message, in nanoseconds
+     */
+    void onEncrypt(long nanos);
+
+    /**
+     * A connection was dropped and is going to be opened again
+     */
+    void onReconnect();
+}
@@ -0,0 +1,54 @@
+package org.telegram.mtproto.metrics;
+
+/**
+ * Empty {@link MTProtoMetrics}, to be extended by adapters that only need some of the measurements
+ */
+public class MTProtoMetricsAdapter implements MTProtoMetrics {
+    @Override
+    public void onRtt(long millis) {
+    }
+
+    @Override
+    public void onInFlight(int count) {
+    }
+
+    @Override
+    public void onResend() {
+    }
+
+    @Override
+    public void onBadMessage(int errorCode) {
+    }
+
+    @Override
+    public void onSaltRefresh() {
+    }
+
+    @Override
+    public void onBytesReceived(int bytes) {
+    }
+
+    @Override
+    public void onBytesSent(int bytes) {
+    }
+
+    @Override
+    public void onFrameReceived(int size) {
+    }
+
+    @Override
+    public void onFrameSent(int size) {
+    }
+
+    @Override
+    public void onDecrypt(long nanos) {
+    }
+
+    @Override
+    public void onEncrypt(long nanos) {
+    }
+
+    @Override
+    public void onReconnect() {
+    }
+}
@@ -0,0 +1,163 @@
+package org.telegram.mtproto.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default {@link MTProtoMetrics}, keeping counters and histograms in memory
+ */
+public class SimpleMTProtoMetrics implements MTProtoMetrics {
+    private final Histogram rtt = new Histogram();
+    private final Histogram framesReceived = new Histogram();
+    private final Histogram framesSent = new Histogram();
+    private final Histogram decryptTime = new Histogram();
+    private final Histogram encryptTime = new Histogram();
+    private final LongAdder resends = new LongAdder();
+    private final LongAdder saltRefreshes = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final ConcurrentHashMap<Integer, LongAdder> badMessages = new ConcurrentHashMap<>();
+    private volatile int inFlight;
+
+    @Override
+    public void onRtt(long millis) {
+        this.rtt.record(millis);
+    }
+
+    @Override
+    public void onInFlight(int count) {
+        this.inFlight = count;
+    }
+
+    @Override
+    public void onResend() {
+        this.resends.increment();
+    }
+
+    @Override
+    public void onBadMessage(int errorCode) {
+        this.badMessages.computeIfAbsent(errorCode, k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void onSaltRefresh() {
+        this.saltRefreshes.increment();
+    }
+
+    @Override
+    public void onBytesReceived(int bytes) {
+        this.bytesReceived.add(bytes);
+    }
+
+    @Override
+    public void onBytesSent(int bytes) {
+        this.bytesSent.add(bytes);
+    }
+
+    @Override
+    public void onFrameReceived(int size) {
+        this.framesReceived.record(size);
+    }
+
+    @Override
+    public void onFrameSent(int size) {
+        this.framesSent.record(size);
+    }
+
+    @Override
+    public void onDecrypt(long nanos) {
+        this.decryptTime.record(nanos);
+    }
+
+    @Override
+    public void onEncrypt(long nanos) {
+        this.encryptTime.record(nanos);
+    }
+
+    @Override
+    public void onReconnect() {
+        this.reconnects.increment();
+    }
+
+    /**
+     * Ping round trip times in milliseconds
+     */
+    public Histogram getRtt() {
+        return this.rtt;
+    }
+
+    /**
+     * Sizes in bytes of the received frames
+     */
+    public Histogram getFramesReceived() {
+        return this.framesReceived;
+    }
+
+    /**
+     * Sizes in bytes of the sent frames
+     */
+    public Histogram getFramesSent() {
+        return this.framesSent;
+    }
+
+    /**
+     * Decryption times in nanoseconds
+     */
+    public Histogram getDecryptTime() {
+        return this.decryptTime;
+    }
+
+    /**
+     * Encryption times in nanoseconds
+     */
+    public Histogram getEncryptTime() {
+        return this.encryptTime;
+    }
+
+    public int getInFlight() {
+        return this.inFlight;
+    }
+
+    public long getResends() {
+        return this.resends.sum();
+    }
+
+    public long getSaltRefreshes() {
+        return this.saltRefreshes.sum();
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    public long getReconnects() {
+        return this.reconnects.sum();
+    }
+
+    /**
+     * Number of bad messages received by error code
+     */
+    public Map<Integer, Long> getBadMessages() {
+        final HashMap<Integer, Long> res = new HashMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : this.badMessages.entrySet()) {
+            res.put(entry.getKey(), entry.getValue().sum());
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return "rtt[" + this.rtt + "] inFlight=" + this.inFlight + " resends=" + getResends() +
+                " badMessages=" + getBadMessages() + " saltRefreshes=" + getSaltRefreshes() +
+                " bytesReceived=" + getBytesReceived() + " bytesSent=" + getBytesSent() +
+                " framesReceived[" + this.framesReceived + "] framesSent[" + this.framesSent + "]" +
+                " decryptNs[" + this.decryptTime + "] encryptNs[" + this.encryptTime + "] reconnects=" + getReconnects();
+    }
+}
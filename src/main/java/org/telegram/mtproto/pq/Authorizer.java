@@ -4,6 +4,7 @@ import org.telegram.mtproto.ServerException;
 import org.telegram.mtproto.TransportSecurityException;
 import org.telegram.mtproto.log.Logger;
 import org.telegram.mtproto.secure.CryptoUtils;
+import org.telegram.mtproto.secure.DhValidator;
 import org.telegram.mtproto.secure.Entropy;
 import org.telegram.mtproto.secure.Keys;
 import org.telegram.mtproto.secure.pq.PQSolver;
@@ -175,13 +176,18 @@ public class Authorizer {
 
         TimeOverlord.getInstance().onServerTimeArrived(dhInner.getServerTime() * 1000L, dhParamsDuration);
 
+        DhValidator.checkPrime(dhInner.getG(), dhInner.getDhPrime());
+        BigInteger g = BigInteger.valueOf(dhInner.getG());
+        BigInteger dhPrime = loadBigInt(dhInner.getDhPrime());
+        BigInteger ga = loadBigInt(dhInner.getG_a());
+        DhValidator.checkPublicValue(ga, dhPrime);
+
         for (int i = 0; i < AUTH_RETRY_COUNT; i++) {
             BigInteger b = loadBigInt(Entropy.getInstance().generateSeed(256));
-            BigInteger g = new BigInteger(dhInner.getG() + "");
-            BigInteger dhPrime = loadBigInt(dhInner.getDhPrime());
             BigInteger gb = g.modPow(b, dhPrime);
+            DhValidator.checkPublicValue(gb, dhPrime);
 
-            BigInteger authKeyVal = loadBigInt(dhInner.getG_a()).modPow(b, dhPrime);
+            BigInteger authKeyVal = ga.modPow(b, dhPrime);
             byte[] authKey = alignKeyZero(fromBigInt(authKeyVal), 256);
             byte[] authAuxHash = substring(SHA1(authKey), 0, 8);
 
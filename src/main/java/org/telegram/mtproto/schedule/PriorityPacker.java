@@ -0,0 +1,85 @@
+package org.telegram.mtproto.schedule;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Deficit round robin over the priority classes of the {@link Scheduller}: each round every
+ * class with items waiting, the most urgent first, earns its weight times the quantum in bytes
+ * and takes its items while they fit in what it has earned. Classes keep the bytes earned and
+ * not used while they have items waiting, so the shares hold across containers.
+ *
+ * @author Ruben Bermudez
+ */
+final class PriorityPacker {
+    private final int quantum;
+    private final int[] deficits = new int[RpcPriority.values().length];
+
+    /**
+     * @param quantum bytes earned each round by a class of weight 1
+     */
+    PriorityPacker(int quantum) {
+        this.quantum = quantum;
+    }
+
+    /**
+     * Picks the items of the next container, in the order they must be sent. The first item
+     * is always taken, and items are taken until maxSize is exceeded.
+     *
+     * @param items    items waiting, in their order of arrival
+     * @param size     size of an item in bytes
+     * @param priority class of an item
+     * @param maxSize  bytes of the container
+     * @return the items picked
+     */
+    <T> ArrayList<T> pack(List<T> items, ToIntFunction<T> size, Function<T, RpcPriority> priority, int maxSize) {
+        final RpcPriority[] priorities = RpcPriority.values();
+        final ArrayList<ArrayDeque<T>> queues = new ArrayList<ArrayDeque<T>>(priorities.length);
+        for (int i = 0; i < priorities.length; i++) {
+            queues.add(new ArrayDeque<T>());
+        }
+        for (T item : items) {
+            queues.get(priority.apply(item).ordinal()).add(item);
+        }
+
+        final ArrayList<T> packed = new ArrayList<T>();
+        int totalSize = 0;
+        boolean isPending = true;
+        while (isPending && totalSize <= maxSize) {
+            isPending = false;
+            for (RpcPriority current : priorities) {
+                final int index = current.ordinal();
+                final ArrayDeque<T> queue = queues.get(index);
+                if (queue.isEmpty()) {
+                    this.deficits[index] = 0;
+                    continue;
+                }
+                this.deficits[index] += current.getWeight() * this.quantum;
+                while (!queue.isEmpty() && totalSize <= maxSize &&
+                        (packed.isEmpty() || size.applyAsInt(queue.peek()) <= this.deficits[index])) {
+                    final T item = queue.poll();
+                    final int itemSize = size.applyAsInt(item);
+                    this.deficits[index] -= itemSize;
+                    packed.add(item);
+                    totalSize += itemSize;
+                }
+                if (queue.isEmpty()) {
+                    this.deficits[index] = 0;
+                } else {
+                    isPending = true;
+                }
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Bytes earned and not used yet by a class
+     */
+    int getDeficit(RpcPriority priority) {
+        return this.deficits[priority.ordinal()];
+    }
+}
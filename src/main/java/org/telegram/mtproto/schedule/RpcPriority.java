@@ -0,0 +1,43 @@
+package org.telegram.mtproto.schedule;
+
+/**
+ * Traffic classes of the messages of the {@link Scheduller}, from the most urgent to the least one.
+ *
+ * Containers are packed with weighted fair queueing: every class gets a share of each container
+ * proportional to its weight, the most urgent one first, so no class starves another one and
+ * a few interactive replies are never delayed by a backlog of bulk or file requests.
+ *
+ * @author Ruben Bermudez
+ */
+public enum RpcPriority {
+    /**
+     * Replies to users: sending and editing messages, answering callback and inline queries.
+     */
+    INTERACTIVE(16),
+    /**
+     * Updates state and differences.
+     */
+    UPDATES(8),
+    /**
+     * Everything not tagged with another class.
+     */
+    NORMAL(4),
+    /**
+     * Bulk reads: history, dialogs, searches and participants.
+     */
+    BULK(2),
+    /**
+     * File transfers.
+     */
+    FILES(1);
+
+    private final int weight;
+
+    RpcPriority(int weight) {
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return this.weight;
+    }
+}
@@ -37,8 +37,7 @@ public class Scheduller {
     private static final int BIG_MESSAGE_SIZE = 1024;
     private static final long RETRY_TIMEOUT = 5 * 1000;
     private static final int MAX_ACK_COUNT = 5;
-    private static final int PRIORITY_HIGH = 1;
-    private static final int PRIORITY_NORMAL = 0;
+    private static final int PRIORITY_QUANTUM = 256;
     private static final int STATE_QUEUED = 0;
     private static final int STATE_SENT = 1;
     private static final int STATE_CONFIRMED = 2;
@@ -46,15 +45,19 @@ public class Scheduller {
     private SortedMap<Integer, SchedullerPackage> messages = Collections.synchronizedSortedMap(new TreeMap<Integer, SchedullerPackage>());
     private HashSet<Long> currentMessageGeneration = new HashSet<Long>();
     private HashSet<Long> confirmedMessages = new HashSet<Long>();
+    private final ArrayList<Integer> orphanedMessages = new ArrayList<Integer>();
     private long firstConfirmTime;
     private long lastMessageId;
     private long lastDependId;
+    private final PriorityPacker packer = new PriorityPacker(PRIORITY_QUANTUM);
     private int seqNo;
     private CallWrapper wrapper;
+    private final MTProto mtProto;
 
     public Scheduller(MTProto mtProto, CallWrapper wrapper) {
         this.TAG = "MTProto#" + mtProto.getInstanceIndex() + "#Scheduller";
         this.wrapper = wrapper;
+        this.mtProto = mtProto;
     }
 
     public synchronized void updateMessageId(long newLastMessageId) {
@@ -107,6 +110,11 @@ public class Scheduller {
     }
 
     public int postMessageDelayed(TLObject object, boolean isRpc, long timeout, int delay, int contextId, boolean highPrioroty) {
+        return postMessageDelayed(object, isRpc, timeout, delay, contextId,
+                highPrioroty ? RpcPriority.INTERACTIVE : RpcPriority.NORMAL, highPrioroty);
+    }
+
+    public int postMessageDelayed(TLObject object, boolean isRpc, long timeout, int delay, int contextId, RpcPriority priority, boolean isDepend) {
         int id = messagesIds.incrementAndGet();
         SchedullerPackage schedullerPackage = new SchedullerPackage(id);
         schedullerPackage.object = object;
@@ -116,8 +124,8 @@ public class Scheduller {
         schedullerPackage.ttlTime = schedullerPackage.scheduleTime + timeout * 2;
         schedullerPackage.isRpc = isRpc;
         schedullerPackage.queuedToChannel = contextId;
-        schedullerPackage.priority = highPrioroty ? PRIORITY_HIGH : PRIORITY_NORMAL;
-        schedullerPackage.isDepend = highPrioroty;
+        schedullerPackage.priority = priority;
+        schedullerPackage.isDepend = isDepend;
         schedullerPackage.supportTag = object.toString();
         schedullerPackage.serverErrorCount = 0;
         this.messages.put(id, schedullerPackage);
@@ -132,6 +140,22 @@ public class Scheduller {
         return postMessageDelayed(object, isApi, timeout, 0, -1, highPrioroty);
     }
 
+    public int postMessage(TLObject object, boolean isApi, long timeout, RpcPriority priority, boolean isDepend) {
+        return postMessageDelayed(object, isApi, timeout, 0, -1, priority, isDepend);
+    }
+
+    /**
+     * Posts a message invoked by the server after a previous one, with invokeAfterMsg, while the
+     * previous one is pending. It is not sent before the previous one.
+     *
+     * @param previousId scheduller id of the previous message
+     */
+    public synchronized int postMessageAfter(TLObject object, boolean isApi, long timeout, RpcPriority priority, int previousId) {
+        final int id = postMessageDelayed(object, isApi, timeout, 0, -1, priority, false);
+        this.messages.get(id).previousId = previousId;
+        return id;
+    }
+
     public synchronized void prepareScheduller(PrepareSchedule prepareSchedule, int[] connectionIds) {
         long time = getCurrentTime();
 
@@ -159,10 +183,14 @@ public class Scheduller {
         long minDelay = SCHEDULLER_TIMEOUT;
         boolean allConnections = false;
         boolean doWait = true;
+        int inFlight = 0;
         HashSet<Integer> supportedConnections = new HashSet<Integer>();
         for (SchedullerPackage schedullerPackage : this.messages.values().toArray(new SchedullerPackage[0])) {
             boolean isPendingPackage = false;
             long packageTime = 0;
+            if (schedullerPackage.state == STATE_SENT) {
+                inFlight++;
+            }
 
             if (schedullerPackage.state == STATE_QUEUED) {
                 isPendingPackage = true;
@@ -195,6 +223,7 @@ public class Scheduller {
                 }
             }
 	}
+        this.mtProto.getMetrics().onInFlight(inFlight);
        	/*if (this.confirmedMessages.size() > MAX_ACK_COUNT) {
            	doWait = false;
            	allConnections = true;
@@ -274,6 +303,25 @@ public class Scheduller {
                 schedullerPackage.state = STATE_QUEUED;
                 schedullerPackage.scheduleTime = getCurrentTime() + delay;
                 Logger.d(this.TAG, "Resending as new #" + schedullerPackage.id);
+                resendNextAsNew(schedullerPackage.id, schedullerPackage.scheduleTime);
+            }
+        }
+    }
+
+    /**
+     * Messages invoked after a message resent as new must wait for its new id
+     */
+    private void resendNextAsNew(int previousId, long scheduleTime) {
+        for (SchedullerPackage schedullerPackage : this.messages.values().toArray(new SchedullerPackage[0])) {
+            if (schedullerPackage.previousId == previousId && schedullerPackage.state != STATE_QUEUED) {
+                schedullerPackage.idGenerationTime = 0;
+                schedullerPackage.dependMessageId = 0;
+                schedullerPackage.messageId = 0;
+                schedullerPackage.seqNo = 0;
+                schedullerPackage.state = STATE_QUEUED;
+                schedullerPackage.scheduleTime = Math.max(schedullerPackage.scheduleTime, scheduleTime);
+                Logger.d(this.TAG, "Resending as new #" + schedullerPackage.id + " after #" + previousId);
+                resendNextAsNew(schedullerPackage.id, schedullerPackage.scheduleTime);
             }
         }
     }
@@ -346,15 +394,63 @@ public class Scheduller {
         }
     }
 
+    /**
+     * Forgets a message that was not answered: the messages invoked after it are forgotten too,
+     * since the server would never run them, and handed out by {@link #pollOrphanedMessages()}
+     */
     public synchronized void forgetMessage(int id) {
         Logger.d(this.TAG, "Forgetting message: #" + id);
         this.messages.remove(id);
+        forgetNext(id);
+    }
+
+    /**
+     * Forgets a message that was answered: the messages invoked after it may be sent without
+     * invokeAfterMsg from now on
+     */
+    public synchronized void forgetAnsweredMessage(int id) {
+        Logger.d(this.TAG, "Forgetting answered message: #" + id);
+        this.messages.remove(id);
+        for (SchedullerPackage schedullerPackage : this.messages.values().toArray(new SchedullerPackage[0])) {
+            if (schedullerPackage.previousId == id) {
+                schedullerPackage.previousId = 0;
+            }
+        }
+    }
+
+    /**
+     * Messages forgotten because a message they were invoked after was forgotten unanswered
+     *
+     * @return their ids, each one returned once
+     */
+    public synchronized int[] pollOrphanedMessages() {
+        final int[] res = new int[this.orphanedMessages.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = this.orphanedMessages.get(i);
+        }
+        this.orphanedMessages.clear();
+        return res;
+    }
+
+    private void forgetNext(int previousId) {
+        for (SchedullerPackage schedullerPackage : this.messages.values().toArray(new SchedullerPackage[0])) {
+            if (schedullerPackage.previousId == previousId) {
+                Logger.d(this.TAG, "Forgetting message: #" + schedullerPackage.id + " after #" + previousId);
+                this.messages.remove(schedullerPackage.id);
+                this.orphanedMessages.add(schedullerPackage.id);
+                forgetNext(schedullerPackage.id);
+            }
+        }
     }
 
     private synchronized ArrayList<SchedullerPackage> actualPackages(int contextId) {
         ArrayList<SchedullerPackage> foundedPackages = new ArrayList<SchedullerPackage>();
         long time = getCurrentTime();
         for (SchedullerPackage schedullerPackage : this.messages.values().toArray(new SchedullerPackage[0])) {
+            if (!this.messages.containsKey(schedullerPackage.id)) {
+                // Forgotten with an expired message it was sent after
+                continue;
+            }
             if (schedullerPackage.queuedToChannel != -1 && contextId != schedullerPackage.queuedToChannel) {
                 continue;
             }
@@ -408,45 +504,20 @@ public class Scheduller {
             }
         }
 
+        ArrayList<SchedullerPackage> packages = removeWaitingPackages(packPackages(foundedPackages));
         boolean useHighPriority = false;
-
-        for (SchedullerPackage p : foundedPackages) {
-            if (p.priority == PRIORITY_HIGH) {
+        for (SchedullerPackage p : packages) {
+            if (p.priority == RpcPriority.INTERACTIVE) {
                 useHighPriority = true;
                 break;
             }
         }
 
-        ArrayList<SchedullerPackage> packages = new ArrayList<SchedullerPackage>();
-
-        if (useHighPriority) {
-            Logger.d("Scheduller", "Using high priority scheduling");
-            int totalSize = 0;
-            for (SchedullerPackage p : foundedPackages) {
-                if (p.priority == PRIORITY_HIGH) {
-                    packages.add(p);
-                    totalSize += p.serialized.length;
-                    if (totalSize > MAX_WORKLOAD_SIZE) {
-                        break;
-                    }
-                }
-            }
-        } else {
-            int totalSize = 0;
-            for (SchedullerPackage p : foundedPackages) {
-                packages.add(p);
-                Logger.d("Scheduller", "Prepare package: " + p.supportTag + " of size " + p.serialized.length);
-                totalSize += p.serialized.length;
-                Logger.d("Scheduller", "Total size: " + totalSize);
-                if (totalSize > MAX_WORKLOAD_SIZE) {
-                    break;
-                }
-            }
-        }
-
         Logger.d(this.TAG, "Iteration: count: " + packages.size() + ", confirm:" + this.confirmedMessages.size());
         Logger.d(this.TAG, "Building package");
-        if (foundedPackages.size() == 0 && this.confirmedMessages.size() != 0) {
+        if (packages.size() == 0 && this.confirmedMessages.size() == 0) {
+            return null;
+        } else if (packages.size() == 0) {
             Long[] msgIds;
             synchronized (this.confirmedMessages) {
                 msgIds = this.confirmedMessages.toArray(new Long[this.confirmedMessages.size()]);
@@ -460,9 +531,10 @@ public class Scheduller {
                 Logger.e(this.TAG, e);
                 return null;
             }
-        } else if (foundedPackages.size() == 1 && this.confirmedMessages.size() == 0) {
-            SchedullerPackage schedullerPackage = foundedPackages.get(0);
+        } else if (packages.size() == 1 && this.confirmedMessages.size() == 0 && getPrevious(packages.get(0)) == null) {
+            SchedullerPackage schedullerPackage = packages.get(0);
             schedullerPackage.state = STATE_SENT;
+            markSent(schedullerPackage);
             if (schedullerPackage.idGenerationTime == 0) {
                 generateParams(schedullerPackage);
             }
@@ -488,6 +560,7 @@ public class Scheduller {
             }
             for (SchedullerPackage schedullerPackage : packages) {
                 schedullerPackage.state = STATE_SENT;
+                markSent(schedullerPackage);
                 if (schedullerPackage.idGenerationTime == 0) {
                     generateParams(schedullerPackage);
                 }
@@ -502,10 +575,13 @@ public class Scheduller {
                     }
 
                     this.lastDependId = schedullerPackage.messageId;
+                } else if (schedullerPackage.previousId != 0 && schedullerPackage.dependMessageId == 0) {
+                    // The previous one is pending: forgotten ones clear previousId or take this one with them
+                    schedullerPackage.dependMessageId = getPrevious(schedullerPackage).messageId;
                 }
                 schedullerPackage.writtenToChannel = contextId;
                 schedullerPackage.lastAttemptTime = getCurrentTime();
-                if (schedullerPackage.isDepend && schedullerPackage.dependMessageId > 0) {
+                if (schedullerPackage.dependMessageId > 0) {
 
                     Logger.d(this.TAG, "Adding package: #" + schedullerPackage.id + " " + schedullerPackage.supportTag + " (" + schedullerPackage.messageId + " on " + schedullerPackage.dependMessageId + ", " + schedullerPackage.seqNo + ")");
 
@@ -541,6 +617,52 @@ public class Scheduller {
         }
     }
 
+    /**
+     * Previous message of a message invoked after it, while it is pending
+     */
+    private SchedullerPackage getPrevious(SchedullerPackage schedullerPackage) {
+        if (schedullerPackage.previousId == 0) {
+            return null;
+        }
+        return this.messages.get(schedullerPackage.previousId);
+    }
+
+    /**
+     * Keeps queued the messages whose previous message is not sent yet nor sent before them
+     */
+    private ArrayList<SchedullerPackage> removeWaitingPackages(ArrayList<SchedullerPackage> packages) {
+        final HashSet<Integer> included = new HashSet<Integer>();
+        final ArrayList<SchedullerPackage> res = new ArrayList<SchedullerPackage>(packages.size());
+        for (SchedullerPackage schedullerPackage : packages) {
+            final SchedullerPackage previous = getPrevious(schedullerPackage);
+            if (previous != null && previous.state == STATE_QUEUED && !included.contains(previous.id)) {
+                Logger.d(this.TAG, "Waiting for #" + previous.id + ": #" + schedullerPackage.id);
+                continue;
+            }
+            included.add(schedullerPackage.id);
+            res.add(schedullerPackage);
+        }
+        return res;
+    }
+
+    /**
+     * Picks the packages of the next container, sharing it among the priority classes
+     */
+    private ArrayList<SchedullerPackage> packPackages(ArrayList<SchedullerPackage> foundedPackages) {
+        final ArrayList<SchedullerPackage> packages = this.packer.pack(foundedPackages, p -> p.serialized.length, p -> p.priority, MAX_WORKLOAD_SIZE);
+        for (SchedullerPackage p : packages) {
+            Logger.d("Scheduller", "Prepare package: " + p.supportTag + " of size " + p.serialized.length + " as " + p.priority);
+        }
+        return packages;
+    }
+
+    private void markSent(SchedullerPackage schedullerPackage) {
+        if (schedullerPackage.isSent) {
+            this.mtProto.getMetrics().onResend();
+        }
+        schedullerPackage.isSent = true;
+    }
+
     public synchronized void onServerError(long msgId) {
 
     }
@@ -588,11 +710,12 @@ public class Scheduller {
         public int writtenToChannel = -1;
         public int queuedToChannel = -1;
         public int state;
-        public int priority;
+        public RpcPriority priority = RpcPriority.NORMAL;
         public boolean isDepend;
         public boolean isSent;
         public long idGenerationTime;
         public long dependMessageId;
+        public int previousId;
         public long messageId;
         public int seqNo;
         public HashSet<Integer> relatedFastConfirm = new HashSet<Integer>();
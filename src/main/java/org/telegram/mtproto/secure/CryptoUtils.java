@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
@@ -87,6 +88,13 @@ public class CryptoUtils {
         currentImplementation.AES256IGEDecrypt(src, dest, len, iv, key);
     }
 
+    /**
+     * Decrypts in place len bytes from the position of the buffer, leaving the position unchanged
+     */
+    public static void AES256IGEDecrypt(ByteBuffer buffer, int len, byte[] iv, byte[] key) {
+        currentImplementation.AES256IGEDecrypt(buffer, len, iv, key);
+    }
+
     public static byte[] AES256IGEDecrypt(byte[] src, byte[] iv, byte[] key) {
         byte[] res = new byte[src.length];
         currentImplementation.AES256IGEDecrypt(src, res, src.length, iv, key);
@@ -0,0 +1,87 @@
+package org.telegram.mtproto.secure;
+
+import org.telegram.mtproto.TransportSecurityException;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.telegram.mtproto.secure.CryptoUtils.SHA1;
+import static org.telegram.mtproto.secure.CryptoUtils.ToHex;
+
+/**
+ * Checks of the Diffie-Hellman parameters received while creating an auth key.
+ *
+ * Checking that dh_prime is a safe prime takes two primality tests of 2048-bit numbers,
+ * while the server almost always sends the same prime, so the outcome is cached by the
+ * hash of the prime and the generator.
+ */
+public class DhValidator {
+    private static final int PRIME_BITS = 2048;
+    private static final int PRIME_CERTAINTY = 64;
+    private static final BigInteger MIN_VALUE = BigInteger.ONE.shiftLeft(PRIME_BITS - 64);
+    private static final ConcurrentHashMap<String, Boolean> checkedPrimes = new ConcurrentHashMap<>();
+
+    private DhValidator() {
+    }
+
+    /**
+     * Checks that dhPrime is a 2048-bit safe prime and g generates a subgroup of prime order (dhPrime - 1) / 2
+     */
+    public static void checkPrime(int g, byte[] dhPrime) throws TransportSecurityException {
+        final String key = ToHex(SHA1(dhPrime)) + ":" + g;
+        Boolean isValid = checkedPrimes.get(key);
+        if (isValid == null) {
+            isValid = isSafePrime(g, CryptoUtils.loadBigInt(dhPrime));
+            checkedPrimes.put(key, isValid);
+        }
+        if (!isValid) {
+            throw new TransportSecurityException("Invalid DH prime");
+        }
+    }
+
+    /**
+     * Checks that g_a or g_b is far enough from 1 and dhPrime - 1
+     */
+    public static void checkPublicValue(BigInteger value, BigInteger dhPrime) throws TransportSecurityException {
+        if (value.compareTo(MIN_VALUE) < 0 || value.compareTo(dhPrime.subtract(MIN_VALUE)) > 0) {
+            throw new TransportSecurityException("Invalid DH public value");
+        }
+    }
+
+    private static boolean isSafePrime(int g, BigInteger prime) {
+        if (prime.bitLength() != PRIME_BITS) {
+            return false;
+        }
+        if (!isValidGenerator(g, prime)) {
+            return false;
+        }
+        return prime.isProbablePrime(PRIME_CERTAINTY) &&
+                prime.subtract(BigInteger.ONE).shiftRight(1).isProbablePrime(PRIME_CERTAINTY);
+    }
+
+    private static boolean isValidGenerator(int g, BigInteger prime) {
+        switch (g) {
+            case 2:
+                return mod(prime, 8) == 7;
+            case 3:
+                return mod(prime, 3) == 2;
+            case 4:
+                return true;
+            case 5:
+                final int mod5 = mod(prime, 5);
+                return mod5 == 1 || mod5 == 4;
+            case 6:
+                final int mod24 = mod(prime, 24);
+                return mod24 == 19 || mod24 == 23;
+            case 7:
+                final int mod7 = mod(prime, 7);
+                return mod7 == 3 || mod7 == 5 || mod7 == 6;
+            default:
+                return false;
+        }
+    }
+
+    private static int mod(BigInteger value, int modulus) {
+        return value.mod(BigInteger.valueOf(modulus)).intValue();
+    }
+}
@@ -1,7 +1,11 @@
 package org.telegram.mtproto.secure;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.telegram.mtproto.secure.CryptoUtils.xor;
 
@@ -10,53 +14,187 @@ import static org.telegram.mtproto.secure.CryptoUtils.xor;
  * User: Ruben Bermudez
  * Date: 03.11.13
  * Time: 4:05
+ *
+ * Random source for nonces, session ids and random ids. SecureRandom.generateSeed may block
+ * waiting for system entropy, so it is only used through nextBytes of a master generator
+ * that seeds a SHA1PRNG per thread. Each thread prefetches random longs in bulk, so random
+ * ids don't take any lock. Feeding entropy reseeds every thread on its next use.
+ *
+ * Virtual threads are too many and too short-lived to seed a generator each: they share a
+ * few striped generators instead, picked by thread id and used under their lock.
  */
 public final class Entropy {
-    private static SecureRandom random;
-    private static Entropy instance;
+    private static final int SEED_SIZE = 32;
+    private static final int PREFETCH_SIZE = 64;
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
 
-    private Entropy() {
-        try {
-            random = SecureRandom.getInstance("SHA1PRNG");
-        } catch (NoSuchAlgorithmException e) {
-            random = new SecureRandom();
+    private static volatile Entropy instance;
+
+    private final SecureRandom master;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ThreadLocal<ThreadRandom> threadRandom = new ThreadLocal<ThreadRandom>() {
+        @Override
+        protected ThreadRandom initialValue() {
+            return new ThreadRandom();
         }
+    };
+    private volatile ThreadRandom[] stripes;
+
+    private Entropy() {
+        this.master = new SecureRandom();
     }
 
     public static Entropy getInstance() {
-        if (instance == null) {
-            instance = new Entropy();
+        Entropy localInstance = instance;
+        if (localInstance == null) {
+            synchronized (Entropy.class) {
+                localInstance = instance;
+                if (localInstance == null) {
+                    instance = localInstance = new Entropy();
+                }
+            }
         }
-        return instance;
+        return localInstance;
     }
 
     public byte[] generateSeed(int size) {
-        synchronized (random) {
-            return random.generateSeed(size);
+        final byte[] res = new byte[size];
+        if (isVirtualThread()) {
+            final ThreadRandom random = getStripe();
+            synchronized (random) {
+                refresh(random).random.nextBytes(res);
+            }
+        } else {
+            refresh(this.threadRandom.get()).random.nextBytes(res);
         }
+        return res;
     }
 
     public byte[] generateSeed(byte[] sourceSeed) {
-        synchronized (random) {
-            return xor(random.generateSeed(sourceSeed.length), sourceSeed);
-        }
+        return xor(generateSeed(sourceSeed.length), sourceSeed);
     }
 
     public long generateRandomId() {
-        synchronized (random) {
-            return random.nextLong();
-        }
+        return nextLong();
     }
 
     public int randomInt() {
-        synchronized (random) {
-            return random.nextInt();
-        }
+        return (int) nextLong();
     }
 
     public void feedEntropy(byte[] data) {
-        synchronized (random) {
-            random.setSeed(data);
+        synchronized (this.master) {
+            this.master.setSeed(data);
+        }
+        this.generation.incrementAndGet();
+    }
+
+    private long nextLong() {
+        if (isVirtualThread()) {
+            final ThreadRandom random = getStripe();
+            synchronized (random) {
+                return refresh(random).nextLong();
+            }
+        }
+        return refresh(this.threadRandom.get()).nextLong();
+    }
+
+    private ThreadRandom refresh(ThreadRandom random) {
+        final int currentGeneration = this.generation.get();
+        if (random.generation != currentGeneration) {
+            random.reseed(currentGeneration);
+        }
+        return random;
+    }
+
+    private ThreadRandom getStripe() {
+        ThreadRandom[] localStripes = this.stripes;
+        if (localStripes == null) {
+            synchronized (this) {
+                localStripes = this.stripes;
+                if (localStripes == null) {
+                    final int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) << 2;
+                    localStripes = new ThreadRandom[count];
+                    for (int i = 0; i < count; i++) {
+                        localStripes[i] = new ThreadRandom();
+                    }
+                    this.stripes = localStripes;
+                }
+            }
+        }
+        final long id = Thread.currentThread().getId();
+        return localStripes[(int) (id ^ (id >>> 32)) & (localStripes.length - 1)];
+    }
+
+    /**
+     * Whether the current thread is a virtual thread, always false before Java 19
+     */
+    private static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private byte[] nextSeed() {
+        final byte[] seed = new byte[SEED_SIZE];
+        synchronized (this.master) {
+            this.master.nextBytes(seed);
+        }
+        return seed;
+    }
+
+    private class ThreadRandom {
+        private final SecureRandom random;
+        private final long[] prefetched = new long[PREFETCH_SIZE];
+        private final byte[] buffer = new byte[PREFETCH_SIZE * 8];
+        private int position = PREFETCH_SIZE;
+        private int generation;
+
+        private ThreadRandom() {
+            SecureRandom secureRandom;
+            try {
+                secureRandom = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                secureRandom = new SecureRandom();
+            }
+            this.random = secureRandom;
+            this.generation = Entropy.this.generation.get();
+            // Seeding before the first use keeps SHA1PRNG from seeding itself with generateSeed
+            this.random.setSeed(nextSeed());
+        }
+
+        private void reseed(int generation) {
+            this.generation = generation;
+            this.random.setSeed(nextSeed());
+            this.position = PREFETCH_SIZE;
+        }
+
+        private long nextLong() {
+            if (this.position == PREFETCH_SIZE) {
+                this.random.nextBytes(this.buffer);
+                for (int i = 0; i < PREFETCH_SIZE; i++) {
+                    long value = 0;
+                    for (int j = 0; j < 8; j++) {
+                        value = (value << 8) | (this.buffer[i * 8 + j] & 0xFF);
+                    }
+                    this.prefetched[i] = value;
+                }
+                this.position = 0;
+            }
+            return this.prefetched[this.position++];
         }
     }
 }
@@ -1,6 +1,7 @@
 package org.telegram.mtproto.secure.aes;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Created by Ruben Bermudez on 12.02.14.
@@ -8,6 +9,16 @@ import java.io.IOException;
 public interface AESImplementation {
     void AES256IGEDecrypt(byte[] src, byte[] dest, int len, byte[] iv, byte[] key);
 
+    /**
+     * Decrypts in place len bytes from the position of the buffer, leaving the position unchanged
+     */
+    default void AES256IGEDecrypt(ByteBuffer buffer, int len, byte[] iv, byte[] key) {
+        final byte[] data = new byte[len];
+        buffer.duplicate().get(data);
+        AES256IGEDecrypt(data, data, len, iv, key);
+        buffer.duplicate().put(data);
+    }
+
     void AES256IGEEncrypt(byte[] src, byte[] dest, int len, byte[] iv, byte[] key);
 
     void AES256IGEEncrypt(String sourceFile, String destFile, byte[] iv, byte[] key) throws IOException;
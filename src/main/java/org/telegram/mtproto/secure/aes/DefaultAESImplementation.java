@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import static org.telegram.mtproto.secure.CryptoUtils.substring;
 
@@ -54,6 +55,38 @@ public class DefaultAESImplementation implements AESImplementation {
         }
     }
 
+    @Override
+    public void AES256IGEDecrypt(ByteBuffer buffer, int len, byte[] iv, byte[] key) {
+        AESFastEngine engine = new AESFastEngine();
+        engine.init(false, new KeyParameter(key));
+
+        int blocksCount = len / 16;
+        int start = buffer.position();
+
+        byte[] curIvX = substring(iv, 16, 16);
+        byte[] curIvY = substring(iv, 0, 16);
+        byte[] block = new byte[16];
+
+        for (int i = 0; i < blocksCount; i++) {
+            int offset = start + i * 16;
+
+            for (int j = 0; j < 16; j++) {
+                block[j] = buffer.get(offset + j);
+                curIvX[j] = (byte) (block[j] ^ curIvX[j]);
+            }
+            engine.processBlock(curIvX, 0, curIvX, 0);
+            for (int j = 0; j < 16; j++) {
+                curIvX[j] = (byte) (curIvX[j] ^ curIvY[j]);
+                buffer.put(offset + j, curIvX[j]);
+            }
+
+            // The encrypted block is the next curIvY, the decrypted one (already in curIvX) the next curIvX
+            byte[] tmp = curIvY;
+            curIvY = block;
+            block = tmp;
+        }
+    }
+
     @Override
     public void AES256IGEEncrypt(byte[] src, byte[] dest, int len, byte[] iv, byte[] key) {
         AESFastEngine engine = new AESFastEngine();
@@ -0,0 +1,137 @@
+package org.telegram.mtproto.secure.pq;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pollard's rho with Brent's cycle detection, working in Montgomery form so every
+ * step is a couple of 64-bit multiplications instead of a shift-and-add loop.
+ * Differences are accumulated and a gcd is only computed once per batch.
+ *
+ * Works for any odd composite up to 2^63 - 1, which covers the pq sent by the server.
+ */
+public class PQBrent implements PQImplementation {
+    private static final int BATCH_SIZE = 128;
+    private static final int MAX_ATTEMPTS = 32;
+
+    @Override
+    public long findDivider(long src) {
+        if (src <= 3) {
+            return src;
+        }
+        if ((src & 1) == 0) {
+            return 2;
+        }
+        final Montgomery montgomery = new Montgomery(src);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            final long divider = brent(montgomery, random.nextLong(1, src), random.nextLong(1, src));
+            if (divider != src) {
+                return Math.min(divider, src / divider);
+            }
+        }
+        throw new IllegalArgumentException("Unable to factorize " + src);
+    }
+
+    private static long brent(Montgomery montgomery, long y, long c) {
+        final long n = montgomery.n;
+        long x = y;
+        long ys = y;
+        long q = 1;
+        long g = 1;
+        for (long r = 1; g == 1; r <<= 1) {
+            x = y;
+            for (long i = 0; i < r; i++) {
+                y = montgomery.square(y, c);
+            }
+            for (long k = 0; k < r && g == 1; k += BATCH_SIZE) {
+                ys = y;
+                final long count = Math.min(BATCH_SIZE, r - k);
+                for (long i = 0; i < count; i++) {
+                    y = montgomery.square(y, c);
+                    q = montgomery.multiply(q, x > y ? x - y : y - x);
+                }
+                g = gcd(q, n);
+            }
+        }
+        if (g == n) {
+            // The batch went past the factor: replay it one step at a time
+            do {
+                ys = montgomery.square(ys, c);
+                g = gcd(x > ys ? x - ys : ys - x, n);
+            } while (g == 1);
+        }
+        return g;
+    }
+
+    private static long gcd(long a, long b) {
+        if (a == 0) {
+            return b;
+        }
+        if (b == 0) {
+            return a;
+        }
+        final int shift = Long.numberOfTrailingZeros(a | b);
+        a >>= Long.numberOfTrailingZeros(a);
+        do {
+            b >>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                final long t = b;
+                b = a;
+                a = t;
+            }
+            b -= a;
+        } while (b != 0);
+        return a << shift;
+    }
+
+    /**
+     * High 64 bits of the unsigned 128-bit product, as Math.multiplyHigh is not available in Java 8
+     */
+    static long unsignedMultiplyHigh(long x, long y) {
+        final long x0 = x & 0xFFFFFFFFL;
+        final long x1 = x >>> 32;
+        final long y0 = y & 0xFFFFFFFFL;
+        final long y1 = y >>> 32;
+        final long t = x1 * y0 + ((x0 * y0) >>> 32);
+        final long w1 = (t & 0xFFFFFFFFL) + x0 * y1;
+        return x1 * y1 + (t >>> 32) + (w1 >>> 32);
+    }
+
+    /**
+     * Montgomery arithmetic modulo an odd n below 2^63 with R = 2^64. Values in the rho
+     * iteration are never converted back: the sequence stays pseudo random and gcd is
+     * not affected because R is coprime with n.
+     */
+    private static final class Montgomery {
+        private final long n;
+        private final long inverse;
+
+        private Montgomery(long n) {
+            this.n = n;
+            // Newton's iteration, every step doubles the correct low bits
+            long x = n;
+            for (int i = 0; i < 5; i++) {
+                x *= 2 - n * x;
+            }
+            this.inverse = x;
+        }
+
+        /**
+         * a * b / R mod n, for a and b below n
+         */
+        private long multiply(long a, long b) {
+            final long high = unsignedMultiplyHigh(a, b);
+            final long m = a * b * this.inverse;
+            final long t = high - unsignedMultiplyHigh(m, this.n);
+            return t < 0 ? t + this.n : t;
+        }
+
+        /**
+         * a * a / R + c mod n
+         */
+        private long square(long a, long c) {
+            final long s = multiply(a, a) + c;
+            return (s < 0 || s >= this.n) ? s - this.n : s;
+        }
+    }
+}
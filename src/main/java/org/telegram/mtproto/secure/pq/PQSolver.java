@@ -6,7 +6,7 @@ import java.math.BigInteger;
  * Created by Ruben Bermudez on 12.02.14.
  */
 public class PQSolver {
-    private static PQImplementation currentImplementation = new PQLopatin();
+    private static PQImplementation currentImplementation = new PQBrent();
 
     private PQSolver() {
 
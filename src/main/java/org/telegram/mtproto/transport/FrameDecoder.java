@@ -0,0 +1,126 @@
+package org.telegram.mtproto.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the abridged TCP transport.
+ *
+ * Frames that are completely contained in the received buffer are handed out as
+ * slices of it, without copying. Only a frame that spans several reads is
+ * assembled in a new {@link PooledBuffer}. Frames passed to the listener are only
+ * valid during the call, unless the listener retains them.
+ */
+public class FrameDecoder {
+    private static final int MAX_PACKED_SIZE = 1024 * 1024 * 1024;//1 GB
+    private static final int EXTENDED_LENGTH = 0x7f;
+    private static final int QUICK_ACK_FLAG = 0x80;
+
+    public interface FrameListener {
+        void onFrame(PooledBuffer frame);
+
+        void onFastConfirm(int hash);
+
+        void onTransportError(int errorCode);
+    }
+
+    private final FrameListener listener;
+    private final byte[] header = new byte[4];
+    private int headerLength;
+    private int headerRead;
+    private PooledBuffer partial;
+    private int frameLength;
+
+    public FrameDecoder(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Consumes all the bytes of the buffer, notifying every completed frame.
+     *
+     * @throws IOException if the stream contains an invalid frame length
+     */
+    public void decode(PooledBuffer data) throws IOException {
+        final ByteBuffer buffer = data.buffer();
+        while (buffer.hasRemaining()) {
+            if (this.partial != null) {
+                final ByteBuffer partialBuffer = this.partial.buffer();
+                final int count = Math.min(this.frameLength - partialBuffer.position(), buffer.remaining());
+                final int oldLimit = buffer.limit();
+                buffer.limit(buffer.position() + count);
+                partialBuffer.put(buffer);
+                buffer.limit(oldLimit);
+                if (partialBuffer.position() == this.frameLength) {
+                    final PooledBuffer assembled = this.partial;
+                    this.partial = null;
+                    partialBuffer.flip();
+                    try {
+                        deliver(assembled);
+                    } finally {
+                        assembled.release();
+                    }
+                }
+                continue;
+            }
+
+            if (this.headerRead == 0) {
+                final int first = buffer.get(buffer.position()) & 0xFF;
+                this.headerLength = ((first & QUICK_ACK_FLAG) != 0 || first == EXTENDED_LENGTH) ? 4 : 1;
+            }
+            while (this.headerRead < this.headerLength && buffer.hasRemaining()) {
+                this.header[this.headerRead++] = buffer.get();
+            }
+            if (this.headerRead < this.headerLength) {
+                return;
+            }
+            this.headerRead = 0;
+
+            if ((this.header[0] & QUICK_ACK_FLAG) != 0) {
+                final int hash = ((this.header[0] & 0xFF) << 24) | ((this.header[1] & 0xFF) << 16) |
+                        ((this.header[2] & 0xFF) << 8) | (this.header[3] & 0xFF);
+                this.listener.onFastConfirm(hash & ~(1 << 31));
+                continue;
+            }
+
+            final long length;
+            if (this.headerLength == 1) {
+                length = this.header[0] * 4L;
+            } else {
+                length = ((this.header[1] & 0xFF) | ((this.header[2] & 0xFF) << 8) | ((this.header[3] & 0xFF) << 16)) * 4L;
+            }
+            if (length == 0 || length > MAX_PACKED_SIZE) {
+                throw new IOException("Invalid packet length " + length);
+            }
+
+            if (buffer.remaining() >= length) {
+                final PooledBuffer frame = data.slice(0, (int) length);
+                buffer.position(buffer.position() + (int) length);
+                deliver(frame);
+            } else {
+                this.frameLength = (int) length;
+                this.partial = PooledBuffer.allocate(this.frameLength);
+                this.partial.buffer().put(buffer);
+            }
+        }
+    }
+
+    /**
+     * Drops any partially received frame, to be called when the connection changes
+     */
+    public void reset() {
+        this.headerRead = 0;
+        if (this.partial != null) {
+            this.partial.release();
+            this.partial = null;
+        }
+    }
+
+    private void deliver(PooledBuffer frame) {
+        final ByteBuffer buffer = frame.buffer();
+        if (buffer.remaining() == 4) {
+            this.listener.onTransportError(buffer.getInt(buffer.position()));
+        } else {
+            this.listener.onFrame(frame);
+        }
+    }
+}
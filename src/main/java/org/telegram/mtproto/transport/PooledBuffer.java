@@ -0,0 +1,158 @@
+package org.telegram.mtproto.transport;
+
+import org.telegram.mtproto.log.Logger;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted direct buffer taken from {@link BuffersStorage}.
+ *
+ * A new buffer has one reference. Whoever keeps the buffer after the call that handed it out
+ * must {@link #retain()} it and {@link #release()} it when done; the memory goes back to the
+ * pool when the last reference is released. Slices share the reference count and the memory
+ * of the buffer they come from, so bytes can go from the socket to decryption without copies.
+ *
+ * With leak detection enabled the stack trace of every allocation is recorded, and buffers
+ * collected by the garbage collector without being released are logged on later allocations.
+ */
+public final class PooledBuffer {
+    private static final String TAG = "PooledBuffer";
+
+    private static volatile boolean leakDetection = false;
+    private static final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+    private static final Set<LeakTracker> trackers = ConcurrentHashMap.newKeySet();
+
+    private final PooledBuffer root;
+    private final ByteBufferDesc desc;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount;
+    private volatile LeakTracker tracker;
+
+    private PooledBuffer(ByteBufferDesc desc) {
+        this.root = this;
+        this.desc = desc;
+        this.buffer = desc.buffer;
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.refCount = new AtomicInteger(1);
+    }
+
+    private PooledBuffer(PooledBuffer root, ByteBuffer buffer) {
+        this.root = root;
+        this.desc = null;
+        this.buffer = buffer;
+        this.refCount = root.refCount;
+    }
+
+    /**
+     * Buffer with position 0 and limit size
+     */
+    public static PooledBuffer allocate(int size) {
+        final PooledBuffer res = new PooledBuffer(BuffersStorage.getInstance().getFreeBuffer(size));
+        if (leakDetection) {
+            reportLeaks();
+            res.tracker = new LeakTracker(res, Thread.currentThread().getStackTrace());
+            trackers.add(res.tracker);
+        }
+        return res;
+    }
+
+    public static boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    public static void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+    }
+
+    /**
+     * Little endian view of the bytes of the buffer. Position and limit can be changed freely,
+     * the contents only while holding a reference.
+     */
+    public ByteBuffer buffer() {
+        return this.buffer;
+    }
+
+    public int refCount() {
+        return this.refCount.get();
+    }
+
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = this.refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        } while (!this.refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * @return true if it was the last reference and the buffer went back to the pool
+     */
+    public boolean release() {
+        final int count = this.refCount.decrementAndGet();
+        if (count > 0) {
+            return false;
+        }
+        if (count < 0) {
+            this.refCount.incrementAndGet();
+            throw new IllegalStateException("Buffer already released");
+        }
+        final LeakTracker rootTracker = this.root.tracker;
+        if (rootTracker != null) {
+            trackers.remove(rootTracker);
+            rootTracker.clear();
+        }
+        BuffersStorage.getInstance().reuseFreeBuffer(this.root.desc);
+        return true;
+    }
+
+    /**
+     * View of length bytes from index, relative to the position of this buffer. The slice
+     * shares the references of this buffer: it does not retain it.
+     */
+    public PooledBuffer slice(int index, int length) {
+        final ByteBuffer duplicate = this.buffer.duplicate();
+        duplicate.limit(this.buffer.position() + index + length);
+        duplicate.position(this.buffer.position() + index);
+        return new PooledBuffer(this.root, duplicate.slice().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * Copies the remaining bytes into a new array, leaving the position unchanged
+     */
+    public byte[] toBytes() {
+        final byte[] res = new byte[this.buffer.remaining()];
+        this.buffer.duplicate().get(res);
+        return res;
+    }
+
+    private static void reportLeaks() {
+        LeakTracker leaked;
+        while ((leaked = (LeakTracker) collected.poll()) != null) {
+            if (trackers.remove(leaked)) {
+                final StringBuilder builder = new StringBuilder("Buffer collected without being released, allocated at:");
+                for (StackTraceElement element : leaked.allocation) {
+                    builder.append("\n\tat ").append(element);
+                }
+                Logger.e(TAG, builder.toString());
+            }
+        }
+    }
+
+    private static final class LeakTracker extends WeakReference<PooledBuffer> {
+        private final StackTraceElement[] allocation;
+
+        private LeakTracker(PooledBuffer buffer, StackTraceElement[] allocation) {
+            super(buffer, collected);
+            this.allocation = allocation;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.telegram.mtproto.transport;
+
+import org.telegram.mtproto.MTProto;
+import org.telegram.mtproto.log.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a connection trying several endpoints at once ("happy eyeballs"). Candidates
+ * are started one after the other, every delay milliseconds or as soon as the previous
+ * one fails, and the first one whose socket connects wins; the others are closed.
+ *
+ * The race doesn't block any thread: the candidates are started on the timer of the runtime
+ * and the race ends on the selector thread of the connection that decides it, or on the
+ * timer when it times out.
+ *
+ * From then on every event of the winner is forwarded to the callback, so the winner
+ * can be used as any other {@link TcpContext}.
+ *
+ * Every candidate that fails or doesn't connect in time counts a failure in the
+ * {@link org.telegram.mtproto.backoff.EndpointBackoff} of its endpoint; when no candidate
+ * connects, {@link #getRetryDelay()} tells how long to wait before the next race.
+ */
+public class TcpConnectRace implements TcpContextCallback {
+    private final String TAG;
+    private final MTProto proto;
+    private final ConnectionType[] candidates;
+    private final TcpContext[] contexts;
+    private final boolean[] failed;
+    private final TransportRate rate;
+    private final TcpContextCallback callback;
+    private final ScheduledExecutorService timer;
+    private final CompletableFuture<TcpContext> result = new CompletableFuture<>();
+    private volatile TcpContext winner;
+    private ConnectionType winnerType;
+    private int startedCount;
+    private int failedCount;
+    private boolean isFinished;
+    private long delay;
+    private ScheduledFuture<?> nextStart;
+    private ScheduledFuture<?> deadline;
+    private long retryDelay = Long.MAX_VALUE;
+
+    public TcpConnectRace(MTProto proto, ConnectionType[] candidates, TransportRate rate, TcpContextCallback callback) {
+        this.TAG = "MTProto#" + proto.getInstanceIndex() + "#ConnectRace";
+        this.proto = proto;
+        this.candidates = candidates;
+        this.contexts = new TcpContext[candidates.length];
+        this.failed = new boolean[candidates.length];
+        this.rate = rate;
+        this.callback = callback;
+        this.timer = proto.getRuntime().getTimer();
+    }
+
+    /**
+     * Starts the race and returns at once
+     *
+     * @param delay   milliseconds between the start of two candidates
+     * @param timeout maximum milliseconds to wait for a connection
+     * @return completed with the connected context, or with null if none connected
+     */
+    public CompletableFuture<TcpContext> race(long delay, long timeout) {
+        synchronized (this) {
+            this.delay = delay;
+            try {
+                this.deadline = this.timer.schedule(this::finish, timeout, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Logger.w(this.TAG, "Timer is shut down");
+                this.isFinished = true;
+                this.result.complete(null);
+                return this.result;
+            }
+            startNext();
+        }
+        return this.result;
+    }
+
+    /**
+     * Ends the race if it is still running, and closes the winner if there is one
+     */
+    public void cancel() {
+        finish();
+        final TcpContext currentWinner = this.winner;
+        if (currentWinner != null) {
+            currentWinner.close();
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return this.isFinished;
+    }
+
+    /**
+     * The connected context once the race is finished, null if none connected or still running
+     */
+    public synchronized TcpContext getResult() {
+        return this.isFinished ? this.winner : null;
+    }
+
+    public synchronized ConnectionType getWinnerType() {
+        return this.winnerType;
+    }
+
+    /**
+     * Milliseconds to wait before racing again after no candidate connected: the shortest
+     * backoff of the endpoints raced, so the next race starts as soon as one may be tried again
+     */
+    public synchronized long getRetryDelay() {
+        return this.retryDelay == Long.MAX_VALUE ? 0 : this.retryDelay;
+    }
+
+    /**
+     * Starts the next candidate and schedules the one after it. Must be called holding the lock.
+     */
+    private void startNext() {
+        if (this.isFinished || this.startedCount >= this.candidates.length) {
+            return;
+        }
+        if (this.nextStart != null) {
+            this.nextStart.cancel(false);
+            this.nextStart = null;
+        }
+        start(this.startedCount++);
+        if (this.startedCount < this.candidates.length) {
+            try {
+                this.nextStart = this.timer.schedule(this::onNextStart, this.delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Logger.w(this.TAG, "Timer is shut down");
+            }
+        }
+    }
+
+    private synchronized void onNextStart() {
+        this.nextStart = null;
+        startNext();
+    }
+
+    /**
+     * Ends the race with the winner, if there is one by now
+     */
+    private void finish() {
+        final TcpContext context;
+        synchronized (this) {
+            if (this.isFinished) {
+                return;
+            }
+            context = this.winner;
+            this.isFinished = true;
+            if (this.nextStart != null) {
+                this.nextStart.cancel(false);
+                this.nextStart = null;
+            }
+            if (this.deadline != null) {
+                this.deadline.cancel(false);
+                this.deadline = null;
+            }
+            for (int i = 0; i < this.contexts.length; i++) {
+                if (this.contexts[i] != null && this.contexts[i] != context) {
+                    if (context == null && !this.failed[i]) {
+                        onEndpointFailure(this.contexts[i]);
+                    }
+                    this.contexts[i].close();
+                }
+            }
+            if (context != null) {
+                Logger.d(this.TAG, "Winner #" + this.winnerType.getId() + " " + this.winnerType.getHost() + ":" + this.winnerType.getPort());
+            } else {
+                Logger.w(this.TAG, "No candidate connected, retry in " + getRetryDelay() + " ms");
+            }
+        }
+        this.result.complete(context);
+    }
+
+    private void start(int index) {
+        final ConnectionType type = this.candidates[index];
+        Logger.d(this.TAG, "Starting #" + type.getId() + " " + type.getHost() + ":" + type.getPort());
+        this.contexts[index] = new TcpContext(this.proto, type.getHost(), type.getPort(), this, this.proto.getRuntime().getSelectorGroup());
+        this.contexts[index].setTcpNoDelay(this.proto.isTcpNoDelay());
+        this.contexts[index].setCorkDelay(this.proto.getCorkDelay());
+        this.contexts[index].connect();
+    }
+
+    private int indexOf(TcpContext context) {
+        for (int i = 0; i < this.contexts.length; i++) {
+            if (this.contexts[i] == context) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void onEndpointFailure(TcpContext context) {
+        this.retryDelay = Math.min(this.retryDelay, context.getBackoff().onFailure());
+    }
+
+    @Override
+    public void onConnected(TcpContext context) {
+        synchronized (this) {
+            final int index = indexOf(context);
+            if (index < 0) {
+                return;
+            }
+            this.rate.onConnected(this.candidates[index].getId(), context.getConnectTime());
+            if (this.winner == null && !this.isFinished) {
+                this.winner = context;
+                this.winnerType = this.candidates[index];
+            }
+        }
+        if (context == this.winner) {
+            finish();
+        } else {
+            context.close();
+        }
+    }
+
+    @Override
+    public void onChannelBroken(TcpContext context) {
+        if (context == this.winner) {
+            this.callback.onChannelBroken(context);
+            return;
+        }
+        boolean isLost = false;
+        synchronized (this) {
+            final int index = indexOf(context);
+            if (index < 0 || this.failed[index]) {
+                return;
+            }
+            this.failed[index] = true;
+            this.failedCount++;
+            if (!context.isClosed()) {
+                this.rate.onConnectionFailure(this.candidates[index].getId());
+                onEndpointFailure(context);
+            }
+            if (this.failedCount == this.candidates.length) {
+                isLost = true;
+            } else if (this.failedCount == this.startedCount) {
+                // Every started candidate failed: don't wait for the delay to try the next one
+                startNext();
+            }
+        }
+        context.close();
+        if (isLost) {
+            finish();
+        }
+    }
+
+    @Override
+    public void onRawMessage(PooledBuffer data, TcpContext context) {
+        if (context == this.winner) {
+            this.callback.onRawMessage(data, context);
+        }
+    }
+
+    @Override
+    public void onError(int errorCode, TcpContext context) {
+        if (context == this.winner) {
+            this.callback.onError(errorCode, context);
+        }
+    }
+
+    @Override
+    public void onFastConfirm(int hash) {
+        this.callback.onFastConfirm(hash);
+    }
+
+    @Override
+    public void onWritabilityChanged(TcpContext context) {
+        if (context == this.winner) {
+            this.callback.onWritabilityChanged(context);
+        }
+    }
+}
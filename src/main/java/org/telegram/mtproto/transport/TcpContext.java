@@ -1,38 +1,38 @@
 package org.telegram.mtproto.transport;
 
 import org.telegram.mtproto.MTProto;
+import org.telegram.mtproto.backoff.EndpointBackoff;
 import org.telegram.mtproto.log.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jawnae.pyronet.PyroClient;
 import jawnae.pyronet.PyroClientListener;
 import jawnae.pyronet.PyroSelector;
+import jawnae.pyronet.PyroSelectorGroup;
 
 public class TcpContext implements PyroClientListener {
     private static volatile Integer nextChannelToken = 1;
-    private static final int MAX_PACKED_SIZE = 1024 * 1024 * 1024;//1 MB
     private static final AtomicInteger contextLastId = new AtomicInteger(1);
     private static final int CONNECTION_TIMEOUT = 30000;
+    private static final int DEFAULT_LOW_WATER_MARK = 64 * 1024;
+    private static final int DEFAULT_HIGH_WATER_MARK = 256 * 1024;
 
     private static int generateChannelToken() {
         return nextChannelToken++;
     }
 
     private ConnectionState connectionState;
-    private int failedConnectionCount;
-    private int willRetryConnectCount = 5;
     private boolean hasSomeDataSinceLastConnect = false;
+    private long connectStart;
+    private volatile long connectTime;
     private int channelToken = 0;
-    private final Object timerSync = new Object();
-    private Timer reconnectTimer;
+    private final EndpointBackoff backoff;
     private boolean isFirstPackage = true;
 
     private final String TAG;
@@ -41,205 +41,161 @@ public class TcpContext implements PyroClientListener {
     private final int contextId;
     private int sentPackets;
 
-    private PyroSelector selector;
-    private PyroClient client;
-    private ByteBufferDesc restOfTheData;
-    private int lastPacketLength;
+    private final PyroSelectorGroup selectorGroup;
+    private final PyroSelector selector;
+    private volatile PyroClient client;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final FrameDecoder frameDecoder;
+    private volatile boolean tcpNoDelay = true;
+    private volatile int corkDelay = 0;
+    private final AtomicLong scheduledBytes = new AtomicLong(0);
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private volatile int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
 
     private TcpContextCallback callback;
+    private final MTProto proto;
 
     public TcpContext(MTProto proto, String ip, int port, TcpContextCallback callback) {
+        this(proto, ip, port, callback, PyroSelectorGroup.getInstance());
+    }
+
+    public TcpContext(MTProto proto, String ip, int port, TcpContextCallback callback, PyroSelectorGroup selectorGroup) {
         this.contextId = contextLastId.incrementAndGet();
+        this.proto = proto;
         this.connectionState = ConnectionState.TcpConnectionStageIdle;
         this.TAG = "MTProto#" + proto.getInstanceIndex() + "#Transport" + this.contextId;
         this.ip = ip;
         this.port = port;
+        this.backoff = EndpointBackoff.forEndpoint(ip, port);
         this.callback = callback;
-        this.selector = new PyroSelector();
-        this.selector.spawnNetworkThread("Selector Thread");
+        this.frameDecoder = new FrameDecoder(new FrameListener());
+        this.selectorGroup = selectorGroup;
+        this.selector = selectorGroup.acquire();
         BuffersStorage.getInstance();
     }
 
-    private void readData(ByteBuffer buffer) throws Exception {
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.rewind();
-
-        ByteBuffer parseLaterBuffer = null;
-        if (restOfTheData != null) {
-            if (lastPacketLength == 0) {
-                if ((restOfTheData.capacity() - restOfTheData.position()) >= buffer.limit()) {
-                    restOfTheData.limit(restOfTheData.position() + buffer.limit());
-                    restOfTheData.put(buffer);
-                    buffer = restOfTheData.buffer;
-                } else {
-                    final ByteBufferDesc newBuffer = BuffersStorage.getInstance().getFreeBuffer(restOfTheData.limit() + buffer.limit());
-                    restOfTheData.rewind();
-                    newBuffer.put(restOfTheData.buffer);
-                    newBuffer.put(buffer);
-                    buffer = newBuffer.buffer;
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = newBuffer;
-                }
-            } else {
-                final int len;
-                if ((lastPacketLength - restOfTheData.position()) <= buffer.limit()) {
-                    len = lastPacketLength - restOfTheData.position();
-                } else {
-                    len = buffer.limit();
-                }
-                final int oldLimit = buffer.limit();
-                buffer.limit(len);
-                restOfTheData.put(buffer);
-                buffer.limit(oldLimit);
-                if (restOfTheData.position() == lastPacketLength) {
-                    if (buffer.hasRemaining()) {
-                        parseLaterBuffer = buffer;
-                    } else {
-                        parseLaterBuffer = null;
-                    }
-                    buffer = restOfTheData.buffer;
-                } else {
-                    return;
-                }
-            }
-        }
+    public int getContextId() {
+        return this.contextId;
+    }
 
-        buffer.rewind();
+    /**
+     * Reconnect delays of the endpoint of this context, shared with the other contexts to it
+     */
+    public EndpointBackoff getBackoff() {
+        return this.backoff;
+    }
 
-        while (buffer.hasRemaining()) {
-            if (!hasSomeDataSinceLastConnect) {
-                client.setTimeout(CONNECTION_TIMEOUT * 30);
-            }
-            hasSomeDataSinceLastConnect = true;
+    /**
+     * Milliseconds it took to establish the last TCP connection
+     */
+    public long getConnectTime() {
+        return this.connectTime;
+    }
 
-            final int currentPacketLength;
-            buffer.mark();
-            final byte fByte = buffer.get();
-
-            if ((fByte & (1 << 7)) != 0) {
-                buffer.reset();
-                if (buffer.remaining() < 4) {
-                    final ByteBufferDesc reuseLater = restOfTheData;
-                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
-                    restOfTheData.put(buffer);
-                    restOfTheData.limit(restOfTheData.position());
-                    lastPacketLength = 0;
-                    if (reuseLater != null) {
-                        BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                    }
-                    break;
+    /**
+     * Sets TCP_NODELAY for the current and next connections of this context, enabled by default
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        if (this.client != null) {
+            selector.scheduleTask(() -> {
+                final PyroClient currentClient = client;
+                if (currentClient == null || currentClient.isDisconnected()) {
+                    return;
                 }
-                buffer.order(ByteOrder.BIG_ENDIAN);
-                final int ackId = buffer.getInt() & (~(1 << 31));
-                TcpContext.this.callback.onFastConfirm(ackId);
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-                continue;
-            }
-
-            if (fByte == 0x7f) {
-                buffer.reset();
-                if (buffer.remaining() < 4) {
-                    if ((restOfTheData == null) || ((restOfTheData != null) && (restOfTheData.position() != 0))) {
-                        final ByteBufferDesc reuseLater = restOfTheData;
-                        restOfTheData = BuffersStorage.getInstance().getFreeBuffer(16384);
-                        restOfTheData.put(buffer);
-                        restOfTheData.limit(restOfTheData.position());
-                        lastPacketLength = 0;
-                        if (reuseLater != null) {
-                            BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                        }
-                    } else {
-                        restOfTheData.position(restOfTheData.limit());
-                    }
-                    break;
+                try {
+                    currentClient.setTcpNoDelay(this.tcpNoDelay);
+                } catch (IOException e) {
+                    Logger.e(TcpContext.this.TAG, e);
                 }
-                currentPacketLength = (buffer.getInt() >> 8) * 4;
-            } else {
-                currentPacketLength = ((int) fByte) * 4;
-            }
-
-            if (((currentPacketLength % 4) != 0) || (currentPacketLength > MAX_PACKED_SIZE)) {
-                Logger.e(TcpContext.this.TAG, "Invalid packet length");
-                reconnect();
-                return;
-            }
-
-            if (currentPacketLength < buffer.remaining()) {
-                Logger.d(TcpContext.this.TAG, TcpContext.this + " Received message len " + currentPacketLength + " but packet larger " + buffer.remaining());
-            } else if (currentPacketLength == buffer.remaining()) {
-                Logger.d(TcpContext.this.TAG, TcpContext.this + " Received message len " + currentPacketLength + " equal to packet size");
-            } else {
-                Logger.d(TcpContext.this.TAG, TcpContext.this + " Received packet size less(" + buffer.remaining() + ") then message size(" + currentPacketLength + ")");
+            });
+        }
+    }
 
-                ByteBufferDesc reuseLater = null;
-                final int len = currentPacketLength + ((fByte == 0x7f) ? 4 : 1);
-                if ((restOfTheData != null) && (restOfTheData.capacity() < len)) {
-                    reuseLater = restOfTheData;
-                    restOfTheData = null;
-                }
-                if (restOfTheData == null) {
-                    buffer.reset();
-                    restOfTheData = BuffersStorage.getInstance().getFreeBuffer(len);
-                    restOfTheData.put(buffer);
-                } else {
-                    restOfTheData.position(restOfTheData.limit());
-                    restOfTheData.limit(len);
+    /**
+     * Sets how many milliseconds outgoing packets are held to be coalesced
+     * with the following ones for the current and next connections of this context,
+     * zero (default) to send them as soon as the socket is writable
+     */
+    public void setCorkDelay(int corkDelay) {
+        this.corkDelay = corkDelay;
+        if (this.client != null) {
+            selector.scheduleTask(() -> {
+                final PyroClient currentClient = client;
+                if (currentClient != null) {
+                    currentClient.setCorkDelay(this.corkDelay);
                 }
-                lastPacketLength = len;
-                if (reuseLater != null) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(reuseLater);
-                }
-                return;
-            }
+            });
+        }
+    }
 
-            final ByteBufferDesc toProceed = BuffersStorage.getInstance().getFreeBuffer(currentPacketLength);
-            final int old = buffer.limit();
-            buffer.limit(buffer.position() + currentPacketLength);
-            toProceed.put(buffer);
-            buffer.limit(old);
-            toProceed.rewind();
+    /**
+     * Sets the limits of outgoing bytes of this context: it stops being writable when
+     * more than highWaterMark bytes are waiting to be sent and becomes writable again
+     * when they drop below lowWaterMark
+     */
+    public void setWriteBufferWaterMarks(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("Invalid water marks " + lowWaterMark + "/" + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        updateWritability();
+    }
 
+    /**
+     * Bytes posted to this context that have not been written to the socket yet
+     */
+    public long getPendingBytes() {
+        final PyroClient currentClient = this.client;
+        return this.scheduledBytes.get() + (currentClient != null ? currentClient.getOutboundSize() : 0);
+    }
 
-            if (toProceed.buffer.remaining() == 4) {
-                final int error = toProceed.readInt32(false);
-                TcpContext.this.onError(error);
-            } else {
-                final byte[] pkg = new byte[toProceed.buffer.remaining()];
-                toProceed.readRaw(pkg, false);
-                onMessage(pkg, currentPacketLength);
-                BuffersStorage.getInstance().reuseFreeBuffer(toProceed);
-            }
+    /**
+     * Whether more messages can be posted without piling up in memory. Senders should
+     * hold back while it returns false and wait for
+     * {@link TcpContextCallback#onWritabilityChanged(TcpContext)}.
+     */
+    public boolean isWritable() {
+        return this.writable.get();
+    }
 
-            if (restOfTheData != null) {
-                if (((lastPacketLength != 0) && (restOfTheData.position() == lastPacketLength)) || ((lastPacketLength == 0) && !restOfTheData.hasRemaining())) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = null;
-                } else {
-                    restOfTheData.compact();
-                    restOfTheData.limit(restOfTheData.position());
-                    restOfTheData.position(0);
+    /**
+     * Called from the posting threads and the selector thread. The pending bytes are read again
+     * after every transition, so a transition based on a stale count is undone at once instead
+     * of leaving the context not writable with nothing pending.
+     */
+    private void updateWritability() {
+        while (true) {
+            final long pending = getPendingBytes();
+            final boolean isWritable = this.writable.get();
+            if (isWritable && pending > this.highWaterMark) {
+                if (this.writable.compareAndSet(true, false)) {
+                    Logger.d(TcpContext.this.TAG, "Not writable, pending " + pending);
+                    this.callback.onWritabilityChanged(this);
                 }
-            }
-
-            if (parseLaterBuffer != null) {
-                buffer = parseLaterBuffer;
-                parseLaterBuffer = null;
+            } else if (!isWritable && (pending < this.lowWaterMark || pending == 0)) {
+                if (this.writable.compareAndSet(false, true)) {
+                    Logger.d(TcpContext.this.TAG, "Writable, pending " + pending);
+                    this.callback.onWritabilityChanged(this);
+                }
+            } else {
+                return;
             }
         }
     }
 
-    public int getContextId() {
-        return this.contextId;
-    }
-
     public void postMessage(byte[] data, boolean useFastConfirm) {
         final ByteBufferDesc buffer = BuffersStorage.getInstance().getFreeBuffer(data.length);
         buffer.writeRaw(data);
+        this.scheduledBytes.addAndGet(data.length);
+        updateWritability();
         sendData(buffer, true, useFastConfirm);
     }
 
-    private synchronized void onMessage(byte[] data, int len) {
-        this.callback.onRawMessage(data, 0, len, this);
+    private synchronized void onMessage(PooledBuffer data) {
+        this.callback.onRawMessage(data, this);
     }
 
     private synchronized void onError(int errorCode) {
@@ -251,6 +207,14 @@ public class TcpContext implements PyroClientListener {
             return;
         }
         selector.scheduleTask(() -> {
+            final int payloadLength = buff.limit();
+            if (closed.get()) {
+                scheduledBytes.addAndGet(-payloadLength);
+                if (canReuse) {
+                    BuffersStorage.getInstance().reuseFreeBuffer(buff);
+                }
+                return;
+            }
             if ((connectionState == ConnectionState.TcpConnectionStageIdle) ||
                     (connectionState == ConnectionState.TcpConnectionStageReconnecting) ||
                     (connectionState == ConnectionState.TcpConnectionStageSuspended) || (client == null)) {
@@ -258,10 +222,12 @@ public class TcpContext implements PyroClientListener {
             }
 
             if ((client == null) || client.isDisconnected()) {
+                scheduledBytes.addAndGet(-payloadLength);
                 if (canReuse) {
                     BuffersStorage.getInstance().reuseFreeBuffer(buff);
                 }
                 Logger.e(TcpContext.this.TAG, TcpContext.this + " disconnected, don't send data");
+                updateWritability();
                 return;
             }
 
@@ -303,7 +269,10 @@ public class TcpContext implements PyroClientListener {
             buffer.rewind();
 
             TcpContext.this.sentPackets++;
+            proto.getMetrics().onFrameSent(payloadLength);
             client.write(buffer);
+            scheduledBytes.addAndGet(-payloadLength);
+            updateWritability();
         });
     }
 
@@ -313,7 +282,9 @@ public class TcpContext implements PyroClientListener {
     public void connectedClient(PyroClient client) {
         connectionState = ConnectionState.TcpConnectionStageConnected;
         channelToken = generateChannelToken();
-        Logger.d(TcpContext.this.TAG, "Client connected: " + channelToken);
+        connectTime = System.nanoTime() / 1000000 - connectStart;
+        Logger.d(TcpContext.this.TAG, "Client connected: " + channelToken + " in " + connectTime + " ms");
+        callback.onConnected(TcpContext.this);
     }
 
     @Override
@@ -332,10 +303,15 @@ public class TcpContext implements PyroClientListener {
     }
 
     @Override
-    public void receivedData(PyroClient client, ByteBuffer data) {
+    public void receivedData(PyroClient client, PooledBuffer data) {
         try {
-            failedConnectionCount = 0;
-            readData(data);
+            if (!hasSomeDataSinceLastConnect) {
+                backoff.onSuccess();
+                client.setTimeout(CONNECTION_TIMEOUT * 30);
+            }
+            hasSomeDataSinceLastConnect = true;
+            proto.getMetrics().onBytesReceived(data.buffer().remaining());
+            frameDecoder.decode(data);
         } catch (Exception e) {
             Logger.e(TcpContext.this.TAG, e);
             reconnect();
@@ -344,105 +320,51 @@ public class TcpContext implements PyroClientListener {
 
     @Override
     public void sentData(PyroClient client, int bytes) {
-        Logger.d(TcpContext.this.TAG, "Received data " + bytes);
+        Logger.d(TcpContext.this.TAG, "Sent data " + bytes);
+        proto.getMetrics().onBytesSent(bytes);
+        updateWritability();
     }
 
     //endregion PyroClient Overrides
 
     private synchronized void handleDisconnect(PyroClient client, boolean timeout) {
-        synchronized (timerSync) {
-            if (reconnectTimer != null) {
-                reconnectTimer.cancel();
-                reconnectTimer = null;
-            }
-        }
-
         isFirstPackage = true;
-        if (restOfTheData != null) {
-            BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-            restOfTheData = null;
-        }
+        frameDecoder.reset();
         channelToken = 0;
-        lastPacketLength = 0;
         if ((connectionState != ConnectionState.TcpConnectionStageSuspended) && (connectionState != ConnectionState.TcpConnectionStageIdle)) {
             connectionState = ConnectionState.TcpConnectionStageIdle;
         }
 
         callback.onChannelBroken(TcpContext.this);
-
-        if (connectionState == ConnectionState.TcpConnectionStageIdle) {
-            failedConnectionCount++;
-            if (failedConnectionCount == 1) {
-                if (hasSomeDataSinceLastConnect) {
-                    willRetryConnectCount = 5;
-                } else {
-                    willRetryConnectCount = 1;
-                }
-            }
-            Logger.d(TcpContext.this.TAG, "Reconnect " + ip + ":" + port + " " + TcpContext.this);
-            try {
-                synchronized (timerSync) {
-                    reconnectTimer = new Timer();
-                    reconnectTimer.schedule(new TimerTask() {
-                        @Override
-                        public void run() {
-                            selector.scheduleTask(() -> {
-                                try {
-                                    synchronized (timerSync) {
-                                        if (reconnectTimer != null) {
-                                            reconnectTimer.cancel();
-                                            reconnectTimer = null;
-                                        }
-                                    }
-                                } catch (Exception e2) {
-                                    Logger.e(TcpContext.this.TAG, e2);
-                                }
-                                connect();
-                            });
-                        }
-                    }, (failedConnectionCount > 3) ? 500 : 300, (failedConnectionCount > 3) ? 500 : 300);
-                }
-            } catch (Exception e3) {
-                Logger.e(TcpContext.this.TAG, e3);
-            }
-        }
+        updateWritability();
     }
 
     public void connect() {
         selector.scheduleTask(() -> {
+            if (closed.get()) {
+                return;
+            }
             if (((connectionState == ConnectionState.TcpConnectionStageConnected) || (connectionState == ConnectionState.TcpConnectionStageConnecting)) && (client != null)) {
                 return;
             }
 
             connectionState = ConnectionState.TcpConnectionStageConnecting;
             try {
-                try {
-                    synchronized (timerSync) {
-                        if (reconnectTimer != null) {
-                            reconnectTimer.cancel();
-                            reconnectTimer = null;
-                        }
-                    }
-                } catch (Exception e2) {
-                    Logger.e(TcpContext.this.TAG, e2);
-                }
-
                 Logger.d(TcpContext.this.TAG, String.format(TcpContext.this + " Connecting (%s:%d)", ip, port));
                 isFirstPackage = true;
-                if (restOfTheData != null) {
-                    BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-                    restOfTheData = null;
-                }
-                lastPacketLength = 0;
+                frameDecoder.reset();
                 hasSomeDataSinceLastConnect = false;
                 if (client != null) {
                     client.removeListener(TcpContext.this);
                     client.dropConnection();
                     client = null;
                 }
+                connectStart = System.nanoTime() / 1000000;
                 client = selector.connect(new InetSocketAddress(ip, port));
                 client.addListener(TcpContext.this);
                 client.setTimeout(CONNECTION_TIMEOUT);
+                client.setTcpNoDelay(tcpNoDelay);
+                client.setCorkDelay(corkDelay);
                 selector.wakeup();
             } catch (Exception e) {
                 handleConnectionError(e);
@@ -451,60 +373,11 @@ public class TcpContext implements PyroClientListener {
     }
 
     private void handleConnectionError(Exception e) {
-        try {
-            synchronized (timerSync) {
-                if (reconnectTimer != null) {
-                    reconnectTimer.cancel();
-                    reconnectTimer = null;
-                }
-            }
-        } catch (Exception e2) {
-            Logger.e(TcpContext.this.TAG, e2);
-        }
         connectionState = ConnectionState.TcpConnectionStageReconnecting;
-        callback.onChannelBroken(TcpContext.this);
-        failedConnectionCount++;
-        if (failedConnectionCount == 1) {
-            if (hasSomeDataSinceLastConnect) {
-                willRetryConnectCount = 3;
-            } else {
-                willRetryConnectCount = 1;
-            }
-        }
-        if (failedConnectionCount > willRetryConnectCount) {
-            failedConnectionCount = 0;
-        }
-
         if (e != null) {
             Logger.e(TcpContext.this.TAG, e);
         }
-        Logger.d(TcpContext.this.TAG, "Reconnect " + ip + ":" + port + " " + TcpContext.this);
-        try {
-            reconnectTimer = new Timer();
-            reconnectTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    selector.scheduleTask(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                synchronized (timerSync) {
-                                    if (reconnectTimer != null) {
-                                        reconnectTimer.cancel();
-                                        reconnectTimer = null;
-                                    }
-                                }
-                            } catch (Exception e2) {
-                                Logger.e(TcpContext.this.TAG, e2);
-                            }
-                            connect();
-                        }
-                    });
-                }
-            }, (failedConnectionCount >= 3) ? 500 : 300, (failedConnectionCount >= 3) ? 500 : 300);
-        } catch (Exception e3) {
-            Logger.e(TcpContext.this.TAG, e3);
-        }
+        callback.onChannelBroken(TcpContext.this);
     }
 
     private void reconnect() {
@@ -513,6 +386,24 @@ public class TcpContext implements PyroClientListener {
         connect();
     }
 
+    /**
+     * Drops the connection for good and gives the selector back to the group.
+     * A closed context never reconnects.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        selector.scheduleTask(() -> {
+            suspendConnectionInternal();
+            selectorGroup.release(selector);
+        });
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
     public void suspendConnection(boolean task) {
         if (task) {
             selector.scheduleTask(new Runnable() {
@@ -527,12 +418,6 @@ public class TcpContext implements PyroClientListener {
     }
 
     private void suspendConnectionInternal() {
-        synchronized (timerSync) {
-            if (reconnectTimer != null) {
-                reconnectTimer.cancel();
-                reconnectTimer = null;
-            }
-        }
         if ((connectionState == ConnectionState.TcpConnectionStageIdle) || (connectionState == ConnectionState.TcpConnectionStageSuspended)) {
             return;
         }
@@ -545,11 +430,26 @@ public class TcpContext implements PyroClientListener {
         }
         callback.onChannelBroken(TcpContext.this);
         isFirstPackage = true;
-        if (restOfTheData != null) {
-            BuffersStorage.getInstance().reuseFreeBuffer(restOfTheData);
-            restOfTheData = null;
-        }
-        lastPacketLength = 0;
+        frameDecoder.reset();
         channelToken = 0;
+        updateWritability();
+    }
+
+    private class FrameListener implements FrameDecoder.FrameListener {
+        @Override
+        public void onFrame(PooledBuffer frame) {
+            TcpContext.this.proto.getMetrics().onFrameReceived(frame.buffer().remaining());
+            onMessage(frame);
+        }
+
+        @Override
+        public void onFastConfirm(int hash) {
+            TcpContext.this.callback.onFastConfirm(hash);
+        }
+
+        @Override
+        public void onTransportError(int errorCode) {
+            onError(errorCode);
+        }
     }
-}
\ No newline at end of file
+}
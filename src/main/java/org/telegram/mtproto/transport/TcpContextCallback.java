@@ -4,11 +4,26 @@ package org.telegram.mtproto.transport;
  * Created: 13.08.13 15:35
  */
 public interface TcpContextCallback {
-    void onRawMessage(byte[] data, int offset, int len, TcpContext context);
+    /**
+     * Called with a complete transport frame, which is only valid until this method returns
+     * unless it is retained. The receiver may modify its contents, e.g. to decrypt it in place.
+     */
+    void onRawMessage(PooledBuffer data, TcpContext context);
 
     void onError(int errorCode, TcpContext context);
 
     void onChannelBroken(TcpContext context);
 
+    /**
+     * Called when the TCP connection is established, see {@link TcpContext#getConnectTime()}
+     */
+    void onConnected(TcpContext context);
+
     void onFastConfirm(int hash);
+
+    /**
+     * Called when the outgoing bytes of the context cross the high water mark, or drop
+     * back below the low one, see {@link TcpContext#isWritable()}
+     */
+    void onWritabilityChanged(TcpContext context);
 }
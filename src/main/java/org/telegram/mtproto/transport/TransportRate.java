@@ -3,98 +3,205 @@ package org.telegram.mtproto.transport;
 import org.telegram.mtproto.log.Logger;
 import org.telegram.mtproto.state.ConnectionInfo;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Random;
 
 /**
  * Created by Ruben Bermudez on 26.11.13.
+ *
+ * Picks the endpoint to connect to. Every endpoint keeps an exponentially weighted
+ * average of its TCP connect time and of its ping round trip time; the one with the
+ * lowest expected latency, weighted by its priority, is preferred, but from time to time
+ * another one is tried so their statistics don't go stale. Endpoints failing several
+ * times in a row are left out (circuit open) for a while, then a single attempt is
+ * allowed (half open) to decide whether to bring them back.
  */
 public class TransportRate {
 
     private static final String TAG = "TransportRate";
 
+    private static final float EWMA_ALPHA = 0.3f;
+    private static final float EXPLORATION = 0.1f;
+    private static final int UNKNOWN_CONNECT_TIME = 1000;
+    private static final int UNKNOWN_RTT = 1000;
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_OPEN_TIME = 5000;
+    private static final long MAX_OPEN_TIME = 5 * 60 * 1000;
+    private static final long TRIAL_TIMEOUT = 30000;
+
     private HashMap<Integer, Transport> transports = new HashMap<Integer, Transport>();
 
     private Random rnd = new Random();
 
     public TransportRate(ConnectionInfo[] connectionInfos) {
         int min = Integer.MAX_VALUE;
-        int max = Integer.MIN_VALUE;
         for (int i = 0; i < connectionInfos.length; i++) {
             min = Math.min(connectionInfos[i].getPriority(), min);
-            max = Math.max(connectionInfos[i].getPriority(), max);
         }
         for (int i = 0; i < connectionInfos.length; i++) {
             this.transports.put(connectionInfos[i].getId(),
                     new Transport(new ConnectionType(connectionInfos[i].getId(), connectionInfos[i].getAddress(), connectionInfos[i].getPort(), ConnectionType.TYPE_TCP),
                             connectionInfos[i].getPriority() - min + 1));
         }
-        normalize();
     }
 
     public synchronized ConnectionType tryConnection() {
-        float value = this.rnd.nextFloat();
-        Transport[] currentTransports = this.transports.values().toArray(new Transport[0]);
-        Arrays.sort(currentTransports, new Comparator<Transport>() {
+        return tryConnections(1)[0];
+    }
+
+    /**
+     * Candidates for a new connection, best first: the first one is chosen like
+     * {@link #tryConnection()}, the rest are the following available endpoints by cost
+     *
+     * @param count maximum number of candidates
+     */
+    public synchronized ConnectionType[] tryConnections(int count) {
+        final long now = getTime();
+        final ArrayList<Transport> available = new ArrayList<>();
+        for (Transport transport : this.transports.values()) {
+            if (transport.isAvailable(now)) {
+                available.add(transport);
+            }
+        }
+        Collections.sort(available, new Comparator<Transport>() {
             @Override
             public int compare(Transport transport, Transport transport2) {
-                return -Float.compare(transport.getRate(), transport2.getRate());
+                return Float.compare(transport.getCost(), transport2.getCost());
             }
         });
-        ConnectionType type = currentTransports[0].getConnectionType();
-        Logger.d(TAG, "tryConnection #" + type.getId());
-        return type;
+
+        if (available.isEmpty()) {
+            // Every circuit is open: retry the one that reopens first
+            Transport first = null;
+            for (Transport transport : this.transports.values()) {
+                if (first == null || transport.openUntil < first.openUntil) {
+                    first = transport;
+                }
+            }
+            available.add(first);
+        } else if (available.size() > 1 && this.rnd.nextFloat() < EXPLORATION) {
+            final Transport explored = available.remove(1 + this.rnd.nextInt(available.size() - 1));
+            available.add(0, explored);
+            Logger.d(TAG, "exploring #" + explored.connectionType.getId());
+        }
+
+        final int size = Math.min(count, available.size());
+        final ConnectionType[] types = new ConnectionType[size];
+        for (int i = 0; i < size; i++) {
+            final Transport transport = available.get(i);
+            if (transport.openUntil != 0 && transport.openUntil <= now) {
+                transport.isTrialInProgress = true;
+                transport.trialStart = now;
+            }
+            types[i] = transport.getConnectionType();
+            Logger.d(TAG, "tryConnection #" + types[i].getId() + " cost: " + transport.getCost());
+        }
+        return types;
     }
 
     public synchronized void onConnectionFailure(int id) {
         Logger.d(TAG, "onConnectionFailure #" + id);
-        this.transports.get(id).rate *= 0.5;
-        normalize();
+        Transport transport = this.transports.get(id);
+        if (transport == null) {
+            return;
+        }
+        transport.failureCount++;
+        final boolean wasTrial = transport.isTrialInProgress;
+        transport.isTrialInProgress = false;
+        if (wasTrial || transport.failureCount >= FAILURE_THRESHOLD) {
+            final long openTime = Math.min(MIN_OPEN_TIME << Math.min(transport.openCount, 16), MAX_OPEN_TIME);
+            transport.openCount++;
+            transport.openUntil = getTime() + openTime;
+            Logger.w(TAG, "Circuit open #" + id + " for " + openTime + " ms");
+        }
     }
 
     public synchronized void onConnectionSuccess(int id) {
         Logger.d(TAG, "onConnectionSuccess #" + id);
-        this.transports.get(id).rate *= 1.0;
-        normalize();
+        Transport transport = this.transports.get(id);
+        if (transport == null) {
+            return;
+        }
+        transport.failureCount = 0;
+        transport.openCount = 0;
+        transport.openUntil = 0;
+        transport.isTrialInProgress = false;
     }
 
-    private synchronized void normalize() {
-        float sum = 0;
-        for (Integer id : this.transports.keySet()) {
-            sum += this.transports.get(id).rate;
+    /**
+     * Records the time it took to establish a TCP connection to the endpoint
+     */
+    public synchronized void onConnected(int id, long connectTime) {
+        Transport transport = this.transports.get(id);
+        if (transport == null) {
+            return;
         }
-        for (Integer id : this.transports.keySet()) {
-            Transport transport = this.transports.get(id);
-            transport.rate /= sum;
-            Logger.d(TAG, "Transport: #" + transport.connectionType.getId() + " " + transport.connectionType.getHost() + ":" + transport.getConnectionType().getPort() + " #" + transport.getRate());
+        transport.connectTime = ewma(transport.connectTime, connectTime);
+        Logger.d(TAG, "onConnected #" + id + " in " + connectTime + " ms, average " + transport.connectTime);
+    }
+
+    /**
+     * Records a ping round trip time measured through the endpoint
+     */
+    public synchronized void onRtt(int id, long rtt) {
+        Transport transport = this.transports.get(id);
+        if (transport == null) {
+            return;
         }
+        transport.rtt = ewma(transport.rtt, rtt);
+        Logger.d(TAG, "onRtt #" + id + ": " + rtt + " ms, average " + transport.rtt);
     }
 
-    private class Transport {
-        private ConnectionType connectionType;
-        private float rate;
+    private static float ewma(float average, long sample) {
+        if (average < 0) {
+            return sample;
+        }
+        return average + EWMA_ALPHA * (sample - average);
+    }
 
-        private Transport(ConnectionType connectionType, float rate) {
+    private static long getTime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private class Transport {
+        private final ConnectionType connectionType;
+        private final int priority;
+        private float connectTime = -1;
+        private float rtt = -1;
+        private int failureCount;
+        private int openCount;
+        private long openUntil;
+        private boolean isTrialInProgress;
+        private long trialStart;
+
+        private Transport(ConnectionType connectionType, int priority) {
             this.connectionType = connectionType;
-            this.rate = rate;
+            this.priority = priority;
         }
 
         public ConnectionType getConnectionType() {
             return this.connectionType;
         }
 
-        public void setConnectionType(ConnectionType connectionType) {
-            this.connectionType = connectionType;
-        }
-
-        public float getRate() {
-            return this.rate;
+        /**
+         * Expected latency of the endpoint, lower is better
+         */
+        public float getCost() {
+            float cost = (this.connectTime < 0 ? UNKNOWN_CONNECT_TIME : this.connectTime) + (this.rtt < 0 ? UNKNOWN_RTT : this.rtt);
+            return cost * (1 + this.failureCount) / this.priority;
         }
 
-        public void setRate(float rate) {
-            this.rate = rate;
+        /**
+         * Whether the circuit is closed, or half open with no attempt running
+         */
+        public boolean isAvailable(long now) {
+            if (this.openUntil == 0) {
+                return true;
+            }
+            return this.openUntil <= now && (!this.isTrialInProgress || now - this.trialStart > TRIAL_TIMEOUT);
         }
     }
 }
@@ -0,0 +1,122 @@
+package org.telegram.mtproto.util;
+
+import org.telegram.mtproto.log.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads of the engine and the kernel: schedullers, response processors, senders,
+ * connection and file threads, update handlers and callback executors.
+ *
+ * They are platform threads unless {@link #useVirtualThreads()} is called, which switches every
+ * thread created afterwards to a virtual thread when the running JVM supports them (Java 21+).
+ * A custom {@link ThreadFactory} can be installed instead. The mode must be chosen before
+ * creating the api, threads already running are not moved.
+ */
+public final class EngineThreads {
+    private static final String TAG = "EngineThreads";
+
+    private static final ThreadFactory PLATFORM_FACTORY = Thread::new;
+
+    private static volatile ThreadFactory threadFactory = PLATFORM_FACTORY;
+    private static volatile boolean isVirtual;
+
+    private EngineThreads() {
+    }
+
+    /**
+     * Runs the threads created from now on as virtual threads
+     *
+     * @return false if the JVM doesn't support virtual threads, then platform threads are kept
+     */
+    public static boolean useVirtualThreads() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            threadFactory = (ThreadFactory) factory.invoke(builder);
+            isVirtual = true;
+            return true;
+        } catch (ReflectiveOperationException e) {
+            Logger.w(TAG, "Virtual threads are not supported, using platform threads");
+            return false;
+        }
+    }
+
+    /**
+     * Runs the threads created from now on as platform threads, the default
+     */
+    public static void usePlatformThreads() {
+        threadFactory = PLATFORM_FACTORY;
+        isVirtual = false;
+    }
+
+    /**
+     * Creates the threads from now on with a custom factory
+     *
+     * @param factory   factory of the threads
+     * @param isVirtual true if it creates virtual threads, so executors start a thread per task
+     */
+    public static void setThreadFactory(ThreadFactory factory, boolean isVirtual) {
+        threadFactory = factory;
+        EngineThreads.isVirtual = isVirtual;
+    }
+
+    public static boolean isVirtual() {
+        return isVirtual;
+    }
+
+    /**
+     * Creates a thread, not started
+     *
+     * @param runnable code of the thread
+     * @param name     name of the thread
+     * @param daemon   true for a daemon thread; virtual threads always are
+     */
+    public static Thread newThread(Runnable runnable, String name, boolean daemon) {
+        final Thread thread = threadFactory.newThread(runnable);
+        thread.setName(name);
+        if (daemon) {
+            thread.setDaemon(true);
+        }
+        return thread;
+    }
+
+    /**
+     * Creates a thread, not started. Platform threads inherit the daemon status of the caller.
+     *
+     * @param runnable code of the thread
+     * @param name     name of the thread
+     */
+    public static Thread newThread(Runnable runnable, String name) {
+        return newThread(runnable, name, false);
+    }
+
+    /**
+     * Creates an executor for blocking work
+     *
+     * @param name            prefix of the names of its threads
+     * @param platformThreads size of the pool of platform threads, or 0 for an unbounded cached
+     *                        pool. Ignored with virtual threads, which are started per task
+     * @param daemon          true for daemon platform threads
+     */
+    public static ExecutorService newExecutor(String name, int platformThreads, boolean daemon) {
+        final AtomicInteger threadIndex = new AtomicInteger(0);
+        final ThreadFactory factory = runnable -> newThread(runnable, name + "#" + threadIndex.incrementAndGet(), daemon);
+        if (isVirtual) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(factory);
+            }
+        }
+        if (platformThreads > 0) {
+            return Executors.newFixedThreadPool(platformThreads, factory);
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+}
@@ -0,0 +1,160 @@
+package org.telegram.mtproto.util;
+
+import org.telegram.mtproto.log.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loop of a component run as a task of a shared executor instead of a thread of its own.
+ *
+ * The task never runs concurrently with itself. {@link #signal()} requests a run: if the task is
+ * already running it runs once more when it finishes, so no signal is lost, and many signals
+ * before it starts end in a single run. {@link #signalAfter(long)} requests a run on the timer;
+ * only the earliest pending wake-up is kept.
+ *
+ * @author Ruben Bermudez
+ */
+public class SerialTask implements Runnable {
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_SIGNALED = 3;
+
+    /**
+     * Body of the task
+     */
+    public interface Step {
+        /**
+         * Does the pending work. It must not block waiting for other tasks.
+         *
+         * @return true to be run again at once, yielding the executor to other tasks first
+         */
+        boolean run();
+    }
+
+    private final String name;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final Step step;
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private ScheduledFuture<?> wakeUp;
+    private long wakeUpTime;
+    private volatile boolean isClosed;
+
+    /**
+     * @param name     name of the task for the logs
+     * @param executor executor running the task
+     * @param timer    timer of the delayed runs
+     * @param step     body of the task
+     */
+    public SerialTask(String name, Executor executor, ScheduledExecutorService timer, Step step) {
+        this.name = name;
+        this.executor = executor;
+        this.timer = timer;
+        this.step = step;
+    }
+
+    /**
+     * Requests a run as soon as possible
+     */
+    public void signal() {
+        while (!this.isClosed) {
+            final int current = this.state.get();
+            if (current == IDLE) {
+                if (this.state.compareAndSet(IDLE, SCHEDULED)) {
+                    submit();
+                    return;
+                }
+            } else if (current == RUNNING) {
+                if (this.state.compareAndSet(RUNNING, RUNNING_SIGNALED)) {
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Requests a run after a delay, unless an earlier one is already pending
+     *
+     * @param delay milliseconds from now
+     */
+    public void signalAfter(long delay) {
+        if (delay <= 0) {
+            signal();
+            return;
+        }
+        final long time = System.nanoTime() / 1000000L + delay;
+        synchronized (this) {
+            if (this.isClosed) {
+                return;
+            }
+            if (this.wakeUp != null && !this.wakeUp.isDone()) {
+                if (this.wakeUpTime <= time) {
+                    return;
+                }
+                this.wakeUp.cancel(false);
+            }
+            this.wakeUpTime = time;
+            try {
+                this.wakeUp = this.timer.schedule(this::signal, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Logger.w(this.name, "Timer is shut down");
+            }
+        }
+    }
+
+    /**
+     * Stops the task, the runs requested from now on are ignored
+     */
+    public void close() {
+        this.isClosed = true;
+        synchronized (this) {
+            if (this.wakeUp != null) {
+                this.wakeUp.cancel(false);
+                this.wakeUp = null;
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return this.isClosed;
+    }
+
+    @Override
+    public void run() {
+        this.state.set(RUNNING);
+        boolean isAgain = false;
+        try {
+            if (!this.isClosed) {
+                isAgain = this.step.run();
+            }
+        } catch (Throwable t) {
+            Logger.e(this.name, t);
+        } finally {
+            if (isAgain || !this.state.compareAndSet(RUNNING, IDLE)) {
+                this.state.set(SCHEDULED);
+                submit();
+            }
+        }
+    }
+
+    private void submit() {
+        if (this.isClosed) {
+            this.state.set(IDLE);
+            return;
+        }
+        try {
+            this.executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            Logger.w(this.name, "Executor is shut down");
+            this.state.set(IDLE);
+        }
+    }
+}
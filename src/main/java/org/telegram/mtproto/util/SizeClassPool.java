@@ -0,0 +1,333 @@
+package org.telegram.mtproto.util;
+
+import org.telegram.mtproto.log.Logger;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of buffers grouped in power-of-two size classes, from 64 bytes to 512 KB.
+ *
+ * Every thread keeps a small magazine per class for buffers up to 4 KB, so most allocations
+ * and releases of small buffers don't touch shared state. The rest go to a lock-free stack per
+ * class. All the pools share a global budget of bytes kept in the shared stacks: buffers
+ * released over it are left to the garbage collector, and {@link #setMaxPooledBytes(long)} or
+ * {@link #trimAll()} drop what is already pooled.
+ *
+ * The magazines are not counted in the budget and can't be trimmed from other threads, so
+ * they are kept small: at most 4 buffers per class, about 32 KB per
+ * thread and pool. Their buffers go to the garbage collector with their thread.
+ *
+ * A buffer released to the pool must not be used anymore by the caller. Every pooled buffer,
+ * in a magazine or in a shared stack, is kept in a weak identity set split in stripes, so
+ * releasing a buffer that is already pooled is always detected, logged and ignored, from any
+ * thread, and a buffer is never handed to two owners. Buffers are compared with equals, which
+ * must be identity for T.
+ *
+ * @param <T> type of buffer
+ */
+public abstract class SizeClassPool<T> {
+    private static final int MIN_CLASS_SHIFT = 6;
+    private static final int MAX_CLASS_SHIFT = 19;
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+    private static final int MAX_MAGAZINE_SHIFT = 12;
+    private static final int MAGAZINE_SIZE = 4;
+    private static final int POOLED_STRIPES = 16;
+    private static final long DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    private static final AtomicLong pooledBytes = new AtomicLong();
+    private static final CopyOnWriteArrayList<SizeClassPool<?>> pools = new CopyOnWriteArrayList<>();
+    private static volatile long maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+
+    private final String TAG;
+    private final boolean trackAllocations;
+    private final AtomicReferenceArray<Node<T>> stacks = new AtomicReferenceArray<>(CLASS_COUNT);
+    private final ThreadLocal<Magazine> magazines = new ThreadLocal<Magazine>() {
+        @Override
+        protected Magazine initialValue() {
+            return new Magazine();
+        }
+    };
+    private final WeakHashMap<T, StackTraceElement[]> references = new WeakHashMap<>();
+    private final Set<T>[] pooled = newPooledSets();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder outstanding = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    protected SizeClassPool(String logTag, boolean trackAllocations) {
+        this.TAG = logTag;
+        this.trackAllocations = trackAllocations;
+        pools.add(this);
+    }
+
+    /**
+     * Creates a new buffer of exactly size bytes
+     */
+    protected abstract T create(int size);
+
+    /**
+     * Size of the buffer in bytes
+     */
+    protected abstract int capacity(T buffer);
+
+    /**
+     * Buffer of at least minSize bytes
+     */
+    public T allocate(int minSize) {
+        final int sizeClass = ceilClass(minSize);
+        T buffer = null;
+        if (sizeClass < 0) {
+            this.misses.increment();
+            buffer = create(minSize);
+        } else {
+            if (sizeClass <= MAX_MAGAZINE_SHIFT - MIN_CLASS_SHIFT) {
+                buffer = this.magazines.get().pop(sizeClass);
+            }
+            if (buffer == null) {
+                buffer = popShared(sizeClass);
+            }
+            if (buffer != null) {
+                unmarkPooled(buffer);
+                this.hits.increment();
+            } else {
+                this.misses.increment();
+                buffer = create(1 << (sizeClass + MIN_CLASS_SHIFT));
+            }
+        }
+        this.outstanding.increment();
+        if (this.trackAllocations) {
+            synchronized (this.references) {
+                this.references.put(buffer, Thread.currentThread().getStackTrace());
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer to the pool. Buffers not allocated from the pool are accepted too.
+     */
+    public void release(T buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (this.trackAllocations) {
+            synchronized (this.references) {
+                if (this.references.remove(buffer) == null) {
+                    Logger.w(this.TAG, "Releasing a buffer not allocated or already released");
+                    return;
+                }
+            }
+        }
+        final int sizeClass = floorClass(capacity(buffer));
+        if (sizeClass < 0) {
+            this.outstanding.decrement();
+            return;
+        }
+        if (!markPooled(buffer)) {
+            Logger.w(this.TAG, "Releasing a buffer already released");
+            return;
+        }
+        this.outstanding.decrement();
+        if (sizeClass <= MAX_MAGAZINE_SHIFT - MIN_CLASS_SHIFT) {
+            final Magazine magazine = this.magazines.get();
+            if (magazine.isFull(sizeClass)) {
+                // Move half of the magazine to the shared stack so the next release doesn't flush again
+                for (int i = 0; i < MAGAZINE_SIZE / 2; i++) {
+                    pushShared(sizeClass, magazine.pop(sizeClass));
+                }
+            }
+            magazine.push(sizeClass, buffer);
+        } else {
+            pushShared(sizeClass, buffer);
+        }
+    }
+
+    /**
+     * Drops buffers of the shared stacks until the pooled bytes are below maxBytes
+     */
+    public void trim(long maxBytes) {
+        for (int i = CLASS_COUNT - 1; i >= 0 && pooledBytes.get() > maxBytes; i--) {
+            T buffer;
+            while (pooledBytes.get() > maxBytes && (buffer = popShared(i)) != null) {
+                unmarkPooled(buffer);
+                this.dropped.increment();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Number of buffers allocated and not released yet
+     */
+    public long getOutstandingCount() {
+        return this.outstanding.sum();
+    }
+
+    /**
+     * Number of released buffers left to the garbage collector because of the budget
+     */
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Bytes kept in the shared stacks of all the pools
+     */
+    public static long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public static long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /**
+     * Changes the global budget, trimming the pools if they are over it
+     */
+    public static void setMaxPooledBytes(long maxBytes) {
+        maxPooledBytes = maxBytes;
+        trimAll(maxBytes);
+    }
+
+    /**
+     * Drops every buffer kept in the shared stacks, for example on memory pressure
+     */
+    public static void trimAll() {
+        trimAll(0);
+    }
+
+    private static void trimAll(long maxBytes) {
+        for (SizeClassPool<?> pool : pools) {
+            pool.trim(maxBytes);
+        }
+    }
+
+    private void pushShared(int sizeClass, T buffer) {
+        final int size = capacity(buffer);
+        if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+            pooledBytes.addAndGet(-size);
+            unmarkPooled(buffer);
+            this.dropped.increment();
+            return;
+        }
+        final Node<T> node = new Node<>(buffer);
+        Node<T> head;
+        do {
+            head = this.stacks.get(sizeClass);
+            node.next = head;
+        } while (!this.stacks.compareAndSet(sizeClass, head, node));
+    }
+
+    /**
+     * Adds the buffer to the set of pooled buffers, false if it was already there
+     */
+    private boolean markPooled(T buffer) {
+        final Set<T> stripe = this.pooled[stripe(buffer)];
+        synchronized (stripe) {
+            return stripe.add(buffer);
+        }
+    }
+
+    private void unmarkPooled(T buffer) {
+        final Set<T> stripe = this.pooled[stripe(buffer)];
+        synchronized (stripe) {
+            stripe.remove(buffer);
+        }
+    }
+
+    private static int stripe(Object buffer) {
+        return System.identityHashCode(buffer) & (POOLED_STRIPES - 1);
+    }
+
+    /**
+     * Weak sets, so the buffers of the magazines of dead threads can still be collected
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Set<T>[] newPooledSets() {
+        final Set<T>[] sets = new Set[POOLED_STRIPES];
+        for (int i = 0; i < POOLED_STRIPES; i++) {
+            sets[i] = Collections.newSetFromMap(new WeakHashMap<T, Boolean>());
+        }
+        return sets;
+    }
+
+    private T popShared(int sizeClass) {
+        Node<T> head;
+        do {
+            head = this.stacks.get(sizeClass);
+            if (head == null) {
+                return null;
+            }
+        } while (!this.stacks.compareAndSet(sizeClass, head, head.next));
+        pooledBytes.addAndGet(-capacity(head.item));
+        return head.item;
+    }
+
+    /**
+     * Smallest class whose buffers can hold size bytes, or -1 if it is over the biggest class
+     */
+    private static int ceilClass(int size) {
+        if (size > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        final int shift = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Biggest class a buffer of size bytes can serve, or -1 if it is not worth pooling
+     */
+    private static int floorClass(int size) {
+        final int shift = 31 - Integer.numberOfLeadingZeros(size);
+        if (size <= 0 || shift < MIN_CLASS_SHIFT || shift > MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    private static final class Node<T> {
+        private final T item;
+        private Node<T> next;
+
+        private Node(T item) {
+            this.item = item;
+        }
+    }
+
+    private final class Magazine {
+        private final Object[][] items = new Object[MAX_MAGAZINE_SHIFT - MIN_CLASS_SHIFT + 1][MAGAZINE_SIZE];
+        private final int[] counts = new int[MAX_MAGAZINE_SHIFT - MIN_CLASS_SHIFT + 1];
+
+        private boolean isFull(int sizeClass) {
+            return this.counts[sizeClass] == MAGAZINE_SIZE;
+        }
+
+        private void push(int sizeClass, T buffer) {
+            this.items[sizeClass][this.counts[sizeClass]++] = buffer;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T pop(int sizeClass) {
+            if (this.counts[sizeClass] == 0) {
+                return null;
+            }
+            final int index = --this.counts[sizeClass];
+            final T buffer = (T) this.items[sizeClass][index];
+            this.items[sizeClass][index] = null;
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.telegram.mtproto.util;
+
+import jawnae.pyronet.PyroSelectorGroup;
+import org.telegram.mtproto.log.Logger;
+import org.telegram.mtproto.transport.BuffersStorage;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Threads and pools shared by any number of apis and connections of the JVM.
+ *
+ * Apis and protos don't start threads of their own: their loops (schedullers, response processors,
+ * senders, connection managers) are {@link SerialTask}s run by the workers, their deadlines and
+ * wake-ups go to a single timer, sockets are served by the event loops of a {@link PyroSelectorGroup}
+ * and the work that must block (creating protos and auth keys) runs on a bounded blocking pool.
+ * So the number of threads depends on the number of cores, not on the number of accounts.
+ * Responses are decoded and handed to the callbacks by the dispatchers, so a slow decode or
+ * callback never delays the protocol messages (acks, pings) handled by the workers.
+ *
+ * Apis created without a runtime use {@link #getDefault()}. A runtime is closed only explicitly,
+ * after every api using it.
+ *
+ * @author Ruben Bermudez
+ */
+public class TelegramRuntime {
+    private static final String TAG = "TelegramRuntime";
+    private static final int BLOCKING_THREADS_PER_CORE = 4;
+
+    private static volatile TelegramRuntime defaultRuntime;
+
+    private final String name;
+    private final PyroSelectorGroup selectorGroup;
+    private final boolean ownsSelectorGroup;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ExecutorService workers;
+    private final ExecutorService dispatchers;
+    private final ExecutorService blockingExecutor;
+    private volatile boolean isClosed;
+
+    /**
+     * Runtime sized to the number of cores, sharing the default selector group of the JVM
+     *
+     * @param name prefix of the names of its threads
+     */
+    public TelegramRuntime(String name) {
+        this(name, PyroSelectorGroup.getInstance(), false, Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * BLOCKING_THREADS_PER_CORE);
+    }
+
+    /**
+     * Runtime with its own event loops
+     *
+     * @param name            prefix of the names of its threads
+     * @param selectors       number of event loops
+     * @param workers         number of worker threads
+     * @param dispatchers     number of threads decoding responses and running callbacks
+     * @param blockingThreads number of threads of the blocking pool
+     */
+    public TelegramRuntime(String name, int selectors, int workers, int dispatchers, int blockingThreads) {
+        this(name, new PyroSelectorGroup(name + "#Selector", selectors), true, workers, dispatchers, blockingThreads);
+    }
+
+    private TelegramRuntime(String name, PyroSelectorGroup selectorGroup, boolean ownsSelectorGroup, int workers, int dispatchers, int blockingThreads) {
+        if (workers <= 0 || dispatchers <= 0 || blockingThreads <= 0) {
+            throw new IllegalArgumentException("Thread counts must be positive: " + workers + ", " + dispatchers + ", " + blockingThreads);
+        }
+        this.name = name;
+        this.selectorGroup = selectorGroup;
+        this.ownsSelectorGroup = ownsSelectorGroup;
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> EngineThreads.newThread(runnable, name + "#Timer", true));
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.workers = EngineThreads.newExecutor(name + "#Worker", workers, true);
+        this.dispatchers = EngineThreads.newExecutor(name + "#Dispatcher", dispatchers, true);
+        this.blockingExecutor = EngineThreads.newExecutor(name + "#Blocking", blockingThreads, true);
+    }
+
+    /**
+     * Default runtime shared by all the apis of the JVM created without one
+     */
+    public static TelegramRuntime getDefault() {
+        TelegramRuntime localInstance = defaultRuntime;
+        if (localInstance == null) {
+            synchronized (TelegramRuntime.class) {
+                localInstance = defaultRuntime;
+                if (localInstance == null) {
+                    defaultRuntime = localInstance = new TelegramRuntime("Telegram");
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    /**
+     * Creates a task run by the workers
+     *
+     * @param name name of the task for the logs
+     * @param step body of the task, must not block
+     */
+    public SerialTask newTask(String name, SerialTask.Step step) {
+        return new SerialTask(name, this.workers, this.timer, step);
+    }
+
+    /**
+     * Creates a task run by the blocking pool
+     *
+     * @param name name of the task for the logs
+     * @param step body of the task, may block
+     */
+    public SerialTask newBlockingTask(String name, SerialTask.Step step) {
+        return new SerialTask(name, this.blockingExecutor, this.timer, step);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Event loops of the connections
+     */
+    public PyroSelectorGroup getSelectorGroup() {
+        return this.selectorGroup;
+    }
+
+    /**
+     * Single thread for deadlines and delayed work, tasks must be short
+     */
+    public ScheduledExecutorService getTimer() {
+        return this.timer;
+    }
+
+    /**
+     * Workers bounded by the number of cores, for work that doesn't block
+     */
+    public ExecutorService getWorkers() {
+        return this.workers;
+    }
+
+    /**
+     * Threads decoding responses and updates and running the callbacks of the calls
+     */
+    public ExecutorService getDispatchers() {
+        return this.dispatchers;
+    }
+
+    /**
+     * Bounded pool for work that blocks: creating protos and auth keys
+     */
+    public ExecutorService getBlockingExecutor() {
+        return this.blockingExecutor;
+    }
+
+    /**
+     * Pool of direct buffers of the connections, shared by the whole JVM
+     */
+    public BuffersStorage getBuffersStorage() {
+        return BuffersStorage.getInstance();
+    }
+
+    /**
+     * Pool of byte arrays of the messages, shared by the whole JVM
+     */
+    public BytesCache getBytesCache() {
+        return BytesCache.getInstance();
+    }
+
+    public boolean isClosed() {
+        return this.isClosed;
+    }
+
+    /**
+     * Stops the threads of the runtime. The apis using it must be closed before.
+     */
+    public void close() {
+        if (this.isClosed) {
+            return;
+        }
+        this.isClosed = true;
+        synchronized (TelegramRuntime.class) {
+            if (defaultRuntime == this) {
+                defaultRuntime = null;
+            }
+        }
+        this.timer.shutdownNow();
+        this.workers.shutdownNow();
+        this.dispatchers.shutdownNow();
+        this.blockingExecutor.shutdownNow();
+        if (this.ownsSelectorGroup) {
+            try {
+                this.selectorGroup.close();
+            } catch (IOException e) {
+                Logger.e(TAG, e);
+            }
+        }
+    }
+}
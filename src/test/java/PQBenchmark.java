@@ -0,0 +1,52 @@
+import org.telegram.mtproto.secure.pq.PQBrent;
+import org.telegram.mtproto.secure.pq.PQImplementation;
+import org.telegram.mtproto.secure.pq.PQLopatin;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Factorization time of the PQ implementations for pq values like the ones sent by the
+ * server (product of two ~31-bit primes). Not a unit test, run it with
+ * java -cp target/classes:target/test-classes PQBenchmark
+ *
+ * @author Ruben Bermudez
+ */
+public class PQBenchmark {
+    private static final int SAMPLES = 100;
+    private static final int WARMUP_ROUNDS = 1;
+
+    public static void main(String[] args) {
+        final long[] samples = createSamples(SAMPLES);
+        final PQImplementation[] implementations = {new PQLopatin(), new PQBrent()};
+        for (PQImplementation implementation : implementations) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                run(implementation, samples);
+            }
+            final long start = System.nanoTime();
+            run(implementation, samples);
+            final long elapsed = System.nanoTime() - start;
+            System.out.println(implementation.getClass().getSimpleName() + ": " + (elapsed / SAMPLES / 1000) + " us/op");
+        }
+    }
+
+    private static long[] createSamples(int count) {
+        final Random random = new Random(42);
+        final long[] samples = new long[count];
+        for (int i = 0; i < count; i++) {
+            final long p = BigInteger.probablePrime(31, random).longValue();
+            final long q = BigInteger.probablePrime(31, random).longValue();
+            samples[i] = p * q;
+        }
+        return samples;
+    }
+
+    private static void run(PQImplementation implementation, long[] samples) {
+        for (long sample : samples) {
+            final long divider = implementation.findDivider(sample);
+            if (divider <= 1 || sample % divider != 0) {
+                throw new IllegalStateException(implementation.getClass().getSimpleName() + " failed for " + sample);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.telegram.api.engine;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.api.functions.channels.TLRequestChannelsDeleteMessages;
+import org.telegram.api.functions.channels.TLRequestChannelsGetMessages;
+import org.telegram.api.input.chat.TLInputChannel;
+import org.telegram.api.message.TLAbsMessage;
+import org.telegram.api.messages.TLAffectedMessages;
+import org.telegram.tl.TLMethod;
+import org.telegram.tl.TLObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestRpcBatcher {
+    private final List<TLMethod<?>> sent = new ArrayList<>();
+    private final List<CompletableFuture<?>> answers = new ArrayList<>();
+    private ScheduledThreadPoolExecutor timer;
+    private RpcBatcher batcher;
+
+    @Before
+    public void setUp() {
+        this.timer = new ScheduledThreadPoolExecutor(1);
+        // The window never ends during the test, batches are sent by flush or when full
+        this.batcher = new RpcBatcher(new RpcBatcher.Sender() {
+            @Override
+            public <T extends TLObject> CompletableFuture<T> send(TLMethod<T> method) {
+                final CompletableFuture<T> future = new CompletableFuture<>();
+                TestRpcBatcher.this.sent.add(method);
+                TestRpcBatcher.this.answers.add(future);
+                return future;
+            }
+        }, this.timer, 60 * 1000, 3);
+    }
+
+    @After
+    public void tearDown() {
+        this.timer.shutdownNow();
+    }
+
+    @Test
+    public void testDifferentChannelsAreNotBatchedTogether() {
+        this.batcher.deleteChannelMessage(channel(1, 100), 10);
+        this.batcher.deleteChannelMessage(channel(2, 200), 20);
+        this.batcher.deleteChannelMessage(channel(1, 100), 11);
+        this.batcher.flush();
+
+        Assert.assertEquals(2, this.sent.size());
+        Assert.assertEquals(3, this.batcher.getBatchedCalls());
+        Assert.assertEquals(2, this.batcher.getSentCalls());
+        for (TLMethod<?> method : this.sent) {
+            final TLRequestChannelsDeleteMessages request = (TLRequestChannelsDeleteMessages) method;
+            final TLInputChannel channel = (TLInputChannel) request.getChannel();
+            if (channel.getChannelId() == 1) {
+                Assert.assertEquals(Arrays.asList(10, 11), new ArrayList<>(request.getId()));
+            } else {
+                Assert.assertEquals(2, channel.getChannelId());
+                Assert.assertEquals(Arrays.asList(20), new ArrayList<>(request.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testSameChannelIsBatchedUntilFull() {
+        this.batcher.getChannelMessage(channel(1, 100), 1);
+        this.batcher.getChannelMessage(channel(1, 100), 2);
+        this.batcher.getChannelMessage(channel(2, 200), 1);
+        Assert.assertTrue(this.sent.isEmpty());
+        this.batcher.getChannelMessage(channel(1, 100), 3);
+
+        Assert.assertEquals(1, this.sent.size());
+        final TLRequestChannelsGetMessages request = (TLRequestChannelsGetMessages) this.sent.get(0);
+        Assert.assertEquals(1, ((TLInputChannel) request.getChannel()).getChannelId());
+        Assert.assertEquals(Arrays.asList(1, 2, 3), new ArrayList<>(request.getId()));
+    }
+
+    @Test
+    public void testAnswerAndErrorReachEveryCaller() throws Exception {
+        final CompletableFuture<TLAffectedMessages> first = this.batcher.deleteChannelMessage(channel(1, 100), 10);
+        final CompletableFuture<TLAffectedMessages> second = this.batcher.deleteChannelMessage(channel(1, 100), 11);
+        final CompletableFuture<TLAbsMessage> other = this.batcher.getChannelMessage(channel(1, 100), 12);
+        this.batcher.flush();
+        Assert.assertEquals(2, this.answers.size());
+
+        final TLAffectedMessages affected = new TLAffectedMessages();
+        for (int i = 0; i < this.sent.size(); i++) {
+            if (this.sent.get(i) instanceof TLRequestChannelsDeleteMessages) {
+                complete(i, affected);
+            } else {
+                this.answers.get(i).completeExceptionally(new RpcException(400, "CHANNEL_INVALID"));
+            }
+        }
+
+        Assert.assertSame(affected, first.get());
+        Assert.assertSame(affected, second.get());
+        Assert.assertTrue(other.isCompletedExceptionally());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(int index, TLObject result) {
+        ((CompletableFuture<TLObject>) this.answers.get(index)).complete(result);
+    }
+
+    private static TLInputChannel channel(int channelId, long accessHash) {
+        final TLInputChannel channel = new TLInputChannel();
+        channel.setChannelId(channelId);
+        channel.setAccessHash(accessHash);
+        return channel;
+    }
+}
@@ -0,0 +1,150 @@
+package org.telegram.api.engine;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.api.TLConfig;
+import org.telegram.api.functions.help.TLRequestHelpGetConfig;
+import org.telegram.api.functions.users.TLRequestUsersGetFullUser;
+import org.telegram.api.input.user.TLInputUser;
+import org.telegram.api.user.TLUserFull;
+import org.telegram.tl.TLMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestRpcCoalescer {
+    private final List<CompletableFuture<TLUserFull>> sent = new ArrayList<>();
+    private final Function<TLMethod<TLUserFull>, CompletableFuture<TLUserFull>> sender = method -> {
+        final CompletableFuture<TLUserFull> future = new CompletableFuture<>();
+        this.sent.add(future);
+        return future;
+    };
+    private RpcCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        this.coalescer = new RpcCoalescer();
+        this.coalescer.setEnabled(true);
+    }
+
+    @Test
+    public void testSameCallsShareOneRpc() throws Exception {
+        final CompletableFuture<TLUserFull> first = call(getFullUser(1));
+        final CompletableFuture<TLUserFull> second = call(getFullUser(1));
+        final CompletableFuture<TLUserFull> other = call(getFullUser(2));
+
+        Assert.assertEquals(2, this.sent.size());
+        Assert.assertEquals(2, this.coalescer.getInFlightCount());
+        Assert.assertEquals(1, this.coalescer.getCoalescedCount());
+
+        final TLUserFull result = new TLUserFull();
+        this.sent.get(0).complete(result);
+        Assert.assertSame(result, first.get());
+        Assert.assertSame(result, second.get());
+        Assert.assertFalse(other.isDone());
+        Assert.assertEquals(1, this.coalescer.getInFlightCount());
+
+        // Once answered, the next call starts a new rpc
+        call(getFullUser(1));
+        Assert.assertEquals(3, this.sent.size());
+    }
+
+    @Test
+    public void testErrorReachesEveryCaller() throws InterruptedException {
+        final CompletableFuture<TLUserFull> first = call(getFullUser(1));
+        final CompletableFuture<TLUserFull> second = call(getFullUser(1));
+        this.sent.get(0).completeExceptionally(new RpcException(400, "USER_ID_INVALID"));
+
+        assertRpcError(first);
+        assertRpcError(second);
+        Assert.assertEquals(0, this.coalescer.getInFlightCount());
+    }
+
+    @Test
+    public void testCancelOfOneCallerKeepsTheRpc() throws Exception {
+        final CompletableFuture<TLUserFull> first = call(getFullUser(1));
+        final CompletableFuture<TLUserFull> second = call(getFullUser(1));
+
+        Assert.assertTrue(first.cancel(false));
+        Assert.assertFalse(this.sent.get(0).isCancelled());
+        Assert.assertEquals(1, this.coalescer.getInFlightCount());
+
+        final TLUserFull result = new TLUserFull();
+        this.sent.get(0).complete(result);
+        Assert.assertTrue(first.isCancelled());
+        Assert.assertSame(result, second.get());
+    }
+
+    @Test
+    public void testCancelOfEveryCallerCancelsTheRpc() {
+        final CompletableFuture<TLUserFull> first = call(getFullUser(1));
+        final CompletableFuture<TLUserFull> second = call(getFullUser(1));
+        first.cancel(false);
+        second.cancel(false);
+
+        Assert.assertTrue(this.sent.get(0).isCancelled());
+        Assert.assertEquals(0, this.coalescer.getInFlightCount());
+
+        // A new caller doesn't join the cancelled rpc
+        call(getFullUser(1));
+        Assert.assertEquals(2, this.sent.size());
+        Assert.assertEquals(1, this.coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testCallsToOtherDcsAreNotShared() {
+        final TLRequestHelpGetConfig config = new TLRequestHelpGetConfig();
+        final List<CompletableFuture<TLConfig>> configs = new ArrayList<>();
+        final Function<TLMethod<TLConfig>, CompletableFuture<TLConfig>> configSender = method -> {
+            final CompletableFuture<TLConfig> future = new CompletableFuture<>();
+            configs.add(future);
+            return future;
+        };
+        this.coalescer.call(config, RpcCallOptions.defaults(), configSender);
+        this.coalescer.call(config, RpcCallOptions.defaults().setDcId(2), configSender);
+
+        Assert.assertEquals(2, configs.size());
+        Assert.assertEquals(0, this.coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testAllowlist() {
+        final TLRequestHelpGetConfig config = new TLRequestHelpGetConfig();
+        Assert.assertTrue(this.coalescer.isCoalescable(config));
+        this.coalescer.disallow(TLRequestHelpGetConfig.class);
+        Assert.assertFalse(this.coalescer.isCoalescable(config));
+        this.coalescer.allow(TLRequestHelpGetConfig.class);
+        Assert.assertTrue(this.coalescer.isCoalescable(config));
+        this.coalescer.setEnabled(false);
+        Assert.assertFalse(this.coalescer.isCoalescable(config));
+    }
+
+    private CompletableFuture<TLUserFull> call(TLRequestUsersGetFullUser method) {
+        return this.coalescer.call(method, RpcCallOptions.defaults(), this.sender);
+    }
+
+    private static TLRequestUsersGetFullUser getFullUser(int userId) {
+        final TLInputUser user = new TLInputUser();
+        user.setUserId(userId);
+        user.setAccessHash(userId * 1000L);
+        final TLRequestUsersGetFullUser method = new TLRequestUsersGetFullUser();
+        method.setId(user);
+        return method;
+    }
+
+    private static void assertRpcError(CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+            Assert.fail("Call didn't fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RpcException);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.telegram.api.engine;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.api.TLConfig;
+import org.telegram.api.functions.contacts.TLRequestContactsResolveUsername;
+import org.telegram.api.functions.help.TLRequestHelpGetConfig;
+import org.telegram.api.functions.users.TLRequestUsersGetFullUser;
+import org.telegram.api.input.user.TLInputUser;
+import org.telegram.api.update.TLUpdateConfig;
+import org.telegram.api.update.TLUpdateUserPhoto;
+import org.telegram.api.user.TLUserFull;
+import org.telegram.tl.TLMethod;
+import org.telegram.tl.TLObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestRpcResponseCache {
+    private static final long TTL = 60 * 1000;
+
+    private final List<CompletableFuture<? extends TLObject>> sent = new ArrayList<>();
+    private RpcResponseCache cache;
+
+    @Before
+    public void setUp() {
+        this.cache = new RpcResponseCache();
+        this.cache.setTtl(TLRequestUsersGetFullUser.class, TTL);
+    }
+
+    @Test
+    public void testAnswerIsCached() throws Exception {
+        final CompletableFuture<TLUserFull> first = call(getFullUser(1));
+        final TLUserFull result = new TLUserFull();
+        complete(0, result);
+
+        Assert.assertSame(result, first.get());
+        Assert.assertSame(result, call(getFullUser(1)).get());
+        Assert.assertEquals(1, this.sent.size());
+        Assert.assertEquals(1, this.cache.getHitCount());
+        Assert.assertEquals(1, this.cache.getMissCount());
+        Assert.assertEquals(1, this.cache.size());
+
+        // Other arguments or dc are other entries
+        call(getFullUser(2));
+        this.cache.call(getFullUser(1), RpcCallOptions.defaults().setDcId(2), sender());
+        Assert.assertEquals(3, this.sent.size());
+    }
+
+    @Test
+    public void testUpdateInvalidatesTheUser() throws Exception {
+        call(getFullUser(1));
+        complete(0, new TLUserFull());
+        call(getFullUser(2));
+        complete(1, new TLUserFull());
+        Assert.assertEquals(2, this.cache.size());
+
+        final TLUserFull updated = new TLUserFull();
+        final TLUpdateUserPhoto update = new TLUpdateUserPhoto();
+        update.setUserId(1);
+        this.cache.invalidate(update);
+        Assert.assertEquals(1, this.cache.size());
+        Assert.assertEquals(1, this.cache.getInvalidationCount());
+
+        final CompletableFuture<TLUserFull> again = call(getFullUser(1));
+        Assert.assertEquals(3, this.sent.size());
+        complete(2, updated);
+        Assert.assertSame(updated, again.get());
+        call(getFullUser(2));
+        Assert.assertEquals(3, this.sent.size());
+    }
+
+    @Test
+    public void testInvalidationDuringTheCallIsNotCached() {
+        call(getFullUser(1));
+        this.cache.invalidateUser(1);
+        complete(0, new TLUserFull());
+
+        Assert.assertEquals(0, this.cache.size());
+        call(getFullUser(1));
+        Assert.assertEquals(2, this.sent.size());
+    }
+
+    @Test
+    public void testUnrelatedInvalidationDuringTheCallIsCached() {
+        call(getFullUser(1));
+        final TLUpdateUserPhoto update = new TLUpdateUserPhoto();
+        update.setUserId(2);
+        this.cache.invalidate(update);
+        this.cache.invalidateChat(1);
+        this.cache.invalidate(TLRequestHelpGetConfig.class);
+        complete(0, new TLUserFull());
+
+        Assert.assertEquals(1, this.cache.size());
+        call(getFullUser(1));
+        Assert.assertEquals(1, this.sent.size());
+    }
+
+    @Test
+    public void testMethodInvalidationDuringTheCallIsNotCached() {
+        call(getFullUser(1));
+        this.cache.invalidate(TLRequestUsersGetFullUser.class);
+        complete(0, new TLUserFull());
+        call(getFullUser(2));
+        this.cache.clear();
+        complete(1, new TLUserFull());
+
+        Assert.assertEquals(0, this.cache.size());
+    }
+
+    @Test
+    public void testCancelledAndFailedCallsAreNotCached() {
+        call(getFullUser(1)).cancel(false);
+        this.sent.get(0).completeExceptionally(new RpcException(400, "USER_ID_INVALID"));
+        call(getFullUser(2));
+        this.sent.get(1).completeExceptionally(new RpcException(400, "USER_ID_INVALID"));
+
+        Assert.assertEquals(0, this.cache.size());
+        call(getFullUser(1));
+        call(getFullUser(2));
+        Assert.assertEquals(4, this.sent.size());
+    }
+
+    @Test
+    public void testNegativeAnswerIsCached() throws InterruptedException {
+        final TLRequestContactsResolveUsername resolve = new TLRequestContactsResolveUsername();
+        resolve.setUsername("nobody");
+        call(resolve);
+        this.sent.get(0).completeExceptionally(new RpcException(400, "USERNAME_NOT_OCCUPIED"));
+
+        final CompletableFuture<?> cached = call(resolve);
+        Assert.assertEquals(1, this.sent.size());
+        Assert.assertEquals(1, this.cache.getNegativeHitCount());
+        try {
+            cached.get();
+            Assert.fail("Cached error not thrown");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("USERNAME_NOT_OCCUPIED", ((RpcException) e.getCause()).getErrorTag());
+        }
+    }
+
+    @Test
+    public void testInvalidateByClassAndClear() {
+        call(new TLRequestHelpGetConfig());
+        complete(0, new TLConfig());
+        call(getFullUser(1));
+        complete(1, new TLUserFull());
+        Assert.assertEquals(2, this.cache.size());
+
+        final TLUpdateConfig update = new TLUpdateConfig();
+        this.cache.invalidate(update);
+        Assert.assertEquals(1, this.cache.size());
+        call(getFullUser(1));
+        Assert.assertEquals(2, this.sent.size());
+
+        this.cache.invalidate(TLRequestUsersGetFullUser.class);
+        Assert.assertEquals(0, this.cache.size());
+
+        call(getFullUser(1));
+        complete(2, new TLUserFull());
+        this.cache.clear();
+        Assert.assertEquals(0, this.cache.size());
+
+        // Stopping to cache a method drops its entries
+        call(getFullUser(1));
+        complete(3, new TLUserFull());
+        this.cache.setTtl(TLRequestUsersGetFullUser.class, 0);
+        Assert.assertEquals(0, this.cache.size());
+        Assert.assertFalse(this.cache.isCacheable(getFullUser(1)));
+    }
+
+    private <T extends TLObject> CompletableFuture<T> call(TLMethod<T> method) {
+        return this.cache.call(method, RpcCallOptions.defaults(), sender());
+    }
+
+    private <T extends TLObject> Function<TLMethod<T>, CompletableFuture<T>> sender() {
+        return method -> {
+            final CompletableFuture<T> future = new CompletableFuture<>();
+            this.sent.add(future);
+            return future;
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private void complete(int index, TLObject result) {
+        ((CompletableFuture<TLObject>) this.sent.get(index)).complete(result);
+    }
+
+    private static TLRequestUsersGetFullUser getFullUser(int userId) {
+        final TLInputUser user = new TLInputUser();
+        user.setUserId(userId);
+        user.setAccessHash(userId * 1000L);
+        final TLRequestUsersGetFullUser method = new TLRequestUsersGetFullUser();
+        method.setId(user);
+        return method;
+    }
+}
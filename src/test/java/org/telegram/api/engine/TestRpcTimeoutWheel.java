@@ -0,0 +1,135 @@
+package org.telegram.api.engine;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestRpcTimeoutWheel {
+    private static final long TICK = 1000;
+
+    private final Map<Integer, Long> expired = new HashMap<>();
+    private ManualTimer timer;
+    private RpcTimeoutWheel wheel;
+    private long currentTick;
+
+    @Before
+    public void setUp() {
+        this.timer = new ManualTimer();
+        this.wheel = new RpcTimeoutWheel(this.timer, TICK, ids -> {
+            synchronized (this.expired) {
+                for (int id : ids) {
+                    this.expired.put(id, this.currentTick);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        this.timer.shutdownNow();
+    }
+
+    @Test
+    public void testExpiresInItsTick() {
+        this.wheel.schedule(1, timeout(1));
+        this.wheel.schedule(2, timeout(3));
+        this.wheel.schedule(3, timeout(255));
+        runTicks(256);
+
+        Assert.assertEquals(1L, (long) this.expired.get(1));
+        Assert.assertEquals(3L, (long) this.expired.get(2));
+        Assert.assertEquals(255L, (long) this.expired.get(3));
+        Assert.assertEquals(0, this.wheel.size());
+    }
+
+    @Test
+    public void testCascadeFromUpperLevels() {
+        // Level 1 holds 64 slots of 256 ticks and level 2 slots of 16384 ticks
+        this.wheel.schedule(1, timeout(256));
+        this.wheel.schedule(2, timeout(300));
+        this.wheel.schedule(3, timeout(1000));
+        this.wheel.schedule(4, timeout(20000));
+        this.wheel.schedule(5, timeout(16384 + 256 + 5));
+        runTicks(20001);
+
+        Assert.assertEquals(256L, (long) this.expired.get(1));
+        Assert.assertEquals(300L, (long) this.expired.get(2));
+        Assert.assertEquals(1000L, (long) this.expired.get(3));
+        Assert.assertEquals(20000L, (long) this.expired.get(4));
+        Assert.assertEquals(16384L + 256 + 5, (long) this.expired.get(5));
+        Assert.assertEquals(0, this.wheel.size());
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        this.wheel.schedule(1, timeout(10));
+        this.wheel.schedule(2, timeout(400));
+        this.wheel.schedule(3, timeout(5));
+        runTicks(3);
+        Assert.assertTrue(this.wheel.cancel(1));
+        Assert.assertTrue(this.wheel.cancel(2));
+        Assert.assertFalse(this.wheel.cancel(4));
+        // Replaces the deadline, only the new one expires
+        this.wheel.schedule(3, timeout(300));
+        runTicks(500);
+
+        Assert.assertFalse(this.expired.containsKey(1));
+        Assert.assertFalse(this.expired.containsKey(2));
+        Assert.assertEquals(300L, (long) this.expired.get(3));
+        Assert.assertFalse(this.wheel.cancel(3));
+    }
+
+    @Test
+    public void testCloseExpiresPending() throws InterruptedException {
+        this.wheel.schedule(1, timeout(10));
+        this.wheel.schedule(2, timeout(1000));
+        this.wheel.close();
+        final CountDownLatch done = new CountDownLatch(1);
+        this.timer.execute(done::countDown);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(2, this.expired.size());
+        Assert.assertEquals(0, this.wheel.size());
+    }
+
+    /**
+     * Timeout that expires in the given tick: half a tick before it, so the few milliseconds
+     * the test takes don't move it to the next one
+     */
+    private static long timeout(long ticks) {
+        return ticks * TICK - TICK / 2;
+    }
+
+    private void runTicks(int count) {
+        for (int i = 0; i < count; i++) {
+            this.wheel.tick();
+            this.currentTick++;
+        }
+    }
+
+    /**
+     * Timer that never runs the ticks of the wheel, which the test runs by hand
+     */
+    private static final class ManualTimer extends ScheduledThreadPoolExecutor {
+        private ManualTimer() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            return schedule(() -> {
+            }, 365, TimeUnit.DAYS);
+        }
+    }
+}
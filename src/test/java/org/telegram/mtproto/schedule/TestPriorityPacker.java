@@ -0,0 +1,102 @@
+package org.telegram.mtproto.schedule;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestPriorityPacker {
+    private static final int QUANTUM = 256;
+    private static final int MAX_SIZE = 3072;
+
+    private final PriorityPacker packer = new PriorityPacker(QUANTUM);
+
+    @Test
+    public void testSharesFollowTheWeights() {
+        final List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            items.add(new Item(RpcPriority.INTERACTIVE, 256));
+        }
+        for (int i = 0; i < 4; i++) {
+            items.add(new Item(RpcPriority.FILES, 256));
+        }
+        final List<Item> packed = pack(items, Integer.MAX_VALUE);
+
+        Assert.assertEquals(36, packed.size());
+        Assert.assertEquals("IIIIIIIIIIIIIIIIFIIIIIIIIIIIIIIIIFFF", classes(packed));
+    }
+
+    @Test
+    public void testKeepsArrivalOrderInAClass() {
+        final List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            items.add(new Item(RpcPriority.NORMAL, 100));
+        }
+        final List<Item> packed = pack(items, MAX_SIZE);
+
+        Assert.assertEquals(items, packed);
+    }
+
+    @Test
+    public void testOversizedItemIsTaken() {
+        final List<Item> items = new ArrayList<>();
+        items.add(new Item(RpcPriority.FILES, 100000));
+        items.add(new Item(RpcPriority.INTERACTIVE, 100000));
+        final List<Item> packed = pack(items, MAX_SIZE);
+
+        Assert.assertEquals(1, packed.size());
+        Assert.assertEquals(RpcPriority.INTERACTIVE, packed.get(0).priority);
+    }
+
+    @Test
+    public void testDeficitCarriesOverContainers() {
+        final List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add(new Item(RpcPriority.INTERACTIVE, 1000));
+        }
+        final Item file = new Item(RpcPriority.FILES, 600);
+        items.add(file);
+
+        List<Item> packed = pack(items, MAX_SIZE);
+        Assert.assertEquals("IIII", classes(packed));
+        Assert.assertEquals(QUANTUM, this.packer.getDeficit(RpcPriority.FILES));
+        items.removeAll(packed);
+
+        packed = pack(items, MAX_SIZE);
+        Assert.assertEquals("IIII", classes(packed));
+        Assert.assertEquals(2 * QUANTUM, this.packer.getDeficit(RpcPriority.FILES));
+        items.removeAll(packed);
+
+        packed = pack(items, MAX_SIZE);
+        Assert.assertEquals("IIF", classes(packed));
+        Assert.assertSame(file, packed.get(2));
+        Assert.assertEquals(0, this.packer.getDeficit(RpcPriority.INTERACTIVE));
+        Assert.assertEquals(0, this.packer.getDeficit(RpcPriority.FILES));
+    }
+
+    private List<Item> pack(List<Item> items, int maxSize) {
+        return this.packer.pack(items, item -> item.size, item -> item.priority, maxSize);
+    }
+
+    private static String classes(List<Item> items) {
+        final StringBuilder res = new StringBuilder();
+        for (Item item : items) {
+            res.append(item.priority.name().charAt(0));
+        }
+        return res.toString();
+    }
+
+    private static final class Item {
+        private final RpcPriority priority;
+        private final int size;
+
+        private Item(RpcPriority priority, int size) {
+            this.priority = priority;
+            this.size = size;
+        }
+    }
+}
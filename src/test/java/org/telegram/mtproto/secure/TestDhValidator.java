@@ -0,0 +1,98 @@
+package org.telegram.mtproto.secure;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.telegram.mtproto.TransportSecurityException;
+
+import java.math.BigInteger;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestDhValidator {
+    /**
+     * 2048-bit safe prime sent by the servers, congruent to 2 mod 3, 3 mod 8, 11 mod 24,
+     * 3 mod 5 and 6 mod 7
+     */
+    private static final BigInteger DH_PRIME = new BigInteger(
+            "C71CAEB9C6B1C9048E6C522F70F13F73980D40238E3E21C14934D037563D930F48198A0AA7C14058229493D22530F4DB" +
+            "FA336F6E0AC925139543AED44CCE7C3720FD51F69458705AC68CD4FE6B6B13ABDC9746512969328454F18FAF8C595F64" +
+            "2477FE96BB2A941D5BCD1D4AC8CC49880708FA9B378E3C4F3A9060BEE67CF9A4A4A695811051907E162753B56B0F6B41" +
+            "0DBA74D8A84B2A14B3144E0EF1284754FD17ED950D5965B4B9DD46582DB1178D169C6BC465B0D6FF9CA3928FEF5B9AE4" +
+            "E418FC15E83EBEA0F87FA9FF5EED70050DED2849F47BF959D956850CE929851F0D8115F635B105EE2E4E15D04B2454BF" +
+            "6F4FADF034B10403119CD8E3B92FCC5B", 16);
+    private static final BigInteger MIN_VALUE = BigInteger.ONE.shiftLeft(2048 - 64);
+
+    @Test
+    public void testGeneratorsOfTheServerPrime() throws TransportSecurityException {
+        DhValidator.checkPrime(3, bytes(DH_PRIME));
+        DhValidator.checkPrime(4, bytes(DH_PRIME));
+        DhValidator.checkPrime(7, bytes(DH_PRIME));
+    }
+
+    @Test
+    public void testGeneratorsNotMatchingThePrime() {
+        assertInvalidPrime(2, DH_PRIME);
+        assertInvalidPrime(5, DH_PRIME);
+        assertInvalidPrime(6, DH_PRIME);
+    }
+
+    @Test
+    public void testUnknownGenerators() {
+        assertInvalidPrime(1, DH_PRIME);
+        assertInvalidPrime(8, DH_PRIME);
+    }
+
+    @Test
+    public void testNotSafePrime() {
+        // Same size and residues mod 3 as the server prime, but composite
+        assertInvalidPrime(3, DH_PRIME.add(BigInteger.valueOf(6)));
+    }
+
+    @Test
+    public void testPrimeOfAnotherSize() {
+        assertInvalidPrime(3, DH_PRIME.shiftRight(1));
+    }
+
+    @Test
+    public void testPublicValueRange() throws TransportSecurityException {
+        DhValidator.checkPublicValue(MIN_VALUE, DH_PRIME);
+        DhValidator.checkPublicValue(DH_PRIME.shiftRight(1), DH_PRIME);
+        DhValidator.checkPublicValue(DH_PRIME.subtract(MIN_VALUE), DH_PRIME);
+        assertInvalidPublicValue(BigInteger.ONE);
+        assertInvalidPublicValue(MIN_VALUE.subtract(BigInteger.ONE));
+        assertInvalidPublicValue(DH_PRIME.subtract(MIN_VALUE).add(BigInteger.ONE));
+        assertInvalidPublicValue(DH_PRIME.subtract(BigInteger.ONE));
+    }
+
+    private static void assertInvalidPrime(int g, BigInteger prime) {
+        try {
+            DhValidator.checkPrime(g, bytes(prime));
+            Assert.fail("g = " + g + " accepted");
+        } catch (TransportSecurityException e) {
+            // expected
+        }
+    }
+
+    private static void assertInvalidPublicValue(BigInteger value) {
+        try {
+            DhValidator.checkPublicValue(value, DH_PRIME);
+            Assert.fail(value.toString(16) + " accepted");
+        } catch (TransportSecurityException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Big endian bytes without the sign byte, as sent by the server
+     */
+    private static byte[] bytes(BigInteger value) {
+        final byte[] res = value.toByteArray();
+        if (res[0] != 0) {
+            return res;
+        }
+        final byte[] trimmed = new byte[res.length - 1];
+        System.arraycopy(res, 1, trimmed, 0, trimmed.length);
+        return trimmed;
+    }
+}
@@ -0,0 +1,64 @@
+package org.telegram.mtproto.secure.pq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestPQBrent {
+    private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+
+    private final PQBrent brent = new PQBrent();
+
+    @Test
+    public void testSemiprimeOfTheDocumentation() {
+        // pq of the auth key creation example of the MTProto documentation
+        Assert.assertEquals(1229739323L, this.brent.findDivider(0x17ED48941A08F981L));
+    }
+
+    @Test
+    public void testSmallSemiprimes() {
+        Assert.assertEquals(3, this.brent.findDivider(15));
+        Assert.assertEquals(7, this.brent.findDivider(77));
+        Assert.assertEquals(2, this.brent.findDivider(2 * 1000003L));
+        Assert.assertEquals(65537, this.brent.findDivider(65537L * 65539L));
+    }
+
+    @Test
+    public void testSemiprimesLikeTheServerOnes() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 50; i++) {
+            final long p = BigInteger.probablePrime(31, random).longValue();
+            final long q = BigInteger.probablePrime(31, random).longValue();
+            Assert.assertEquals("pq = " + p * q, Math.min(p, q), this.brent.findDivider(p * q));
+        }
+    }
+
+    @Test
+    public void testUnsignedMultiplyHigh() {
+        final long[] edges = {0, 1, 2, -1, -2, Long.MAX_VALUE, Long.MIN_VALUE, 0xFFFFFFFFL, 0x100000000L};
+        for (long x : edges) {
+            for (long y : edges) {
+                assertMultiplyHigh(x, y);
+            }
+        }
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            assertMultiplyHigh(random.nextLong(), random.nextLong());
+        }
+    }
+
+    private static void assertMultiplyHigh(long x, long y) {
+        final long expected = unsigned(x).multiply(unsigned(y)).shiftRight(64).longValue();
+        Assert.assertEquals(Long.toHexString(x) + " * " + Long.toHexString(y), expected, PQBrent.unsignedMultiplyHigh(x, y));
+    }
+
+    private static BigInteger unsigned(long value) {
+        final BigInteger res = BigInteger.valueOf(value);
+        return value < 0 ? res.add(TWO_64) : res;
+    }
+}
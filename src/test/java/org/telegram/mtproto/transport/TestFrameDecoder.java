@@ -0,0 +1,157 @@
+package org.telegram.mtproto.transport;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestFrameDecoder {
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Integer> confirms = new ArrayList<>();
+    private final List<Integer> errors = new ArrayList<>();
+    private FrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        this.decoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(PooledBuffer frame) {
+                TestFrameDecoder.this.frames.add(frame.toBytes());
+            }
+
+            @Override
+            public void onFastConfirm(int hash) {
+                TestFrameDecoder.this.confirms.add(hash);
+            }
+
+            @Override
+            public void onTransportError(int errorCode) {
+                TestFrameDecoder.this.errors.add(errorCode);
+            }
+        });
+    }
+
+    @Test
+    public void testCoalescedFrames() throws IOException {
+        final byte[] first = payload(8, 1);
+        final byte[] second = payload(0x7f * 4, 2);
+        final byte[] third = payload(1000 * 4, 3);
+        feed(concat(frame(first), frame(second), frame(third)));
+
+        Assert.assertEquals(3, this.frames.size());
+        Assert.assertArrayEquals(first, this.frames.get(0));
+        Assert.assertArrayEquals(second, this.frames.get(1));
+        Assert.assertArrayEquals(third, this.frames.get(2));
+    }
+
+    @Test
+    public void testFramesSplitAtEveryByte() throws IOException {
+        final byte[] first = payload(12, 1);
+        final byte[] second = payload(600, 2);
+        final byte[] stream = concat(frame(first), frame(second));
+        for (byte value : stream) {
+            feed(new byte[]{value});
+        }
+
+        Assert.assertEquals(2, this.frames.size());
+        Assert.assertArrayEquals(first, this.frames.get(0));
+        Assert.assertArrayEquals(second, this.frames.get(1));
+    }
+
+    @Test
+    public void testFramesSplitAcrossReads() throws IOException {
+        final byte[] first = payload(400, 1);
+        final byte[] second = payload(16, 2);
+        final byte[] stream = concat(frame(first), frame(second));
+        // The first read ends in the middle of the first frame, the second one in the header of the next
+        feed(slice(stream, 0, 100));
+        Assert.assertTrue(this.frames.isEmpty());
+        feed(slice(stream, 100, 406));
+        Assert.assertEquals(1, this.frames.size());
+        feed(slice(stream, 406, stream.length));
+
+        Assert.assertEquals(2, this.frames.size());
+        Assert.assertArrayEquals(first, this.frames.get(0));
+        Assert.assertArrayEquals(second, this.frames.get(1));
+    }
+
+    @Test
+    public void testFastConfirmAndTransportError() throws IOException {
+        final byte[] data = payload(8, 1);
+        final byte[] error = {1, (byte) 0x6c, (byte) 0xfe, (byte) 0xff, (byte) 0xff};
+        feed(concat(new byte[]{(byte) 0x81, 0x02, 0x03, 0x04}, frame(data), error));
+
+        Assert.assertEquals(1, this.confirms.size());
+        Assert.assertEquals(0x01020304, (int) this.confirms.get(0));
+        Assert.assertEquals(1, this.frames.size());
+        Assert.assertArrayEquals(data, this.frames.get(0));
+        Assert.assertEquals(1, this.errors.size());
+        Assert.assertEquals(-404, (int) this.errors.get(0));
+    }
+
+    @Test
+    public void testResetDropsPartialFrame() throws IOException {
+        final byte[] data = payload(40, 1);
+        feed(slice(frame(payload(400, 2)), 0, 50));
+        this.decoder.reset();
+        feed(frame(data));
+
+        Assert.assertEquals(1, this.frames.size());
+        Assert.assertArrayEquals(data, this.frames.get(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void testZeroLength() throws IOException {
+        feed(new byte[]{0});
+    }
+
+    private void feed(byte[] bytes) throws IOException {
+        final PooledBuffer buffer = PooledBuffer.allocate(bytes.length);
+        try {
+            buffer.buffer().put(bytes).flip();
+            this.decoder.decode(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static byte[] frame(byte[] payload) {
+        final int length = payload.length / 4;
+        final byte[] header;
+        if (length < 0x7f) {
+            header = new byte[]{(byte) length};
+        } else {
+            header = new byte[]{0x7f, (byte) length, (byte) (length >> 8), (byte) (length >> 16)};
+        }
+        return concat(header, payload);
+    }
+
+    private static byte[] payload(int length, int seed) {
+        final byte[] res = new byte[length];
+        for (int i = 0; i < length; i++) {
+            res[i] = (byte) (seed * 31 + i);
+        }
+        return res;
+    }
+
+    private static byte[] slice(byte[] src, int from, int to) {
+        final byte[] res = new byte[to - from];
+        System.arraycopy(src, from, res, 0, res.length);
+        return res;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            res.write(part, 0, part.length);
+        }
+        return res.toByteArray();
+    }
+}
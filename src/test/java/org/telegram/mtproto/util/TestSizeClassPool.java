@@ -0,0 +1,98 @@
+package org.telegram.mtproto.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Ruben Bermudez
+ */
+public class TestSizeClassPool {
+    private static final int SMALL = 64;
+    private static final int LARGE = 8192;
+
+    private BytesCache cache;
+
+    @Before
+    public void setUp() {
+        this.cache = new BytesCache("TestSizeClassPool");
+    }
+
+    @Test
+    public void testDoubleReleaseAfterMagazineFlushIsIgnored() {
+        final List<byte[]> buffers = allocate(SMALL, 6);
+        for (byte[] buffer : buffers) {
+            this.cache.put(buffer);
+        }
+        // The first buffers are not in the magazine nor on top of the shared stack anymore
+        this.cache.put(buffers.get(0));
+        this.cache.put(buffers.get(1));
+        Assert.assertEquals(0, this.cache.getOutstandingCount());
+
+        assertDistinct(allocate(SMALL, 8));
+        Assert.assertEquals(8, this.cache.getOutstandingCount());
+    }
+
+    @Test
+    public void testDoubleReleaseFromOtherThreadIsIgnored() throws InterruptedException {
+        final byte[] buffer = this.cache.allocate(SMALL);
+        this.cache.put(buffer);
+
+        final AtomicReference<byte[]> other = new AtomicReference<>();
+        final Thread thread = new Thread(() -> {
+            this.cache.put(buffer);
+            other.set(this.cache.allocate(SMALL));
+        });
+        thread.start();
+        thread.join();
+
+        Assert.assertNotSame(buffer, other.get());
+        Assert.assertSame(buffer, this.cache.allocate(SMALL));
+        Assert.assertEquals(2, this.cache.getOutstandingCount());
+    }
+
+    @Test
+    public void testDoubleReleaseBelowTheTopOfTheSharedStackIsIgnored() {
+        final byte[] first = this.cache.allocate(LARGE);
+        final byte[] second = this.cache.allocate(LARGE);
+        this.cache.put(first);
+        this.cache.put(second);
+        this.cache.put(first);
+        Assert.assertEquals(0, this.cache.getOutstandingCount());
+
+        assertDistinct(allocate(LARGE, 3));
+    }
+
+    @Test
+    public void testTrimmedBufferCanBeReleasedAgain() {
+        final byte[] buffer = this.cache.allocate(LARGE);
+        this.cache.put(buffer);
+        this.cache.trim(0);
+        Assert.assertEquals(1, this.cache.getDroppedCount());
+
+        // Dropped buffers are not pooled anymore, so the guard must forget them
+        this.cache.put(buffer);
+        Assert.assertSame(buffer, this.cache.allocate(LARGE));
+    }
+
+    private List<byte[]> allocate(int size, int count) {
+        final List<byte[]> buffers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            buffers.add(this.cache.allocate(size));
+        }
+        return buffers;
+    }
+
+    private static void assertDistinct(List<byte[]> buffers) {
+        final Set<byte[]> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinct.addAll(buffers);
+        Assert.assertEquals(buffers.size(), distinct.size());
+    }
+}